@@ -0,0 +1,187 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.RequiresApi;
+import android.view.Surface;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.MediaEncoder;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.SampleInfo;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.TrackFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link MediaEncoder} backed by a MediaCodec encoder.
+ * <p>
+ * The codec is configured in {@link #start()}, so that {@link #setCallback} can come first as
+ * MediaCodec requires.  Async mode is only offered on API 23+, where callbacks can be delivered
+ * on a thread of our own; the codec callbacks then run on a dedicated HandlerThread.
+ */
+@RequiresApi(LOLLIPOP)
+public class AndroidMediaEncoder implements MediaEncoder {
+    private final MediaCodec mCodec;
+    private final MediaFormat mFormat;
+    private final boolean mSurfaceInput;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private final SampleInfo mCallbackInfo = new SampleInfo();
+    private Surface mInputSurface;
+    private HandlerThread mCallbackThread;
+
+    /**
+     * @param format       the encoder configuration
+     * @param surfaceInput true to feed the encoder through {@link #getInputSurface()}
+     */
+    public AndroidMediaEncoder(MediaFormat format, boolean surfaceInput) throws IOException {
+        mFormat = format;
+        mSurfaceInput = surfaceInput;
+        mCodec = MediaCodec.createEncoderByType(format.getString(MediaFormat.KEY_MIME));
+    }
+
+    /**
+     * Returns the input surface of a surface-input encoder.  Valid after {@link #start()}.
+     */
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    @Override
+    public boolean setCallback(final Callback callback) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return false;
+        }
+        mCallbackThread = new HandlerThread("EncoderCallback");
+        mCallbackThread.start();
+        setCodecCallback(callback, new Handler(mCallbackThread.getLooper()));
+        return true;
+    }
+
+    @RequiresApi(Build.VERSION_CODES.M)
+    private void setCodecCallback(final Callback callback, Handler handler) {
+        mCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+                // Input comes from the surface
+            }
+
+            @Override
+            public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
+                                                @NonNull MediaCodec.BufferInfo info) {
+                mCallbackInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+                callback.onOutputBufferAvailable(AndroidMediaEncoder.this, index, mCallbackInfo);
+            }
+
+            @Override
+            public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+                callback.onError(AndroidMediaEncoder.this, e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+                callback.onOutputFormatChanged(AndroidMediaEncoder.this, toTrackFormat(format));
+            }
+        }, handler);
+    }
+
+    @Override
+    public void start() {
+        mCodec.configure(mFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        if (mSurfaceInput) {
+            mInputSurface = mCodec.createInputSurface();
+        }
+        mCodec.start();
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+        int index = mCodec.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        if (index >= 0) {
+            info.set(mBufferInfo.offset, mBufferInfo.size, mBufferInfo.presentationTimeUs,
+                    mBufferInfo.flags);
+        }
+        return index;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public TrackFormat getOutputFormat() {
+        return toTrackFormat(mCodec.getOutputFormat());
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mCodec.setParameters(params);
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+        if (mCallbackThread != null) {
+            // No more callbacks once the codec is stopped
+            mCallbackThread.quitSafely();
+            mCallbackThread = null;
+        }
+    }
+
+    @Override
+    public void release() {
+        mCodec.release();
+        if (mInputSurface != null) {
+            mInputSurface.release();
+            mInputSurface = null;
+        }
+    }
+
+    /**
+     * Wraps a codec output format, keeping the MediaFormat itself for the Android muxer.
+     */
+    static TrackFormat toTrackFormat(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        ByteBuffer csd0 = format.containsKey("csd-0") ? format.getByteBuffer("csd-0") : null;
+        ByteBuffer csd1 = format.containsKey("csd-1") ? format.getByteBuffer("csd-1") : null;
+        if (mime.startsWith("video/")) {
+            return TrackFormat.video(mime, format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT), csd0, csd1, format);
+        }
+        return TrackFormat.audio(mime, format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), csd0, format);
+    }
+}
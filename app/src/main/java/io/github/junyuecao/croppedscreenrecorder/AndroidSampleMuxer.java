@@ -0,0 +1,79 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.support.annotation.RequiresApi;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.SampleInfo;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.SampleMuxer;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.TrackFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link SampleMuxer} backed by a MediaMuxer writing an MPEG-4 file.
+ */
+@RequiresApi(LOLLIPOP)
+public class AndroidSampleMuxer implements SampleMuxer {
+    private final MediaMuxer mMuxer;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    public AndroidSampleMuxer(String path) throws IOException {
+        mMuxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        return mMuxer.addTrack(toMediaFormat(format));
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+        mBufferInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+        data.limit(info.offset + info.size);
+        data.position(info.offset);
+        mMuxer.writeSampleData(trackIndex, data, mBufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        mMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        mMuxer.release();
+    }
+
+    /**
+     * Returns the codec's own MediaFormat when there is one, otherwise builds one.
+     */
+    static MediaFormat toMediaFormat(TrackFormat format) {
+        if (format.getPlatformFormat() instanceof MediaFormat) {
+            return (MediaFormat) format.getPlatformFormat();
+        }
+        MediaFormat mediaFormat;
+        if (format.isVideo()) {
+            mediaFormat = MediaFormat.createVideoFormat(format.getMime(),
+                    format.getWidth(), format.getHeight());
+        } else {
+            mediaFormat = MediaFormat.createAudioFormat(format.getMime(),
+                    format.getSampleRate(), format.getChannelCount());
+        }
+        if (format.getCsd0() != null) {
+            mediaFormat.setByteBuffer("csd-0", format.getCsd0());
+        }
+        if (format.getCsd1() != null) {
+            mediaFormat.setByteBuffer("csd-1", format.getCsd1());
+        }
+        return mediaFormat;
+    }
+}
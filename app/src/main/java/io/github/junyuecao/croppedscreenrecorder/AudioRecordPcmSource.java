@@ -0,0 +1,93 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.util.Log;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.PcmSource;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link PcmSource} backed by an AudioRecord.
+ */
+public class AudioRecordPcmSource implements PcmSource {
+    private static final String TAG = "AudioRecordPcmSource";
+
+    private final int mAudioSource;
+    private final int mSampleRate;
+    private final int mChannelConfig;
+    private final int mAudioFormat;
+    private AudioRecord mAudioRecord;
+
+    /**
+     * Parameters are the ones of the AudioRecord constructor.
+     */
+    public AudioRecordPcmSource(int audioSource, int sampleRateInHz, int channelConfig, int audioFormat) {
+        mAudioSource = audioSource;
+        mSampleRate = sampleRateInHz;
+        mChannelConfig = channelConfig;
+        mAudioFormat = audioFormat;
+    }
+
+    @Override
+    public boolean start() {
+        int minBufferSize = AudioRecord.getMinBufferSize(mSampleRate, mChannelConfig, mAudioFormat);
+        if (minBufferSize == AudioRecord.ERROR_BAD_VALUE) {
+            Log.e(TAG, "Invalid parameter !");
+            return false;
+        }
+        mAudioRecord = new AudioRecord(mAudioSource, mSampleRate, mChannelConfig, mAudioFormat, minBufferSize * 4);
+        if (mAudioRecord.getState() == AudioRecord.STATE_UNINITIALIZED) {
+            Log.e(TAG, "AudioRecord initialize fail !");
+            mAudioRecord.release();
+            mAudioRecord = null;
+            return false;
+        }
+
+        mAudioRecord.startRecording();
+        return true;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int size) {
+        AudioRecord audioRecord = mAudioRecord;
+        if (audioRecord == null) {
+            return ERROR_INVALID_OPERATION;
+        }
+        return audioRecord.read(buffer, offset, size);
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int size) {
+        AudioRecord audioRecord = mAudioRecord;
+        if (audioRecord == null) {
+            return ERROR_INVALID_OPERATION;
+        }
+        return audioRecord.read(buffer, size);
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return mChannelConfig == AudioFormat.CHANNEL_IN_STEREO ? 2 : 1;
+    }
+
+    @Override
+    public void stop() {
+        if (mAudioRecord != null) {
+            mAudioRecord.stop();
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mAudioRecord != null) {
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+    }
+}
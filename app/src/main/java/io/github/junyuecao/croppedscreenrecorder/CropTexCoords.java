@@ -0,0 +1,44 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Texture coordinate math behind {@link CroppedDrawable2d}, kept free of GL dependencies so it
+ * can be benchmarked on a plain JVM.
+ */
+public class CropTexCoords {
+
+    private CropTexCoords() {
+    }
+
+    /**
+     * Writes the cropped version of the FULL_RECTANGLE texture coordinates into {@code dst}.
+     *
+     * @param src           the parent texture coordinates
+     * @param topCropped    proportion to cut on the top, from 0f-1f
+     * @param bottomCropped defines the bottom edge of the texture, from 0f-1f
+     * @param dst           receives {@code src.capacity()} floats, using absolute puts
+     */
+    public static void crop(FloatBuffer src, float topCropped, float bottomCropped, FloatBuffer dst) {
+        int count = src.capacity();
+        // Texture coordinates range from 0.0 to 1.0, inclusive.  We do a simple scale
+        // here, but we could get much fancier if we wanted to (say) zoom in and pan
+        // around.
+        for (int i = 0; i < count; i++) {
+            float fl = src.get(i);
+            if (i == 0 || i == 4) {
+                fl = 0.0f;
+            } else if (i == 2 || i == 6) {
+                fl = 1.0f;
+            } else if (i == 1 || i == 3) {
+                // Crop the bottom
+                fl = bottomCropped;
+            } else if (i == 5 || i == 7) {
+                // Crop the top
+                fl = 1.0f - topCropped;
+            }
+
+            dst.put(i, fl);
+        }
+    }
+}
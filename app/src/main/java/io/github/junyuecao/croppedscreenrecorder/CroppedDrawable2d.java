@@ -75,26 +75,7 @@ public class CroppedDrawable2d extends Drawable2d {
                 mTweakedTexCoordArray = bb.asFloatBuffer();
             }
 
-            // Texture coordinates range from 0.0 to 1.0, inclusive.  We do a simple scale
-            // here, but we could get much fancier if we wanted to (say) zoom in and pan
-            // around.
-            FloatBuffer fb = mTweakedTexCoordArray;
-            for (int i = 0; i < count; i++) {
-                float fl = parentBuf.get(i);
-                if (i == 0 || i == 4) {
-                    fl = 0.0f;
-                } else if (i == 2 || i == 6) {
-                    fl = 1.0f;
-                } else if (i == 1 || i == 3) {
-                    // Crop the bottom
-                    fl = mBottomCropped;
-                } else if (i == 5 || i == 7) {
-                    // Crop the top
-                    fl = 1.0f - mTopCropped;
-                }
-
-                fb.put(i, fl);
-            }
+            CropTexCoords.crop(parentBuf, mTopCropped, mBottomCropped, mTweakedTexCoordArray);
 
             mRecalculate = false;
         }
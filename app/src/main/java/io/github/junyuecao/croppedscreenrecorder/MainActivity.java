@@ -27,7 +27,7 @@ import java.util.TimerTask;
 
 @RuntimePermissions
 public class MainActivity extends AppCompatActivity implements View.OnClickListener, View.OnTouchListener,
-        RecordCallback {
+        RecordCallback, RecordCallback.ReplayListener {
 
     ScreenCapture mScreenCapture;
     Timer mTimer;
@@ -93,6 +93,16 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         // We don't need it yet
     }
 
+    @Override
+    public void onReplaySaved(String filePath, long duration) {
+        // We don't need it yet
+    }
+
+    @Override
+    public void onReplayFailed(Throwable e) {
+        Toast.makeText(this, "Saving replay failed with error : " + e.getMessage(), Toast.LENGTH_SHORT).show();
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
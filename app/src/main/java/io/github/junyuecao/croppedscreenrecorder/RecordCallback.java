@@ -22,4 +22,49 @@ public interface RecordCallback {
      * @param ms current record duration in ms
      */
     void onRecordedDurationChanged(long ms);
+
+    /**
+     * Also implemented by a callback that wants stats while recording, see
+     * {@link ScreenCapture#setRecordStatsInterval}.
+     */
+    interface StatsListener {
+        /**
+         * Periodic snapshot of the recording's health.  Called on the executor given to
+         * {@link ScreenCapture#setRecordStatsInterval}.
+         */
+        void onRecordStats(RecordStats stats);
+    }
+
+    /**
+     * Also implemented by a callback that wants each segment of a segmented recording, see
+     * {@link ScreenCapture#setSegmentation}.
+     */
+    interface SegmentListener {
+        /**
+         * Callback when a segment of a segmented recording is finished
+         * @param filePath segment file path
+         * @param index    segment number, from 0
+         * @param duration segment duration in ms
+         */
+        void onSegmentFinished(String filePath, int index, long duration);
+    }
+
+    /**
+     * Also implemented by a callback that saves instant replays, see
+     * {@link ScreenCapture#saveReplay}.
+     */
+    interface ReplayListener {
+        /**
+         * Callback when an instant replay is saved
+         * @param filePath replay MP4 file path
+         * @param duration replay duration in ms
+         */
+        void onReplaySaved(String filePath, long duration);
+
+        /**
+         * Callback when saving an instant replay failed
+         * @param e reason why it failed
+         */
+        void onReplayFailed(Throwable e);
+    }
 }
@@ -0,0 +1,170 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+/**
+ * A snapshot of the health of a recording, delivered by
+ * {@link RecordCallback.StatsListener#onRecordStats(RecordStats)}.
+ * <p>
+ * Counters are totals since the recording started; rates are measured over the time since the
+ * previous snapshot.
+ */
+public class RecordStats {
+    private final long mDurationMs;
+    private final long mEncodedFrames;
+    private final float mEncodedFps;
+    private final long mDroppedFrames;
+    private final long mVideoBitrate;
+    private final long mAudioBitrate;
+    private final long mBytesWritten;
+    private final int mEncoderQueueDepth;
+    private final int mMuxerBacklog;
+    private final long mAudioOverruns;
+    private final int mAudioRingOccupancy;
+    private final long mAudioDriftUs;
+    private final long mFrameLatencyP50Us;
+    private final long mFrameLatencyP99Us;
+    private final long mStartupLatencyMs;
+
+    public RecordStats(long durationMs, long encodedFrames, float encodedFps, long droppedFrames,
+                       long videoBitrate, long audioBitrate, long bytesWritten,
+                       int encoderQueueDepth, int muxerBacklog, long audioOverruns,
+                       int audioRingOccupancy, long audioDriftUs, long frameLatencyP50Us,
+                       long frameLatencyP99Us, long startupLatencyMs) {
+        mDurationMs = durationMs;
+        mEncodedFrames = encodedFrames;
+        mEncodedFps = encodedFps;
+        mDroppedFrames = droppedFrames;
+        mVideoBitrate = videoBitrate;
+        mAudioBitrate = audioBitrate;
+        mBytesWritten = bytesWritten;
+        mEncoderQueueDepth = encoderQueueDepth;
+        mMuxerBacklog = muxerBacklog;
+        mAudioOverruns = audioOverruns;
+        mAudioRingOccupancy = audioRingOccupancy;
+        mAudioDriftUs = audioDriftUs;
+        mFrameLatencyP50Us = frameLatencyP50Us;
+        mFrameLatencyP99Us = frameLatencyP99Us;
+        mStartupLatencyMs = startupLatencyMs;
+    }
+
+    /**
+     * @return time since the recording started, in ms
+     */
+    public long getDurationMs() {
+        return mDurationMs;
+    }
+
+    /**
+     * @return number of video frames that came out of the encoder
+     */
+    public long getEncodedFrames() {
+        return mEncodedFrames;
+    }
+
+    /**
+     * @return video frames per second coming out of the encoder
+     */
+    public float getEncodedFps() {
+        return mEncodedFps;
+    }
+
+    /**
+     * @return frames that never made it into the file: not picked up by the encoder thread in
+     * time, passed over by frame coalescing or dropped by the muxer writer
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * @return encoded video bits per second
+     */
+    public long getVideoBitrate() {
+        return mVideoBitrate;
+    }
+
+    /**
+     * @return encoded audio bits per second
+     */
+    public long getAudioBitrate() {
+        return mAudioBitrate;
+    }
+
+    /**
+     * @return sample bytes written to the file so far
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return video frames submitted to the encoder and not output yet
+     */
+    public int getEncoderQueueDepth() {
+        return mEncoderQueueDepth;
+    }
+
+    /**
+     * @return samples waiting for the muxer writer
+     */
+    public int getMuxerBacklog() {
+        return mMuxerBacklog;
+    }
+
+    /**
+     * @return audio chunks dropped because the audio encoder was too far behind to take them
+     */
+    public long getAudioOverruns() {
+        return mAudioOverruns;
+    }
+
+    /**
+     * @return audio chunks captured and waiting for the audio encoder
+     */
+    public int getAudioRingOccupancy() {
+        return mAudioRingOccupancy;
+    }
+
+    /**
+     * @return how far the microphone's clock has drifted from the video clock, in microseconds; audio
+     * timestamps are nudged to make up for it
+     */
+    public long getAudioDriftUs() {
+        return mAudioDriftUs;
+    }
+
+    /**
+     * @return median time from a frame being available to it being written to the file, in
+     * microseconds
+     */
+    public long getFrameLatencyP50Us() {
+        return mFrameLatencyP50Us;
+    }
+
+    /**
+     * @return 99th percentile time from a frame being available to it being written to the file,
+     * in microseconds
+     */
+    public long getFrameLatencyP99Us() {
+        return mFrameLatencyP99Us;
+    }
+
+    /**
+     * @return time from asking for the recording to its first key frame written, in ms, or -1 if
+     * there hasn't been one yet
+     */
+    public long getStartupLatencyMs() {
+        return mStartupLatencyMs;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordStats: " + mDurationMs + "ms, " + mEncodedFrames + " frames @" + mEncodedFps
+                + "fps, dropped " + mDroppedFrames
+                + ", video " + mVideoBitrate + "bps, audio " + mAudioBitrate + "bps, "
+                + mBytesWritten + " bytes written, encoder queue " + mEncoderQueueDepth
+                + ", muxer backlog " + mMuxerBacklog + ", audio overruns " + mAudioOverruns
+                + ", audio ring " + mAudioRingOccupancy + ", audio drift " + mAudioDriftUs + "us"
+                + ", frame latency p50 " + mFrameLatencyP50Us + "us p99 " + mFrameLatencyP99Us
+                + "us, startup " + mStartupLatencyMs + "ms";
+    }
+}
@@ -10,7 +10,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.hardware.display.DisplayManager;
 import android.hardware.display.VirtualDisplay;
-import android.media.AudioRecord;
 import android.media.MediaRecorder;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
@@ -23,10 +22,15 @@ import android.support.annotation.RequiresApi;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Surface;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.FrameLatencyTracker;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.MuxerWriter;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.PcmSource;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.PtsSanitizer;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 
 /**
  * Screen capture
@@ -36,6 +40,8 @@ import java.nio.ByteBuffer;
  * 3，attach encoder， (recording)
  * 4，detach encoder when finish，
  * 5，close projection and destroy
+ * With warm start (the default) the encoders are built in step 2 and kept ready between
+ * recordings, so step 3 only opens a file.
  */
 @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
 public class ScreenCapture {
@@ -52,6 +58,9 @@ public class ScreenCapture {
 
     private boolean running; // true if it is projecting screen
     private boolean recording; // true if it is recording screen
+    private volatile boolean mDirectAudioCapture = true;
+    private volatile boolean mWarmStart = true;
+    private volatile int mReplaySeconds;
 
     private VirtualDisplay virtualDisplay;
     private MediaProjection mediaProjection;
@@ -80,6 +89,169 @@ public class ScreenCapture {
         mRecorder.setRecordCallback(recordCallback);
     }
 
+    public MuxerWriter.OverflowPolicy getMuxerOverflowPolicy() {
+        return mRecorder.getMuxerOverflowPolicy();
+    }
+
+    /**
+     * @param policy what to do when the muxer can't keep up with the encoders,
+     *               {@link MuxerWriter.OverflowPolicy#BLOCK} by default
+     */
+    public void setMuxerOverflowPolicy(MuxerWriter.OverflowPolicy policy) {
+        mRecorder.setMuxerOverflowPolicy(policy);
+    }
+
+    public PtsSanitizer.Policy getPtsPolicy() {
+        return mRecorder.getPtsPolicy();
+    }
+
+    /**
+     * @param policy what to do with samples whose timestamp doesn't increase,
+     *               {@link PtsSanitizer.Policy#CLAMP} by default
+     */
+    public void setPtsPolicy(PtsSanitizer.Policy policy) {
+        mRecorder.setPtsPolicy(policy);
+    }
+
+    public VideoEncoderCore.Container getContainer() {
+        return mRecorder.getContainer();
+    }
+
+    /**
+     * @param container the file format to record in, {@link VideoEncoderCore.Container#MP4} by
+     *                  default.  {@link VideoEncoderCore.Container#FRAGMENTED_MP4} survives the
+     *                  recording being cut short, as does
+     *                  {@link VideoEncoderCore.Container#MPEG_TS}.
+     *                  {@link VideoEncoderCore.Container#HLS} writes a live playlist and its
+     *                  segments, which can be served while recording; {@link #setSegmentation}
+     *                  sets how long the segments are.
+     */
+    public void setContainer(VideoEncoderCore.Container container) {
+        mRecorder.setContainer(container);
+    }
+
+    /**
+     * Splits recordings into segments, each cut on a key frame and reported to
+     * {@link RecordCallback.SegmentListener#onSegmentFinished}, if the callback is one, as soon
+     * as it is written.  Segments are named after the recording's file by
+     * {@link VideoEncoderCore#getSegmentFile}.
+     *
+     * @param durationMs media time after which a segment is cut, 0 for no limit
+     * @param bytes      sample data after which a segment is cut, 0 for no limit.  With neither
+     *                   limit (the default), a recording is a single file.
+     */
+    public void setSegmentation(long durationMs, long bytes) {
+        mRecorder.setSegmentation(durationMs, bytes);
+    }
+
+    /**
+     * Records circularly, for unattended capture: recordings are split into key-frame-aligned
+     * segments, and once the segments in the directory recordings go to take more than
+     * {@code quotaBytes}, the oldest are deleted.  Segments are a minute long unless
+     * {@link #setSegmentation} says otherwise.  The segments are listed in a small journal in
+     * that directory, so the ring carries on across restarts.
+     *
+     * @param quotaBytes storage the segments may take, 0 (the default) to turn it off
+     */
+    public void setCircularRecording(long quotaBytes) {
+        mRecorder.setCircularRecording(quotaBytes);
+    }
+
+    /**
+     * Keeps the last {@code seconds} of the screen and microphone, encoded, in memory for as long
+     * as projection runs, recording or not, so {@link #saveReplay} can save what just happened.
+     * Takes effect on the next {@link #startProjection}.
+     *
+     * @param seconds     how much to keep, 0 (the default) to turn it off
+     * @param budgetBytes memory the encoded samples may take; with less than the bit rate needs,
+     *                    less is kept
+     */
+    public void setInstantReplay(int seconds, int budgetBytes) {
+        mReplaySeconds = seconds;
+        mRecorder.setInstantReplay(seconds * 1000L, budgetBytes);
+    }
+
+    /**
+     * Saves the last {@code seconds} kept by {@link #setInstantReplay} to a new file, without
+     * interrupting capture or a recording.  It starts at a key frame, so it may be a little
+     * longer.  The result goes to {@link RecordCallback.ReplayListener#onReplaySaved} or
+     * {@link RecordCallback.ReplayListener#onReplayFailed}, if the callback is one.
+     *
+     * @return the file the replay is saved to, or null if no replay is kept
+     */
+    public File saveReplay(int seconds) {
+        if (!running) {
+            return null;
+        }
+        File file = getFile("replay_", getContainer().getSingleFileContainer().getExtension());
+        return mRecorder.saveReplay(file, seconds * 1000L) ? file : null;
+    }
+
+    /**
+     * @return per-stage latency of the video frames of the current or last recording
+     */
+    public FrameLatencyTracker getFrameLatency() {
+        return mRecorder.getFrameLatency();
+    }
+
+    /**
+     * Has {@link RecordCallback.StatsListener#onRecordStats} called every {@code intervalMs}
+     * while recording, if the callback is one.
+     *
+     * @param intervalMs how often to report, 0 to turn reporting off (the default)
+     * @param executor   where the callback runs, e.g. one posting to the main thread
+     */
+    public void setRecordStatsInterval(long intervalMs, Executor executor) {
+        mRecorder.setRecordStatsInterval(intervalMs, executor);
+    }
+
+    /**
+     * @param intervalMs recorded media time between two
+     *                   {@link RecordCallback#onRecordedDurationChanged} calls,
+     *                   {@link VideoEncoderCore#DEFAULT_PROGRESS_INTERVAL_MS} by default
+     */
+    public void setProgressInterval(long intervalMs) {
+        mRecorder.setProgressInterval(intervalMs);
+    }
+
+    public boolean isFrameCoalescing() {
+        return mRecorder.isFrameCoalescing();
+    }
+
+    /**
+     * @param coalescing true to only encode the newest frame when the encoder falls behind,
+     *                   false (the default) to encode every frame
+     */
+    public void setFrameCoalescing(boolean coalescing) {
+        mRecorder.setFrameCoalescing(coalescing);
+    }
+
+    public boolean isDirectAudioCapture() {
+        return mDirectAudioCapture;
+    }
+
+    /**
+     * @param direct true (the default) to read audio straight into the encoder's input buffers,
+     *               false to read into an array and copy it over
+     */
+    public void setDirectAudioCapture(boolean direct) {
+        mDirectAudioCapture = direct;
+    }
+
+
+    public boolean isWarmStart() {
+        return mWarmStart;
+    }
+
+    /**
+     * @param warmStart true (the default) to build the encoders as soon as projection starts and
+     *                  keep them ready between recordings, so {@link #attachRecorder()} only
+     *                  opens a file; false to build them on every attach.  Takes effect on the
+     *                  next {@link #startProjection}.
+     */
+    public void setWarmStart(boolean warmStart) {
+        mWarmStart = warmStart;
+    }
 
     /**
      * @return true when projecting
@@ -95,6 +267,38 @@ public class ScreenCapture {
         return recording;
     }
 
+    /**
+     * Pauses the recording without ending the file: nothing is recorded until {@link #resume()},
+     * and the pause doesn't show in the file's timeline.
+     *
+     * @return true if success
+     */
+    public synchronized boolean pause() {
+        if (!recording) {
+            return false;
+        }
+        return mRecorder.pause();
+    }
+
+    /**
+     * Resumes a paused recording.
+     *
+     * @return true if success
+     */
+    public synchronized boolean resume() {
+        if (!recording) {
+            return false;
+        }
+        return mRecorder.resume();
+    }
+
+    /**
+     * @return true when recording is paused
+     */
+    public boolean isPaused() {
+        return recording && mRecorder.isPaused();
+    }
+
     public OnMediaProjectionReadyListener getMediaProjectionReadyListener() {
         return mMediaProjectionReadyListener;
     }
@@ -131,6 +335,14 @@ public class ScreenCapture {
         }
         createVirtualDisplay();
         running = true;
+        // The replay needs the encoders running all along
+        if (mWarmStart || mReplaySeconds > 0) {
+            setInputSurfaceCallback();
+            mRecorder.prepare(createEncoderConfig(null));
+        }
+        if (mReplaySeconds > 0) {
+            startAudioCapture();
+        }
         return true;
     }
 
@@ -140,6 +352,8 @@ public class ScreenCapture {
      * @return true if attach success
      */
     public synchronized boolean attachRecorder() {
+        // Touch down to first key frame is reported as the startup latency
+        long requestedNanos = System.nanoTime();
         Log.d(TAG, "Start attachRecorder");
         if (!running ) {
             // if not projecting screen or already recording return false
@@ -149,26 +363,13 @@ public class ScreenCapture {
         if (recording) {
             return false;
         }
-        EGLContext eglContext = EGL14.eglGetCurrentContext();
-        File file = getFile();
-        float cropTop = ((float) Utils.getStatusBarHeight(mActivity.get())) /  Utils.getRealHeight(mActivity.get());
-        float cropBottom = ((float) Utils.getNavBarHeight(mActivity.get())) / Utils.getRealHeight(mActivity.get());
-        mRecorder.startRecording(new TextureMovieEncoder.EncoderConfig(file,
-                width, height,
-                cropTop, cropBottom, mBitRate, eglContext));
-        mRecorder.setCallback(new TextureMovieEncoder.Callback() {
-            @Override
-            public void onInputSurfacePrepared(Surface surface) {
-                virtualDisplay.setSurface(surface);
-            }
-        });
-
-        // init AudioRecord to record from mic
-        initAudioRecord(MediaRecorder.AudioSource.MIC, DEFAULT_SAMPLE_RATE, DEFAULT_CHANNEL_CONFIG, DEFAULT_DATA_FORMAT);
+        setInputSurfaceCallback();
+        mRecorder.startRecording(createEncoderConfig(getFile()), requestedNanos);
 
-        mAudioLoopExited = false;
-        mAudioThread = new Thread(new AudioRunnable());
-        mAudioThread.start();
+        // Already running for the replay
+        if (mAudioThread == null) {
+            startAudioCapture();
+        }
 
         recording = true;
         return true;
@@ -186,20 +387,14 @@ public class ScreenCapture {
             return false;
         }
         recording = false;
-        mAudioLoopExited = true;
-
-        if (mAudioThread != null) {
-            mAudioThread.interrupt();
-            mAudioThread = null;
-        }
-        if (mAudioRecord != null) {
-            mAudioRecord.stop();
-            mAudioRecord.release();
-            mAudioRecord = null;
+        // The replay keeps listening, the encoder ends the recording's audio itself
+        if (!mRecorder.isReplaying()) {
+            stopAudioCapture();
         }
 
-        mRecorder.stopRecording();
+        // Disconnected first: with warm start the next engine connects its own surface
         virtualDisplay.setSurface(null);
+        mRecorder.stopRecording();
 
         return true;
     }
@@ -215,6 +410,9 @@ public class ScreenCapture {
         if (recording) {
             detachRecorder();
         }
+        stopAudioCapture();
+        // Drops the warm engine too
+        mRecorder.release();
         running = false;
         if (virtualDisplay != null) {
             virtualDisplay.release();
@@ -229,7 +427,7 @@ public class ScreenCapture {
     }
 
     public void sendAudioFrame(ByteBuffer byteBuffer, int size, boolean isEnd) {
-        if (mRecorder.isRecording()) {
+        if (mRecorder.isRecording() || mRecorder.isReplaying()) {
             mRecorder.audioFrameAvailable(byteBuffer, size, isEnd);
         }
     }
@@ -238,6 +436,30 @@ public class ScreenCapture {
         return mActivity.get() == activity;
     }
 
+    /**
+     * @param file where to record, null for a warm engine
+     */
+    private TextureMovieEncoder.EncoderConfig createEncoderConfig(File file) {
+        EGLContext eglContext = EGL14.eglGetCurrentContext();
+        float cropTop = ((float) Utils.getStatusBarHeight(mActivity.get())) /  Utils.getRealHeight(mActivity.get());
+        float cropBottom = ((float) Utils.getNavBarHeight(mActivity.get())) / Utils.getRealHeight(mActivity.get());
+        return new TextureMovieEncoder.EncoderConfig(file,
+                width, height,
+                cropTop, cropBottom, mBitRate, eglContext);
+    }
+
+    private void setInputSurfaceCallback() {
+        mRecorder.setCallback(new TextureMovieEncoder.Callback() {
+            @Override
+            public void onInputSurfacePrepared(Surface surface) {
+                VirtualDisplay display = virtualDisplay;
+                if (display != null) {
+                    display.setSurface(surface);
+                }
+            }
+        });
+    }
+
     private void createVirtualDisplay() {
         virtualDisplay = mediaProjection.createVirtualDisplay(
                 "LiveScreen",
@@ -251,9 +473,13 @@ public class ScreenCapture {
 
     @NonNull
     private File getFile() {
+        return getFile("", getContainer().getExtension());
+    }
+
+    private File getFile(String prefix, String extension) {
         File file = new File(
                 Environment.getExternalStorageDirectory() + File.separator + "test",
-                System.currentTimeMillis() + ".mp4");
+                prefix + System.currentTimeMillis() + extension);
         if (!file.getParentFile().exists()) {
             file.getParentFile().mkdirs();
         }
@@ -266,26 +492,43 @@ public class ScreenCapture {
 
     // -------- Audio test ---------
     private boolean mAudioLoopExited;
-    private AudioRecord mAudioRecord;
+    private PcmSource mAudioSource;
     private Thread mAudioThread;
 
-    private boolean initAudioRecord(int audioSource, int sampleRateInHz, int channelConfig, int audioFormat) {
-        int minBufferSize = AudioRecord.getMinBufferSize(sampleRateInHz, channelConfig, audioFormat);
-        if (minBufferSize == AudioRecord.ERROR_BAD_VALUE) {
-            Log.e(TAG, "Invalid parameter !");
-            return false;
+    private void startAudioCapture() {
+        // init AudioRecord to record from mic
+        initAudioRecord(MediaRecorder.AudioSource.MIC, DEFAULT_SAMPLE_RATE, DEFAULT_CHANNEL_CONFIG, DEFAULT_DATA_FORMAT);
+
+        mAudioLoopExited = false;
+        mAudioThread = new Thread(new AudioRunnable());
+        mAudioThread.start();
+    }
+
+    private void stopAudioCapture() {
+        mAudioLoopExited = true;
+
+        if (mAudioThread != null) {
+            mAudioThread.interrupt();
+            mAudioThread = null;
         }
-        mAudioRecord = new AudioRecord(audioSource, sampleRateInHz, channelConfig, audioFormat, minBufferSize * 4);
-        if (mAudioRecord.getState() == AudioRecord.STATE_UNINITIALIZED) {
-            Log.e(TAG, "AudioRecord initialize fail !");
-            return false;
+        if (mAudioSource != null) {
+            mAudioSource.stop();
+            mAudioSource.release();
+            mAudioSource = null;
         }
+    }
 
-        mAudioRecord.startRecording();
+    private boolean initAudioRecord(int audioSource, int sampleRateInHz, int channelConfig, int audioFormat) {
+        PcmSource source = new AudioRecordPcmSource(audioSource, sampleRateInHz, channelConfig, audioFormat);
+        if (!source.start()) {
+            return false;
+        }
+        mAudioSource = source;
         return true;
     }
 
     private class AudioRunnable implements Runnable {
+        private static final int CHUNK_SIZE = 1024 * 2;
         private byte[] mBuffer;
 
         @Override
@@ -298,22 +541,33 @@ public class ScreenCapture {
         }
 
         private void enqueueAudioFrame(boolean endOfStream) {
-            if (mBuffer == null) {
-                mBuffer = new byte[1024 * 2]; // prevent recreate buffer
-            }
-            if (mAudioRecord == null) {
+            PcmSource source = mAudioSource;
+            if (source == null) {
                 return;
             }
 
-            int ret = mAudioRecord.read(mBuffer, 0, mBuffer.length);
-            if (ret == AudioRecord.ERROR_INVALID_OPERATION) {
+            if (mDirectAudioCapture && (mRecorder.isRecording() || mRecorder.isReplaying())) {
+                int ret = mRecorder.captureAudioFrame(source, CHUNK_SIZE, endOfStream);
+                if (ret == PcmSource.ERROR_BAD_VALUE) {
+                    Log.e(TAG, "Error ERROR_BAD_VALUE");
+                }
+                if (ret != PcmSource.ERROR_INVALID_OPERATION) {
+                    return;
+                }
+                // The encoder isn't ready yet (or is going away), keep reading to stay paced
+            }
+
+            if (mBuffer == null) {
+                mBuffer = new byte[CHUNK_SIZE]; // prevent recreate buffer
+            }
+            int ret = source.read(mBuffer, 0, mBuffer.length);
+            if (ret == PcmSource.ERROR_INVALID_OPERATION) {
                 Log.e(TAG, "Error ERROR_INVALID_OPERATION");
-            } else if (ret == AudioRecord.ERROR_BAD_VALUE) {
+            } else if (ret == PcmSource.ERROR_BAD_VALUE) {
                 Log.e(TAG, "Error ERROR_BAD_VALUE");
             } else {
                 ByteBuffer buf = ByteBuffer.wrap(mBuffer);
                 sendAudioFrame(buf, ret, endOfStream);
-                Log.d(TAG, "AudioLoopExiting, add flag end of stream");
             }
         }
     }
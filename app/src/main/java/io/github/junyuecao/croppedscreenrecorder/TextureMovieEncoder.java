@@ -29,13 +29,27 @@ import android.support.annotation.RequiresApi;
 import android.util.Log;
 import android.view.Surface;
 import io.github.junyuecao.croppedscreenrecorder.gles.EglCore;
+import io.github.junyuecao.croppedscreenrecorder.gles.OffscreenSurface;
 import io.github.junyuecao.croppedscreenrecorder.gles.Texture2dProgram;
 import io.github.junyuecao.croppedscreenrecorder.gles.WindowSurface;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.AudioEncodeStage;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.FrameLatencyTracker;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.FrameRing;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.LatencySummary;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.MuxerWriter;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.PcmSource;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.PtsSanitizer;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.ReplayBuffer;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.SegmentRing;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.TrackDrainer;
 
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -61,6 +75,16 @@ import java.nio.ByteBuffer;
  * call TextureMovieEncoder#frameAvailable().
  * </ul>
  * <p>
+ * To cut the time from asking for a recording to its first frame, call
+ * TextureMovieEncoder#prepare() ahead of time: the thread, the EGL context, the input surface
+ * and the encoders are set up and kept warm, and startRecording() then only opens the file.
+ * After each recording the engine is warmed again, until TextureMovieEncoder#release().
+ * <p>
+ * The thread, the EGL context, the program and the input SurfaceTexture belong to a session
+ * that lasts until TextureMovieEncoder#release(); only the encoders and the EGL surface on
+ * their input are built per recording, so back-to-back recordings don't churn threads or GL
+ * objects.
+ * <p>
  * TODO: tweak the API (esp. textureId) so it's less awkward for simple use cases.
  */
 @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
@@ -73,44 +97,84 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
     private static final int MSG_FRAME_AVAILABLE = 2;
     private static final int MSG_SET_TEXTURE_ID = 3;
     private static final int MSG_UPDATE_SHARED_CONTEXT = 4;
-    private static final int MSG_AUDIO_FRAME_AVAILABLE = 5;
     private static final int MSG_QUIT = 6;
+    private static final int MSG_RECORD_STATS = 7;
+    private static final int MSG_PREPARE = 8;
+
+    /** Segment length of circular recording, unless segmentation is set */
+    public static final long DEFAULT_CIRCULAR_SEGMENT_MS = 60000;
     // ----- accessed exclusively by encoder thread -----
+    // Per recording
     private WindowSurface mInputWindowSurface;
+    // Per session: see prepareSession()
     private EglCore mEglCore;
+    private OffscreenSurface mIdleSurface;
+    private EGLContext mSessionEglContext;
+    private int mSessionWidth;
+    private int mSessionHeight;
+    private int mSessionsBuilt;
     private MainFrameRect mFullScreen;
     private int mTextureId;
     private int mFrameNum;
-    private VideoEncoderCore mVideoEncoder;
+    private volatile VideoEncoderCore mVideoEncoder;
+    // What the warm engine was built for, null once it records
+    private EncoderConfig mPreparedConfig;
+    private final float[] mRedrawTransform = new float[16];
 
     // ----- accessed by multiple threads -----
     private volatile EncoderHandler mHandler;
-
-    private final Object mReadyFence = new Object();      // guards ready/running
+    // Frames from the SurfaceTexture listener thread to the encoder thread
+    private final FrameRing mFrames = new FrameRing(FrameRing.DEFAULT_CAPACITY);
+    // In coalescing mode, set while a MSG_FRAME_AVAILABLE is queued
+    private final AtomicBoolean mFramePending = new AtomicBoolean();
+    private volatile boolean mCoalesceFrames;
+    // Available events that found the frame ring full; their buffers still need latching
+    private final AtomicInteger mMissedLatches = new AtomicInteger();
+    private final FrameLatencyTracker mFrameLatency = new FrameLatencyTracker();
+
+    private final Object mReadyFence = new Object();      // guards ready/running/recording
     private boolean mReady;
     private boolean mRunning;
+    private boolean mRecording;
+    // Set while the engine is to be kept warm between recordings
+    private volatile EncoderConfig mWarmConfig;
     private Callback mCallback;
     private HandlerThread mVideoFrameSender;
     private Handler mVideoFrameHandler;
     private SurfaceTexture mSurfaceTexture;
-    private Runnable mUpdate = new Runnable() {
-        @Override
-        public void run() {
-            if (mSurfaceTexture != null) {
-                mSurfaceTexture.updateTexImage();
-            }
-        }
-    };
     private Surface mSurface;
     private float mTopCropped;
     private float mBottomCropped;
-    private float[] mTransform;
     private RecordCallback mRecordCallback;
+    private volatile MuxerWriter.OverflowPolicy mOverflowPolicy = MuxerWriter.OverflowPolicy.BLOCK;
+    private volatile PtsSanitizer.Policy mPtsPolicy = PtsSanitizer.Policy.CLAMP;
+    private volatile VideoEncoderCore.Container mContainer = VideoEncoderCore.Container.MP4;
+    private volatile long mSegmentDurationMs;
+    private volatile long mSegmentBytes;
+    private volatile long mCircularQuotaBytes;
+    // Encoder thread only, kept while the quota and directory stay the same
+    private SegmentRing mSegmentRing;
+    private volatile long mReplayWindowMs;
+    private volatile int mReplayBudgetBytes;
+    // Kept across recordings for as long as the engine is warm
+    private volatile ReplayBuffer mReplay;
+    private volatile long mStatsIntervalMs;
+    private volatile long mProgressIntervalMs = VideoEncoderCore.DEFAULT_PROGRESS_INTERVAL_MS;
+    private volatile Executor mStatsExecutor;
     // Should save first frame as a cover
     private boolean mFirstFrameSaved;
     private int mVideoWidth;
     private int mVideoHeight;
     private File mCoverImageFile;
+    // ----- frame statistics, encoder thread only -----
+    private long mLastTimestampNanos;
+    private int mDuplicateFrames;
+    private long mSwappedFrames;
+    private long mDroppedFramesAtStart;
+    private long mLastStatsNanos;
+    private long mLastStatsFrames;
+    private long mLastStatsVideoBytes;
+    private long mLastStatsAudioBytes;
 
     public Callback getCallback() {
         return mCallback;
@@ -120,39 +184,80 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
         mCallback = callback;
     }
 
+    /**
+     * Builds the encoder engine ahead of recording and keeps it warm, also between recordings,
+     * until {@link #release()}.  (Call from non-encoder thread.)
+     * <p>
+     * Starts the thread if needed, which creates the EGL context, the input surface and the
+     * encoders using the provided configuration, without an output file.
+     *
+     * @param config what to record; the output file is ignored
+     */
+    public void prepare(EncoderConfig config) {
+        Log.d(TAG, "Encoder: prepare()");
+        synchronized(mReadyFence) {
+            mWarmConfig = config;
+            startThreadLocked();
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_PREPARE, config));
+    }
+
+    /**
+     * @see #startRecording(EncoderConfig, long)
+     */
+    public void startRecording(EncoderConfig config) {
+        startRecording(config, System.nanoTime());
+    }
+
     /**
      * Tells the video recorder to start recording.  (Call from non-encoder thread.)
      * <p>
-     * Creates a new thread, which will create an encoder using the provided configuration.
+     * Starts the thread if needed, which will create an encoder using the provided
+     * configuration, or just open the output file if a warm engine built by {@link #prepare}
+     * fits it.
      * <p>
      * Returns after the recorder thread has started and is ready to accept Messages.  The
      * encoder may not yet be fully configured.
+     *
+     * @param requestedNanos when the recording was asked for, by System.nanoTime(); the time to
+     *                       its first key frame is reported as the startup latency
      */
-    public void startRecording(EncoderConfig config) {
+    public void startRecording(EncoderConfig config, long requestedNanos) {
         Log.d(TAG, "Encoder: startRecording()");
         synchronized(mReadyFence) {
-            if (mRunning) {
-                Log.w(TAG, "Encoder thread already running");
+            if (mRecording) {
+                Log.w(TAG, "Encoder already recording");
                 return;
             }
-            mRunning = true;
-            new Thread(this, "TextureMovieEncoder").start();
-            while (!mReady) {
-                try {
-                    mReadyFence.wait();
-                } catch (InterruptedException ie) {
-                    // ignore
-                }
-            }
+            mRecording = true;
+            startThreadLocked();
         }
 
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_START_RECORDING, config));
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_START_RECORDING,
+                (int) (requestedNanos >> 32), (int) requestedNanos, config));
+    }
+
+    private void startThreadLocked() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        new Thread(this, "TextureMovieEncoder").start();
+        while (!mReady) {
+            try {
+                mReadyFence.wait();
+            } catch (InterruptedException ie) {
+                // ignore
+            }
+        }
     }
 
     /**
      * Tells the video recorder to stop recording.  (Call from non-encoder thread.)
      * <p>
      * Returns immediately; the encoder/muxer may not yet be finished creating the movie.
+     * The thread and the session stay for the next recording, until {@link #release()}.  If
+     * the engine is kept warm (see {@link #prepare}) its encoders are built again right away.
      * <p>
      * TODO: have the encoder thread invoke a callback on the UI thread just before it shuts down
      * so we can provide reasonable status UI (and let the caller know that movie encoding
@@ -163,26 +268,86 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
             if (!mReady) {
                 return;
             }
+            mRecording = false;
         }
 
-        mHandler.removeCallbacks(mUpdate);
         synchronized(this) {
+            // Stop skips the frame backlog: handleStopRecording() latches the frames still in
+            // the ring without drawing them, so their messages can go.  It stays behind a
+            // queued prepare or start though, so it always stops the recording they open.
+            mHandler.removeMessages(MSG_FRAME_AVAILABLE);
             mHandler.sendMessage(mHandler.obtainMessage(MSG_STOP_RECORDING));
-            mHandler.sendMessage(mHandler.obtainMessage(MSG_QUIT));
         }
         // We don't know when these will actually finish (or even start).  We don't want to
         // delay the UI thread though, so we return immediately.
     }
 
+    /**
+     * Stops recording if needed, drops the warm engine, releases the session and ends the
+     * thread.  Call once done recording.  (Call from non-encoder thread.)
+     */
+    public void release() {
+        synchronized(mReadyFence) {
+            mWarmConfig = null;
+            if (!mReady) {
+                return;
+            }
+            mRecording = false;
+        }
+
+        synchronized(this) {
+            // The frames still in the ring are latched by handleStopRecording()
+            mHandler.removeMessages(MSG_FRAME_AVAILABLE);
+            mHandler.removeMessages(MSG_PREPARE);
+            mHandler.sendMessage(mHandler.obtainMessage(MSG_STOP_RECORDING));
+            mHandler.sendMessage(mHandler.obtainMessage(MSG_QUIT));
+        }
+    }
+
     /**
      * Returns true if recording has been started.
      */
     public boolean isRecording() {
         synchronized(mReadyFence) {
-            return mRunning;
+            return mRecording;
         }
     }
 
+    /**
+     * Pauses recording: frames and audio are discarded until {@link #resume()}, while the
+     * encoders, the muxer and the EGL context stay up, so it all goes into one file.  (Call from
+     * non-encoder thread.)
+     *
+     * @return false if the encoder isn't ready
+     */
+    public boolean pause() {
+        VideoEncoderCore encoder = mVideoEncoder;
+        if (encoder == null) {
+            return false;
+        }
+        encoder.pause();
+        return true;
+    }
+
+    /**
+     * Resumes a paused recording.  (Call from non-encoder thread.)
+     *
+     * @return false if the encoder isn't ready
+     */
+    public boolean resume() {
+        VideoEncoderCore encoder = mVideoEncoder;
+        if (encoder == null) {
+            return false;
+        }
+        encoder.resume();
+        return true;
+    }
+
+    public boolean isPaused() {
+        VideoEncoderCore encoder = mVideoEncoder;
+        return encoder != null && encoder.isPaused();
+    }
+
     /**
      * Tells the video recorder to refresh its EGL surface.  (Call from non-encoder thread.)
      */
@@ -201,6 +366,10 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
     /**
      * Tells the video recorder that a new frame is available.  (Call from non-encoder thread.)
      * <p>
+     * The transform and timestamp are copied into a free slot of the frame ring, so nothing is
+     * allocated per frame.  If the encoder thread is a full ring behind, the frame is dropped.
+     * Frames must all be reported from the same thread.
+     * <p>
      * This function sends a message and returns immediately.  This isn't sufficient -- we
      * don't want the caller to latch a new frame until we're done with this one -- but we
      * can get away with it so long as the input frame rate is reasonable and the encoder
@@ -218,10 +387,6 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
             }
         }
 
-        if (mTransform == null) {
-            mTransform = new float[16];
-        }
-        st.getTransformMatrix(mTransform);
         if (timestamp == 0) {
             // Seeing this after device is toggled off/on with power button.  The
             // first frame back has a zero timestamp.
@@ -232,8 +397,22 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
             return;
         }
 
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE,
-                (int) (timestamp >> 32), (int) timestamp, mTransform));
+        FrameRing.Frame frame = mFrames.claim();
+        if (frame == null) {
+            Log.w(TAG, "Encoder is behind, dropping frame");
+            return;
+        }
+        st.getTransformMatrix(frame.transform);
+        frame.timestampNanos = timestamp;
+        frame.latched = true;
+        publishFrame();
+    }
+
+    private void publishFrame() {
+        mFrames.publish();
+        if (!mCoalesceFrames || mFramePending.compareAndSet(false, true)) {
+            mHandler.sendEmptyMessage(MSG_FRAME_AVAILABLE);
+        }
     }
 
     public void audioFrameAvailable(ByteBuffer buffer, int size, boolean endOfStream) {
@@ -242,9 +421,31 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
                 return;
             }
         }
-        if (mVideoEncoder != null) {
-            mVideoEncoder.enqueueAudioFrame(buffer, size, endOfStream);
+        VideoEncoderCore encoder = mVideoEncoder;
+        // A warm engine doesn't take audio before it records, unless for the replay
+        if (encoder != null && (encoder.isOutputOpen() || encoder.isReplaying())) {
+            encoder.enqueueAudioFrame(buffer, size, endOfStream);
+        }
+    }
+
+    /**
+     * Reads an audio chunk from {@code source} straight into the audio encoder's ring.  (Call
+     * from the audio capture thread.)
+     *
+     * @return number of bytes read or an ERROR_* code of {@link PcmSource}, or
+     * {@link PcmSource#ERROR_INVALID_OPERATION} without reading if the encoder isn't ready
+     */
+    public int captureAudioFrame(PcmSource source, int size, boolean endOfStream) {
+        synchronized(mReadyFence) {
+            if (!mReady) {
+                return PcmSource.ERROR_INVALID_OPERATION;
+            }
         }
+        VideoEncoderCore encoder = mVideoEncoder;
+        if (encoder == null || !encoder.isOutputOpen() && !encoder.isReplaying()) {
+            return PcmSource.ERROR_INVALID_OPERATION;
+        }
+        return encoder.captureAudioFrame(source, size, endOfStream);
     }
 
     /**
@@ -281,7 +482,7 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
 
         Log.d(TAG, "Encoder thread exiting");
         synchronized(mReadyFence) {
-            mReady = mRunning = false;
+            mReady = mRunning = mRecording = false;
             mHandler = null;
         }
     }
@@ -294,42 +495,412 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
         return mRecordCallback;
     }
 
+    /**
+     * Sets what the muxer writer does when its queue is full.  Takes effect on the next recording.
+     */
+    public void setMuxerOverflowPolicy(MuxerWriter.OverflowPolicy policy) {
+        mOverflowPolicy = policy;
+    }
+
+    public MuxerWriter.OverflowPolicy getMuxerOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /**
+     * Sets what happens to samples whose timestamp doesn't increase.  Takes effect on the next
+     * recording.
+     */
+    public void setPtsPolicy(PtsSanitizer.Policy policy) {
+        mPtsPolicy = policy;
+    }
+
+    public PtsSanitizer.Policy getPtsPolicy() {
+        return mPtsPolicy;
+    }
+
+    /**
+     * Sets the file format recordings are written in.  Takes effect on the next recording.
+     */
+    public void setContainer(VideoEncoderCore.Container container) {
+        mContainer = container;
+    }
+
+    public VideoEncoderCore.Container getContainer() {
+        return mContainer;
+    }
+
+    /**
+     * Splits recordings into segments cut on key frames, without restarting the encoder.
+     * Takes effect on the next recording.
+     *
+     * @param durationMs media time after which a segment is cut, 0 for no limit
+     * @param bytes      sample data after which a segment is cut, 0 for no limit.  With neither
+     *                   limit, a recording is a single file.
+     */
+    public void setSegmentation(long durationMs, long bytes) {
+        mSegmentDurationMs = durationMs;
+        mSegmentBytes = bytes;
+    }
+
+    public long getSegmentDurationMs() {
+        return mSegmentDurationMs;
+    }
+
+    public long getSegmentBytes() {
+        return mSegmentBytes;
+    }
+
+    /**
+     * Records circularly, dashcam style: recordings are split into segments, and the oldest
+     * segments in the output directory are deleted to stay within {@code quotaBytes}.  Segments
+     * are {@link #DEFAULT_CIRCULAR_SEGMENT_MS} long unless {@link #setSegmentation} says
+     * otherwise.  Takes effect on the next recording.
+     *
+     * @param quotaBytes storage the segments may take, 0 to turn it off
+     */
+    public void setCircularRecording(long quotaBytes) {
+        mCircularQuotaBytes = quotaBytes;
+    }
+
+    public long getCircularQuotaBytes() {
+        return mCircularQuotaBytes;
+    }
+
+    /**
+     * Keeps the last {@code windowMs} of encoded samples in memory while the engine is warm,
+     * recording or not, so it can be saved with {@link #saveReplay}.  Takes effect on the next
+     * {@link #prepare}.
+     *
+     * @param windowMs    how much to keep, 0 to turn it off
+     * @param budgetBytes memory the samples may take, allocated up front
+     */
+    public void setInstantReplay(long windowMs, int budgetBytes) {
+        mReplayWindowMs = windowMs;
+        mReplayBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * @return true while encoded samples are kept for a replay
+     */
+    public boolean isReplaying() {
+        return mReplay != null;
+    }
+
+    /**
+     * Writes the last {@code durationMs} kept for the replay to {@code file}, on a thread of its
+     * own, without interrupting capture.  The result goes to
+     * {@link RecordCallback.ReplayListener#onReplaySaved} or
+     * {@link RecordCallback.ReplayListener#onReplayFailed}, if the callback is one.  (Call from
+     * non-encoder thread.)
+     *
+     * @return false if no replay is kept
+     */
+    public boolean saveReplay(final File file, final long durationMs) {
+        final ReplayBuffer replay = mReplay;
+        if (replay == null) {
+            return false;
+        }
+        final VideoEncoderCore.Container container = mContainer;
+        RecordCallback callback = mRecordCallback;
+        final RecordCallback.ReplayListener listener =
+                callback instanceof RecordCallback.ReplayListener
+                        ? (RecordCallback.ReplayListener) callback : null;
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final long durationUs = replay.save(
+                            VideoEncoderCore.createMuxer(file, container.getSingleFileContainer()),
+                            durationMs * 1000);
+                    Log.d(TAG, "replay saved to " + file + ", " + durationUs + "us");
+                    if (listener != null) {
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onReplaySaved(file.toString(), durationUs / 1000);
+                            }
+                        });
+                    }
+                } catch (final Exception e) {
+                    Log.w(TAG, "Saving replay failed:", e);
+                    file.delete();
+                    if (listener != null) {
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onReplayFailed(e);
+                            }
+                        });
+                    }
+                }
+            }
+        }, "ReplaySaver").start();
+        return true;
+    }
+
+    /**
+     * Sets whether frames are coalesced when the encoder thread falls behind.  When on, only the
+     * newest pending frame is drawn and the older ones are counted as skipped, so latency stays
+     * bounded.  When off, every frame is drawn.
+     */
+    public void setFrameCoalescing(boolean coalescing) {
+        mCoalesceFrames = coalescing;
+    }
+
+    public boolean isFrameCoalescing() {
+        return mCoalesceFrames;
+    }
+
+    /**
+     * Has {@link RecordCallback.StatsListener#onRecordStats} called every {@code intervalMs}
+     * while recording, if the callback is one.
+     * Takes effect on the next recording.
+     *
+     * @param intervalMs how often to report, 0 to turn reporting off
+     * @param executor   where the callback runs
+     */
+    public void setRecordStatsInterval(long intervalMs, Executor executor) {
+        mStatsExecutor = executor;
+        mStatsIntervalMs = intervalMs;
+    }
+
+    /**
+     * Sets how much recorded media time passes between two
+     * {@link RecordCallback#onRecordedDurationChanged} calls.  Takes effect on the next recording.
+     */
+    public void setProgressInterval(long intervalMs) {
+        mProgressIntervalMs = intervalMs;
+    }
+
+    /**
+     * Returns the per-stage latency of the video frames of the current or last recording.  May be
+     * read at any time.
+     */
+    public FrameLatencyTracker getFrameLatency() {
+        return mFrameLatency;
+    }
+
     /**
      * Starts recording.
      */
-    private void handleStartRecording(EncoderConfig config) {
+    private void handleStartRecording(EncoderConfig config, long requestedNanos) {
         Log.d(TAG, "handleStartRecording " + config);
+        // A frame latched while warm is drawn first, rather than waiting for the screen to change
+        boolean haveWarmFrame = mLastTimestampNanos != 0;
         mFrameNum = 0;
-        prepareEncoder(config);
+        // Frames left over from the previous recording; the newest is then latched and can be
+        // drawn right away too
+        if (discardPendingFrames()) {
+            haveWarmFrame = true;
+        }
+        mLastTimestampNanos = 0;
+        mDuplicateFrames = 0;
+        mFrameLatency.reset();
+        mSwappedFrames = 0;
+        mDroppedFramesAtStart = mFrames.getDroppedFrames() + mFrames.getSkippedFrames();
+        mLastStatsNanos = System.nanoTime();
+        mLastStatsFrames = 0;
+        mLastStatsVideoBytes = 0;
+        mLastStatsAudioBytes = 0;
+        mFrameLatency.startRequested(requestedNanos);
+        if (mVideoEncoder != null && mPreparedConfig != null && mPreparedConfig.fits(config)) {
+            applyRecordingSettings();
+            try {
+                openOutput(config.mOutputFile);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+            mCoverImageFile = getCoverFile(config.mOutputFile);
+            if (haveWarmFrame) {
+                redrawLatchedFrame();
+            }
+        } else {
+            if (mVideoEncoder != null) {
+                Log.d(TAG, "Warm engine doesn't fit " + config + ", building a new one");
+                releaseEncoder();
+            }
+            prepareEncoder(config);
+        }
+        mPreparedConfig = null;
+        if (mStatsIntervalMs > 0 && mStatsExecutor != null) {
+            mHandler.sendEmptyMessageDelayed(MSG_RECORD_STATS, mStatsIntervalMs);
+        }
     }
 
     /**
      * Handles notification of an available frame.
      * <p>
-     * The texture is rendered onto the encoder's input surface, along with a moving
-     * box (just because we can).
+     * The oldest frame in the frame ring is rendered onto the encoder's input surface, along
+     * with a moving box (just because we can).
      * <p>
-     *
-     * @param transform      The texture transform, from SurfaceTexture.
-     * @param timestampNanos The frame's timestamp, from SurfaceTexture.
+     * Frames from our own SurfaceTexture are latched here, on the thread owning the GL context:
+     * one updateTexImage() per available event, so every buffer is latched once and in order,
+     * and the transform and timestamp are the ones of the buffer being drawn.
      */
-    private void handleFrameAvailable(float[] transform, long timestampNanos) {
+    private void handleFrameAvailable() {
+        int skipped = 0;
+        if (mCoalesceFrames) {
+            // Cleared before looking at the ring, so a frame published from now on sends a
+            // new message
+            mFramePending.set(false);
+            skipped = mFrames.skipToLatest();
+            if (VERBOSE && skipped > 0) {
+                Log.d(TAG, "Skipped " + skipped + " stale frames");
+            }
+        }
+        FrameRing.Frame frame = mFrames.peek();
+        if (frame == null) {
+            return;
+        }
+        if (!frame.latched) {
+            // Skipped and missed frames are latched too, so the newest buffer ends up current
+            int latches = 1 + skipped + mMissedLatches.getAndSet(0);
+            for (int i = 0; i < latches; i++) {
+                mSurfaceTexture.updateTexImage();
+            }
+            mSurfaceTexture.getTransformMatrix(frame.transform);
+            frame.timestampNanos = mSurfaceTexture.getTimestamp();
+        }
+        long latchedNanos = frame.latched ? frame.availableNanos : System.nanoTime();
+        long availableNanos = frame.availableNanos;
+        long timestampNanos = frame.timestampNanos;
+        if (timestampNanos == 0 || timestampNanos == mLastTimestampNanos) {
+            // Zero: see frameAvailable().  Same timestamp: this buffer has been drawn already
+            if (timestampNanos != 0) {
+                mDuplicateFrames++;
+            }
+            mFrames.release();
+            return;
+        }
+        mLastTimestampNanos = timestampNanos;
+        if (mVideoEncoder == null
+                || !mVideoEncoder.isOutputOpen() && !mVideoEncoder.isReplaying()
+                || mVideoEncoder.getMediaClock().isPausedAt(timestampNanos / 1000)) {
+            // Latched so the next buffer can come, but not recorded
+            mFrames.release();
+            return;
+        }
         if (VERBOSE) {
-            Log.d(TAG, "handleFrameAvailable tr=" + transform);
+            Log.d(TAG, "handleFrameAvailable ts=" + timestampNanos);
         }
 
         mVideoEncoder.drainEncoder(false);
-        mFullScreen.drawFrame(mTextureId, transform);
+        mFullScreen.drawFrame(mTextureId, frame.transform);
+        mFrames.release();
 
         if (BuildConfig.DEBUG) {
             drawBox(mFrameNum++);
         }
+        // The encoder reports the frame with the presentation time in microseconds
+        mFrameLatency.frameDrawn(timestampNanos / 1000, timestampNanos, availableNanos,
+                latchedNanos, System.nanoTime());
 
         // used for save a frame
         // saveFirstFrame();
 
         mInputWindowSurface.setPresentationTime(timestampNanos);
         mInputWindowSurface.swapBuffers();
+        mFrameLatency.frameSwapped(System.nanoTime());
+        mSwappedFrames++;
+    }
+
+    /**
+     * Drops the frames waiting in the frame ring without drawing them.  Buffers of our own
+     * SurfaceTexture not latched yet, including those the ring had no room for, are latched
+     * first, so the BufferQueue gets them back and the newest ends up current.
+     *
+     * @return true if a buffer was latched
+     */
+    private boolean discardPendingFrames() {
+        // Cleared first, like handleFrameAvailable(), so a frame published from now on sends a
+        // new message
+        mFramePending.set(false);
+        int latches = mMissedLatches.getAndSet(0);
+        FrameRing.Frame frame;
+        while ((frame = mFrames.peek()) != null) {
+            if (!frame.latched) {
+                latches++;
+            }
+            mFrames.release();
+        }
+        if (mSurfaceTexture == null) {
+            return false;
+        }
+        for (int i = 0; i < latches; i++) {
+            mSurfaceTexture.updateTexImage();
+        }
+        return latches > 0;
+    }
+
+    /**
+     * Draws the frame currently latched in the SurfaceTexture again, stamped now, so a recording
+     * started on a warm engine has a first frame right away.
+     */
+    private void redrawLatchedFrame() {
+        mSurfaceTexture.getTransformMatrix(mRedrawTransform);
+        mFullScreen.drawFrame(mTextureId, mRedrawTransform);
+        mInputWindowSurface.setPresentationTime(System.nanoTime());
+        mInputWindowSurface.swapBuffers();
+        mSwappedFrames++;
+    }
+
+    /**
+     * Takes a {@link RecordStats} snapshot, hands it to the stats executor and schedules the
+     * next one.
+     */
+    private void handleRecordStats() {
+        final RecordCallback callback = mRecordCallback;
+        Executor executor = mStatsExecutor;
+        long intervalMs = mStatsIntervalMs;
+        MuxerWriter muxer = mVideoEncoder != null ? mVideoEncoder.getMuxerWriter() : null;
+        if (muxer == null || executor == null || intervalMs <= 0) {
+            return;
+        }
+        TrackDrainer video = mVideoEncoder.getVideoDrainer();
+        TrackDrainer audio = mVideoEncoder.getAudioDrainer();
+        AudioEncodeStage audioStage = mVideoEncoder.getAudioStage();
+
+        long now = System.nanoTime();
+        long elapsedNanos = Math.max(1, now - mLastStatsNanos);
+        long frames = video.getWrittenSamples();
+        long videoBytes = video.getWrittenBytes();
+        long audioBytes = audio.getWrittenBytes();
+        float fps = (frames - mLastStatsFrames) * 1e9f / elapsedNanos;
+        long videoBitrate = (videoBytes - mLastStatsVideoBytes) * 8 * 1000000000L / elapsedNanos;
+        long audioBitrate = (audioBytes - mLastStatsAudioBytes) * 8 * 1000000000L / elapsedNanos;
+        long dequeued = frames + video.getDiscardedSamples();
+        long dropped = mFrames.getDroppedFrames() + mFrames.getSkippedFrames()
+                - mDroppedFramesAtStart + muxer.getDroppedSamples();
+        LatencySummary latency = mFrameLatency.summarize();
+        long startupNanos = latency.getStartupNanos();
+
+        final RecordStats stats = new RecordStats(mVideoEncoder.getRecordedDurationMs(),
+                frames, fps, dropped, videoBitrate, audioBitrate, muxer.getWrittenBytes(),
+                (int) Math.max(0, mSwappedFrames - dequeued), muxer.getQueueDepth(),
+                audioStage.getOverruns(), audioStage.getOccupancy(),
+                mVideoEncoder.getMediaClock().getAudioDriftUs(),
+                latency.getP50Nanos(FrameLatencyTracker.Interval.TOTAL) / 1000,
+                latency.getP99Nanos(FrameLatencyTracker.Interval.TOTAL) / 1000,
+                startupNanos < 0 ? -1 : startupNanos / 1000000);
+        mLastStatsNanos = now;
+        mLastStatsFrames = frames;
+        mLastStatsVideoBytes = videoBytes;
+        mLastStatsAudioBytes = audioBytes;
+        if (VERBOSE) {
+            Log.d(TAG, stats.toString());
+        }
+
+        if (callback instanceof RecordCallback.StatsListener) {
+            final RecordCallback.StatsListener listener = (RecordCallback.StatsListener) callback;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onRecordStats(stats);
+                }
+            });
+        }
+        mHandler.sendEmptyMessageDelayed(MSG_RECORD_STATS, intervalMs);
     }
 
     // private void saveFirstFrame() {
@@ -351,21 +922,50 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
 
     /**
      *
-     * @param mp4 get screenshot file
+     * @param recording get screenshot file
      * @return screenshot file
      */
-    private File getCoverFile(@NonNull File mp4) {
-        return new File(mp4.getParent(), "cover_" + mp4.getName().replace(".mp4", "") + ".jpg");
+    private File getCoverFile(@NonNull File recording) {
+        String name = recording.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(recording.getParent(),
+                "cover_" + (dot > 0 ? name.substring(0, dot) : name) + ".jpg");
     }
 
     /**
      * Handles a request to stop encoding.
      */
     private void handleStopRecording() {
-        Log.d(TAG, "handleStopRecording");
-
-        mVideoEncoder.drainEncoder(true);
+        Log.d(TAG, "handleStopRecording, frames dropped so far: " + mFrames.getDroppedFrames()
+                + ", skipped: " + mFrames.getSkippedFrames());
+        Log.d(TAG, "Duplicate frames: " + mDuplicateFrames);
+        mHandler.removeMessages(MSG_RECORD_STATS);
+        // Their MSG_FRAME_AVAILABLE were removed: latch them here, or the SurfaceTexture keeps
+        // their buffers queued into the next recording
+        discardPendingFrames();
+
+        if (mVideoEncoder != null && mVideoEncoder.isOutputOpen()) {
+            mVideoEncoder.drainEncoder(true);
+        }
         releaseEncoder();
+        mPreparedConfig = null;
+        EncoderConfig warmConfig = mWarmConfig;
+        if (warmConfig != null) {
+            handlePrepare(warmConfig);
+        }
+    }
+
+    /**
+     * Builds a warm engine, unless there is an engine already.
+     */
+    private void handlePrepare(EncoderConfig config) {
+        if (mVideoEncoder != null) {
+            return;
+        }
+        Log.d(TAG, "handlePrepare " + config);
+        mLastTimestampNanos = 0;
+        prepareEncoder(config);
+        mPreparedConfig = config;
     }
 
     /**
@@ -377,24 +977,36 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
     }
 
     /**
-     * Tears down the EGL surface and context we've been using to feed the MediaCodec input
-     * surface, and replaces it with a new one that shares with the new context.
+     * Tears down the EGL surfaces and context we've been using to feed the MediaCodec input
+     * surface, and replaces them with new ones that share with the new context.
      * <p>
      * This is useful if the old context we were sharing with went away (maybe a GLSurfaceView
      * that got torn down) and we need to hook up with the new one.
      */
     private void handleUpdateSharedContext(EGLContext newSharedContext) {
         Log.d(TAG, "handleUpdatedSharedContext " + newSharedContext);
+        if (mEglCore == null) {
+            return;
+        }
 
-        // Release the EGLSurface and EGLContext.
-        mInputWindowSurface.releaseEglSurface();
+        // Release the EGLSurfaces and EGLContext.
+        if (mInputWindowSurface != null) {
+            mInputWindowSurface.releaseEglSurface();
+        }
+        mIdleSurface.release();
         mFullScreen.release(false);
         mEglCore.release();
 
-        // Create a new EGLContext and recreate the window surface.
+        // Create a new EGLContext and recreate the surfaces.
         mEglCore = new EglCore(newSharedContext, EglCore.FLAG_RECORDABLE);
-        mInputWindowSurface.recreate(mEglCore);
-        mInputWindowSurface.makeCurrent();
+        mIdleSurface = new OffscreenSurface(mEglCore, 1, 1);
+        if (mInputWindowSurface != null) {
+            mInputWindowSurface.recreate(mEglCore);
+            mInputWindowSurface.makeCurrent();
+        } else {
+            mIdleSurface.makeCurrent();
+        }
+        mSessionEglContext = newSharedContext;
 
         // Create new programs and such for the new context.
         mFullScreen = new MainFrameRect(new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
@@ -402,11 +1014,49 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
         mFullScreen.setBottomCropped(mBottomCropped);
     }
 
-    private void handleAudioFrameAvailable(boolean endOfStream) {
-        mVideoEncoder.drainAudio(endOfStream);
+    /**
+     * Sets up what a session keeps across recordings, unless it is set up for {@code config}
+     * already: the EGL context, the program, the input SurfaceTexture and its listener thread.
+     */
+    private void prepareSession(EncoderConfig config) {
+        if (mEglCore != null) {
+            if (mSessionEglContext.equals(config.mEglContext)
+                    && config.mWidth == mSessionWidth && config.mHeight == mSessionHeight) {
+                return;
+            }
+            Log.d(TAG, "Session doesn't fit " + config + ", building a new one");
+            releaseSession();
+        }
+        mSessionEglContext = config.mEglContext;
+        mSessionWidth = config.mWidth;
+        mSessionHeight = config.mHeight;
+        mSessionsBuilt++;
+
+        mEglCore = new EglCore(config.mEglContext, EglCore.FLAG_RECORDABLE);
+        // Keeps the context current between recordings, when there is no encoder surface
+        mIdleSurface = new OffscreenSurface(mEglCore, 1, 1);
+        mIdleSurface.makeCurrent();
+
+        mFullScreen = new MainFrameRect(
+                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+        mTextureId = mFullScreen.createTextureObject();
+
+        Log.d(TAG, "Session " + mSessionsBuilt + ", texture created id: " + mTextureId);
+
+        mVideoFrameSender = new HandlerThread("SurfaceFrameSender");
+        mVideoFrameSender.start();
+        mVideoFrameHandler = new Handler(mVideoFrameSender.getLooper());
+        mSurfaceTexture = new SurfaceTexture(mTextureId);
+        mSurfaceTexture.setOnFrameAvailableListener(this, mVideoFrameHandler); // 为了不阻塞TextureMovieEncoder ，需要额外的线程
+        mSurfaceTexture.setDefaultBufferSize(config.mWidth, config.mHeight);
+        mSurface = new Surface(mSurfaceTexture);
     }
 
+    /**
+     * Builds the encoder of one recording, in the session for {@code config}.
+     */
     private void prepareEncoder(EncoderConfig config) {
+        prepareSession(config);
         mTopCropped = config.mTopCropped;
         mBottomCropped = config.mBottomCropped;
         mVideoHeight = (int) (config.mHeight * (1f - mTopCropped - mBottomCropped));
@@ -414,65 +1064,146 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
             mVideoHeight += 1; // Pixels must be even
         }
         mVideoWidth = config.mWidth;
-        mCoverImageFile = getCoverFile(config.mOutputFile);
         try {
-            mVideoEncoder = new VideoEncoderCore(mVideoWidth, mVideoHeight, config.mBitRate, config.mOutputFile);
-            mVideoEncoder.setRecordCallback(mRecordCallback);
+            // Without a file the engine is warm: the file is opened when recording starts
+            mVideoEncoder = new VideoEncoderCore(mVideoWidth, mVideoHeight, config.mBitRate,
+                    mOverflowPolicy);
+            mVideoEncoder.setReplayBuffer(prepareReplay());
+            applyRecordingSettings();
+            if (config.mOutputFile != null) {
+                mCoverImageFile = getCoverFile(config.mOutputFile);
+                openOutput(config.mOutputFile);
+            }
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
-        mEglCore = new EglCore(config.mEglContext, EglCore.FLAG_RECORDABLE);
         mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface(), true);
         mInputWindowSurface.makeCurrent();
 
-        mFullScreen = new MainFrameRect(
-                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
         mFullScreen.setTopCropped(config.mTopCropped);
         mFullScreen.setBottomCropped(config.mBottomCropped);
 
-        mTextureId = mFullScreen.createTextureObject();
-
-        Log.d(TAG, "Texture created id: " + mTextureId);
-
-        mVideoFrameSender = new HandlerThread("SurfaceFrameSender");
-        mVideoFrameSender.start();
-        mVideoFrameHandler = new Handler(mVideoFrameSender.getLooper());
-        mSurfaceTexture = new SurfaceTexture(mTextureId);
-        mSurfaceTexture.setOnFrameAvailableListener(this, mVideoFrameHandler); // 为了不阻塞TextureMovieEncoder ，需要额外的线程
-        mSurfaceTexture.setDefaultBufferSize(config.mWidth, config.mHeight);
-        mSurface = new Surface(mSurfaceTexture);
-
         if (mCallback != null) {
+            // The same surface for every recording of a session
             mCallback.onInputSurfacePrepared(mSurface);
         }
 
         mFirstFrameSaved = false;
     }
 
+    /**
+     * @return the replay buffer for a new encoder, null if no replay is kept
+     */
+    private ReplayBuffer prepareReplay() {
+        long windowMs = mReplayWindowMs;
+        if (windowMs <= 0 || mWarmConfig == null) {
+            mReplay = null;
+        } else if (mReplay == null || mReplay.getWindowUs() != windowMs * 1000
+                || mReplay.getBudgetBytes() != mReplayBudgetBytes) {
+            mReplay = new ReplayBuffer(windowMs * 1000, mReplayBudgetBytes);
+        }
+        return mReplay;
+    }
+
+    private void openOutput(File outputFile) throws IOException {
+        long segmentDurationMs = mSegmentDurationMs;
+        long segmentBytes = mSegmentBytes;
+        SegmentRing ring = prepareSegmentRing(outputFile.getParentFile());
+        if (ring != null && segmentDurationMs <= 0 && segmentBytes <= 0) {
+            segmentDurationMs = DEFAULT_CIRCULAR_SEGMENT_MS;
+        }
+        mVideoEncoder.setSegmentRing(ring);
+        mVideoEncoder.openOutput(outputFile, mContainer, segmentDurationMs, segmentBytes);
+    }
+
+    /**
+     * @return the ring keeping the quota of circular recording into {@code directory}, null if
+     * not recording circularly
+     */
+    private SegmentRing prepareSegmentRing(File directory) throws IOException {
+        long quotaBytes = mCircularQuotaBytes;
+        if (mSegmentRing != null && (quotaBytes <= 0 || mSegmentRing.getQuotaBytes() != quotaBytes
+                || !mSegmentRing.getDirectory().equals(directory))) {
+            mSegmentRing.close();
+            mSegmentRing = null;
+        }
+        if (quotaBytes > 0 && mSegmentRing == null) {
+            mSegmentRing = new SegmentRing(directory, quotaBytes);
+        }
+        return mSegmentRing;
+    }
+
+    /**
+     * Hands the settings that take effect on the next recording to the encoder.
+     */
+    private void applyRecordingSettings() {
+        mVideoEncoder.setRecordCallback(mRecordCallback);
+        mVideoEncoder.setFrameLatencyTracker(mFrameLatency);
+        mVideoEncoder.setProgressInterval(mProgressIntervalMs);
+        MuxerWriter muxer = mVideoEncoder.getMuxerWriter();
+        muxer.setOverflowPolicy(mOverflowPolicy);
+        muxer.getPtsSanitizer().setPolicy(mPtsPolicy);
+    }
+
+    /**
+     * Called on the SurfaceFrameSender thread.  The frame is latched later on the encoder thread.
+     */
     @Override
     public void onFrameAvailable(SurfaceTexture surfaceTexture) {
-        mHandler.postDelayed(mUpdate, 16);
+        synchronized(mReadyFence) {
+            if (!mReady) {
+                return;
+            }
+        }
 
-        frameAvailable(surfaceTexture);
+        FrameRing.Frame frame = mFrames.claim();
+        if (frame == null) {
+            Log.w(TAG, "Encoder is behind, dropping frame");
+            mMissedLatches.incrementAndGet();
+            return;
+        }
+        frame.latched = false;
+        frame.timestampNanos = 0;
+        publishFrame();
     }
 
+    /**
+     * Releases the encoder of one recording.  The session stays.
+     */
     private void releaseEncoder() {
         if (mVideoEncoder != null) {
             mVideoEncoder.release();
             mVideoEncoder = null;
         }
+        if (mInputWindowSurface != null) {
+            mIdleSurface.makeCurrent();
+            mInputWindowSurface.release();
+            mInputWindowSurface = null;
+        }
+    }
+
+    /**
+     * Releases the encoder and everything the session kept.
+     */
+    private void releaseSession() {
+        releaseEncoder();
         if (mSurface != null) {
             mSurface.release();
             mSurface = null;
         }
-        if (mInputWindowSurface != null) {
-            mInputWindowSurface.release();
-            mInputWindowSurface = null;
+        if (mSurfaceTexture != null) {
+            mSurfaceTexture.setOnFrameAvailableListener(null);
+            mSurfaceTexture.release();
+            mSurfaceTexture = null;
         }
         if (mFullScreen != null) {
-            mFullScreen.release(false);
+            mFullScreen.release(true);
             mFullScreen = null;
         }
+        if (mIdleSurface != null) {
+            mIdleSurface.release();
+            mIdleSurface = null;
+        }
         if (mEglCore != null) {
             mEglCore.release();
             mEglCore = null;
@@ -484,6 +1215,16 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
             mVideoFrameSender.quit();
             mVideoFrameSender = null;
         }
+        mSessionEglContext = null;
+        mReplay = null;
+        if (mSegmentRing != null) {
+            try {
+                mSegmentRing.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close the segment journal:", e);
+            }
+            mSegmentRing = null;
+        }
     }
 
     /**
@@ -539,12 +1280,24 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
             mEglContext = sharedEglContext;
         }
 
+        /**
+         * Returns true if an engine built for this config can record {@code other}: all but the
+         * output file are the same.
+         */
+        boolean fits(EncoderConfig other) {
+            return mWidth == other.mWidth && mHeight == other.mHeight
+                    && mTopCropped == other.mTopCropped && mBottomCropped == other.mBottomCropped
+                    && mBitRate == other.mBitRate
+                    && (mEglContext == null ? other.mEglContext == null
+                            : mEglContext.equals(other.mEglContext));
+        }
+
         @Override
         public String toString() {
             return "EncoderConfig: " + mWidth + "x" + mHeight
                     + ", Crop with: " + mTopCropped + " and " + mBottomCropped
                     + "@" + mBitRate +
-                    " to '" + mOutputFile.toString() + "' ctxt=" + mEglContext;
+                    " to '" + mOutputFile + "' ctxt=" + mEglContext;
         }
     }
 
@@ -571,15 +1324,18 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
 
             switch (what) {
                 case MSG_START_RECORDING:
-                    encoder.handleStartRecording((EncoderConfig) obj);
+                    encoder.handleStartRecording((EncoderConfig) obj,
+                            (((long) inputMessage.arg1) << 32)
+                                    | (((long) inputMessage.arg2) & 0xffffffffL));
+                    break;
+                case MSG_PREPARE:
+                    encoder.handlePrepare((EncoderConfig) obj);
                     break;
                 case MSG_STOP_RECORDING:
                     encoder.handleStopRecording();
                     break;
                 case MSG_FRAME_AVAILABLE:
-                    long timestamp = (((long) inputMessage.arg1) << 32) |
-                            (((long) inputMessage.arg2) & 0xffffffffL);
-                    encoder.handleFrameAvailable((float[]) obj, timestamp);
+                    encoder.handleFrameAvailable();
                     break;
                 case MSG_SET_TEXTURE_ID:
                     encoder.handleSetTexture(inputMessage.arg1);
@@ -587,11 +1343,12 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
                 case MSG_UPDATE_SHARED_CONTEXT:
                     encoder.handleUpdateSharedContext((EGLContext) inputMessage.obj);
                     break;
-                case MSG_AUDIO_FRAME_AVAILABLE:
-                    encoder.handleAudioFrameAvailable(inputMessage.arg1 == 1);
+                case MSG_RECORD_STATS:
+                    encoder.handleRecordStats();
                     break;
                 case MSG_QUIT:
                     Log.d(TAG, "Exit encoder loop");
+                    encoder.releaseSession();
                     Looper.myLooper().quit();
                     break;
                 default:
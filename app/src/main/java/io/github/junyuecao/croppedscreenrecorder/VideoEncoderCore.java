@@ -19,21 +19,41 @@ package io.github.junyuecao.croppedscreenrecorder;
 import static android.os.Build.VERSION_CODES.LOLLIPOP;
 
 import android.media.AudioFormat;
-import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.os.Handler;
 import android.os.Looper;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
 import android.view.Surface;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.AudioEncodeStage;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.DeferredSampleMuxer;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.FragmentedMp4Muxer;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.FrameLatencyTracker;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.MediaClock;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.MediaEncoder;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.MuxerWriter;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.PcmFramer;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.PcmRing;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.PcmSource;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.HlsSampleMuxer;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.ProgressDispatcher;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.PtsSanitizer;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.SampleArena;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.SampleInfo;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.ReplayBuffer;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.SampleMuxer;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.SegmentRing;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.SegmentingSampleMuxer;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.TrackDrainer;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.TrackFormat;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.TsMuxer;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Locale;
+import java.util.concurrent.Executor;
 
 /**
  * This class wraps up the core components used for surface-input video encoding.
@@ -50,6 +70,8 @@ public class VideoEncoderCore {
     private static final String TAG = "VideoEncoderCore";
     private static final boolean VERBOSE = true;
     private static final int TIMEOUT_USEC = 10000;
+    /** How long drainEncoder(true) waits for the async video encoder to deliver EOS */
+    private static final long EOS_TIMEOUT_MS = 1000;
     public static final int DEFAULT_SAMPLE_RATE = 48000;
     public static final int DEFAULT_CHANNEL_CONFIG = 1;
     public static final int DEFAULT_DATA_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
@@ -61,41 +83,118 @@ public class VideoEncoderCore {
     private static final int FRAME_RATE = 24;
     /** 5 seconds between I-frames */
     private static final int IFRAME_INTERVAL = 5;
-    /** Save path */
-    private final String mPath;
+    /** Default media time between two onRecordedDurationChanged() calls */
+    public static final long DEFAULT_PROGRESS_INTERVAL_MS = 100;
+
+    /**
+     * The file format a recording is written in.
+     */
+    public enum Container {
+        /** MPEG-4 written by MediaMuxer.  Its index is written last, so the file only plays once
+         *  the recording stopped cleanly. */
+        MP4(".mp4"),
+        /** Fragmented MPEG-4 written by {@link FragmentedMp4Muxer}, a fragment every couple of
+         *  seconds.  A recording that dies plays up to its last complete fragment. */
+        FRAGMENTED_MP4(".mp4"),
+        /** MPEG-2 transport stream written by {@link TsMuxer}.  A recording that dies plays up
+         *  to where it was cut off. */
+        MPEG_TS(".ts"),
+        /** HLS written by {@link HlsSampleMuxer}: the recording's file is a live playlist,
+         *  rewritten as each MPEG-TS segment is finished, so it can be served while recording.
+         *  Segments are cut on time only, and aren't kept within a {@link SegmentRing}. */
+        HLS(".m3u8");
+
+        private final String mExtension;
+
+        Container(String extension) {
+            mExtension = extension;
+        }
+
+        /**
+         * @return the file name extension of a recording, with the dot
+         */
+        public String getExtension() {
+            return mExtension;
+        }
+
+        /**
+         * @return the container to write a recording in a single file, e.g. a replay: this one,
+         * or MPEG-TS for HLS
+         */
+        public Container getSingleFileContainer() {
+            return this == HLS ? MPEG_TS : this;
+        }
+    }
+
+    /** Save path, null until the output is opened */
+    private volatile String mPath;
+    /** The file format of the output, MP4 unless opened with another */
+    private volatile Container mContainer = Container.MP4;
+    // Set for a warm core, whose output is opened later
+    private final DeferredSampleMuxer mDeferredOutput;
 
     private Surface mInputSurface;
-    private MediaMuxer mMuxer;
-    private MediaCodec mVideoEncoder;
-    private MediaCodec mAudioEncoder;
-    private MediaCodec.BufferInfo mVBufferInfo;
-    private MediaCodec.BufferInfo mABufferInfo;
-    private int mVTrackIndex;
-    private int mATrackIndex;
+    private MuxerWriter mMuxer;
+    private MediaEncoder mVideoEncoder;
+    private MediaEncoder mAudioEncoder;
+    private final TrackDrainer mVideoDrainer;
+    private final TrackDrainer mAudioDrainer;
+    private final AudioEncodeStage mAudioStage;
+    private final MediaClock mClock = new MediaClock();
+    private final SampleInfo mABufferInfo = new SampleInfo();
     private boolean mMuxerStarted;
     private boolean mStreamEnded;
-    private long mRecordStartedAt = 0;
+    // Guards track setup and muxer start: the async video callback and the audio drain run
+    // on different threads
+    private final Object mMuxerLock = new Object();
+    private final boolean mAsyncVideo;
+    private final Object mVideoEosFence = new Object();  // guards mVideoEosReached
+    private boolean mVideoEosReached;
+    private volatile long mRecordStartedAt = 0;
 
     private RecordCallback mCallback;
     private Handler mMainHandler;
-    // is audio empty , if true, we should add a frame of audio data to the muxer
-    private boolean mIsAudioEmpty;
-
-    private Runnable mRecordProgressChangeRunnable = new Runnable() {
+    private FrameLatencyTracker mFrameLatency;
+    private volatile ReplayBuffer mReplay;
+    private volatile SegmentRing mSegmentRing;
 
+    private ProgressDispatcher mProgress;
+    private final Executor mMainExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mMainHandler.post(command);
+        }
+    };
+    private final ProgressDispatcher.Listener mProgressListener = new ProgressDispatcher.Listener() {
         @Override
-        public void run() {
-            if (mCallback != null) {
-                mCallback.onRecordedDurationChanged(System.currentTimeMillis() - mRecordStartedAt);
+        public void onRecordedDurationChanged(long durationMs) {
+            RecordCallback callback = mCallback;
+            if (callback != null) {
+                callback.onRecordedDurationChanged(durationMs);
             }
         }
     };
     private String mCoverPath;
-    private Timer mProgressTimer;
-    private TimerTask mProgressTask = new TimerTask() {
+
+    private final TrackDrainer.Listener mFormatListener = new TrackDrainer.Listener() {
         @Override
-        public void run() {
-            mMainHandler.post(mRecordProgressChangeRunnable);
+        public void onOutputFormatChanged(TrackDrainer drainer, TrackFormat format) {
+            synchronized (mMuxerLock) {
+                // should happen before receiving buffers, and should only happen once
+                if (drainer.getTrackIndex() != -1) {
+                    throw new RuntimeException("format changed twice");
+                }
+                Log.d(TAG, "encoder output format changed: " + format);
+
+                ReplayBuffer replay = mReplay;
+                if (replay != null) {
+                    drainer.setReplayBuffer(replay, replay.addTrack(format));
+                }
+
+                // now that we have the Magic Goodies, start the muxer
+                drainer.setTrackIndex(mMuxer.addTrack(format));
+                tryStartMuxer();
+            }
         }
     };
 
@@ -104,10 +203,115 @@ public class VideoEncoderCore {
      */
     public VideoEncoderCore(int width, int height, int bitRate, File outputFile)
             throws IOException {
+        this(width, height, bitRate, outputFile, MuxerWriter.OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.
+     *
+     * @param overflowPolicy what the muxer writer does when its sample queue is full
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, File outputFile,
+                            MuxerWriter.OverflowPolicy overflowPolicy)
+            throws IOException {
+        this(width, height, bitRate, outputFile, Container.MP4, overflowPolicy);
+    }
+
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.
+     *
+     * @param container      the file format to write
+     * @param overflowPolicy what the muxer writer does when its sample queue is full
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, File outputFile,
+                            Container container, MuxerWriter.OverflowPolicy overflowPolicy)
+            throws IOException {
+        this(new AndroidMediaEncoder(createVideoFormat(width, height, bitRate), true),
+                new AndroidMediaEncoder(createAudioFormat(), false),
+                createMuxer(outputFile, container),
+                outputFile.toString(), overflowPolicy);
+        mContainer = container;
+    }
+
+    /**
+     * Configures and starts the encoders of a warm core, without an output yet.  Call
+     * {@link #openOutput(File)} to start recording.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate,
+                            MuxerWriter.OverflowPolicy overflowPolicy) throws IOException {
+        this(new AndroidMediaEncoder(createVideoFormat(width, height, bitRate), true),
+                new AndroidMediaEncoder(createAudioFormat(), false),
+                new DeferredSampleMuxer(), null, overflowPolicy);
+    }
+
+    /**
+     * Wires up the given encoders and muxer, and starts the encoders.
+     * <p>
+     * If the video encoder is an {@link AndroidMediaEncoder}, its input surface is what
+     * {@link #getInputSurface()} returns; otherwise frames are submitted by the caller.
+     *
+     * @param path where the muxer writes, reported to the callback.  If {@code muxer} is a
+     *             {@link DeferredSampleMuxer} the core is warm: pass null and open the output
+     *             with {@link #openOutput(SampleMuxer, String)}.
+     */
+    public VideoEncoderCore(MediaEncoder videoEncoder, MediaEncoder audioEncoder, SampleMuxer muxer,
+                            String path, MuxerWriter.OverflowPolicy overflowPolicy) {
         mMainHandler = new Handler(Looper.getMainLooper());
-        mVBufferInfo = new MediaCodec.BufferInfo();
-        mABufferInfo = new MediaCodec.BufferInfo();
+        mPath = path;
+        mDeferredOutput = muxer instanceof DeferredSampleMuxer ? (DeferredSampleMuxer) muxer : null;
+
+        // We can't add the video track and start() the muxer here, because our MediaFormat
+        // doesn't have the Magic Goodies.  These can only be obtained from the encoder after
+        // it has started processing data.
+        //
+        // The muxer is owned by a MuxerWriter, which writes samples on its own thread so
+        // storage stalls don't reach the encoder threads.
+        mMuxer = new MuxerWriter(muxer, MuxerWriter.DEFAULT_CAPACITY, overflowPolicy);
+        mMuxer.setMediaClock(mClock);
+        mMuxerStarted = false;
+
+        mVideoEncoder = videoEncoder;
+        mVideoDrainer = new TrackDrainer(videoEncoder, mMuxer, mFormatListener);
+        mAsyncVideo = videoEncoder.setCallback(new MediaEncoder.Callback() {
+            @Override
+            public void onOutputBufferAvailable(MediaEncoder encoder, int index, SampleInfo info) {
+                if (mVideoDrainer.onOutputBufferAvailable(index, info)) {
+                    if (VERBOSE) {
+                        Log.d(TAG, "end of video stream reached");
+                    }
+                    signalVideoEos();
+                }
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaEncoder encoder, TrackFormat format) {
+                mFormatListener.onOutputFormatChanged(mVideoDrainer, format);
+            }
+
+            @Override
+            public void onError(MediaEncoder encoder, Exception e) {
+                Log.w(TAG, "Video encoder error:", e);
+                // Don't let drainEncoder(true) wait for an EOS that will never come
+                signalVideoEos();
+            }
+        });
+        videoEncoder.start();
+        if (videoEncoder instanceof AndroidMediaEncoder) {
+            mInputSurface = ((AndroidMediaEncoder) videoEncoder).getInputSurface();
+        }
 
+        mAudioEncoder = audioEncoder;
+        mAudioDrainer = new TrackDrainer(audioEncoder, mMuxer, mFormatListener);
+        audioEncoder.start();
+        mAudioStage = new AudioEncodeStage(mAudioDrainer, DEFAULT_SAMPLE_RATE, DEFAULT_CHANNEL_CONFIG,
+                PcmRing.DEFAULT_CAPACITY, PcmRing.DEFAULT_CHUNK_SIZE);
+        mAudioStage.setMediaClock(mClock);
+        mAudioStage.start();
+        mStreamEnded = false;
+        setProgressInterval(DEFAULT_PROGRESS_INTERVAL_MS);
+    }
+
+    private static MediaFormat createVideoFormat(int width, int height, int bitRate) {
         MediaFormat videoFormat = MediaFormat.createVideoFormat(VIDEO_MIME_TYPE, width, height);
 
         // Set some properties.  Failing to specify some of these can cause the MediaCodec
@@ -120,38 +324,230 @@ public class VideoEncoderCore {
         if (VERBOSE) {
             Log.d(TAG, "videoFormat: " + videoFormat);
         }
+        return videoFormat;
+    }
 
-        // Create a MediaCodec encoder, and configure it with our videoFormat.  Get a Surface
-        // we can use for input and wrap it with a class that handles the EGL work.
-        mVideoEncoder = MediaCodec.createEncoderByType(VIDEO_MIME_TYPE);
-        mVideoEncoder.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mInputSurface = mVideoEncoder.createInputSurface();
-        mVideoEncoder.start();
-
+    private static MediaFormat createAudioFormat() {
         MediaFormat audioFormat = MediaFormat.createAudioFormat(AUDIO_MIME_TYPE, DEFAULT_SAMPLE_RATE, DEFAULT_CHANNEL_CONFIG);
         audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
         audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, 128000);
         audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, MAX_INPUT_SIZE);
-        mIsAudioEmpty = true;
+        return audioFormat;
+    }
 
-        mAudioEncoder = MediaCodec.createEncoderByType(AUDIO_MIME_TYPE);
-        mAudioEncoder.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mAudioEncoder.start();
-        mStreamEnded = false;
+    static SampleMuxer createMuxer(File outputFile, Container container)
+            throws IOException {
+        switch (container) {
+            case FRAGMENTED_MP4:
+                return new FragmentedMp4Muxer(outputFile.toString());
+            case MPEG_TS:
+                return new TsMuxer(outputFile.toString());
+            case HLS:
+                throw new IllegalArgumentException("HLS isn't a single file, open it on a warm core");
+            default:
+                return new AndroidSampleMuxer(outputFile.toString());
+        }
+    }
 
-        // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
-        // because our MediaFormat doesn't have the Magic Goodies.  These can only be
-        // obtained from the encoder after it has started processing data.
-        //
-        // We're not actually interested in multiplexing audio.  We just want to convert
-        // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
-        mPath = outputFile.toString();
-        mMuxer = new MediaMuxer(mPath,
-                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-
-        mVTrackIndex = -1;
-        mATrackIndex = -1;
-        mMuxerStarted = false;
+    /**
+     * Opens the file a warm core records into, as plain MPEG-4.
+     */
+    public void openOutput(File outputFile) throws IOException {
+        openOutput(outputFile, Container.MP4);
+    }
+
+    /**
+     * Opens the file a warm core records into.
+     *
+     * @param container the file format to write
+     */
+    public void openOutput(File outputFile, Container container) throws IOException {
+        if (container == Container.HLS) {
+            openOutput(outputFile, container, 0, 0);
+            return;
+        }
+        openOutput(createMuxer(outputFile, container), outputFile.toString());
+        mContainer = container;
+    }
+
+    /**
+     * Opens the output of a warm core as a series of segments, named after {@code outputFile}
+     * by {@link #getSegmentFile}.  Each finished segment is reported to a callback that is a
+     * {@link RecordCallback.SegmentListener}; {@link RecordCallback#onRecordSuccess} gets the
+     * last one.  With neither limit set, records into {@code outputFile} alone.
+     * <p>
+     * HLS is always segmented: {@code outputFile} is the playlist, the segments are cut every
+     * {@code segmentDurationMs}, or {@link HlsSampleMuxer#DEFAULT_SEGMENT_DURATION_US}, and
+     * {@link RecordCallback#onRecordSuccess} gets the playlist.
+     *
+     * @param container         the file format of the segments
+     * @param segmentDurationMs media time after which a segment is cut, 0 for no limit
+     * @param segmentBytes      sample data after which a segment is cut, 0 for no limit
+     */
+    public void openOutput(final File outputFile, final Container container,
+                           long segmentDurationMs, long segmentBytes) throws IOException {
+        if (container == Container.HLS) {
+            openHlsOutput(outputFile, segmentDurationMs);
+            return;
+        }
+        if (segmentDurationMs <= 0 && segmentBytes <= 0) {
+            openOutput(outputFile, container);
+            return;
+        }
+        SegmentingSampleMuxer muxer = new SegmentingSampleMuxer(new SegmentingSampleMuxer.Output() {
+            @Override
+            public SampleMuxer openSegment(int index) throws IOException {
+                File file = getSegmentFile(outputFile, index);
+                SegmentRing ring = mSegmentRing;
+                if (ring != null) {
+                    ring.segmentStarted(file);
+                }
+                SampleMuxer segment = createMuxer(file, container);
+                mPath = file.toString();
+                return segment;
+            }
+        }, segmentDurationMs * 1000, segmentBytes);
+        muxer.setSyncFrameSource(mVideoEncoder);
+        muxer.setListener(new SegmentingSampleMuxer.Listener() {
+            @Override
+            public void onSegmentFinished(final int index, final long durationUs, long bytes) {
+                File file = getSegmentFile(outputFile, index);
+                final String path = file.toString();
+                if (VERBOSE) {
+                    Log.d(TAG, "segment " + path + " finished, " + durationUs + "us, "
+                            + bytes + " bytes");
+                }
+                SegmentRing ring = mSegmentRing;
+                if (ring != null) {
+                    try {
+                        ring.segmentFinished(file, durationUs);
+                    } catch (IOException e) {
+                        // The recording itself is fine, keep it going
+                        Log.w(TAG, "Segment ring failed to keep the quota:", e);
+                    }
+                }
+                final RecordCallback callback = mCallback;
+                if (callback instanceof RecordCallback.SegmentListener) {
+                    final RecordCallback.SegmentListener listener =
+                            (RecordCallback.SegmentListener) callback;
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onSegmentFinished(path, index, durationUs / 1000);
+                        }
+                    });
+                }
+            }
+        });
+        openOutput(muxer, getSegmentFile(outputFile, 0).toString());
+        mContainer = container;
+    }
+
+    private void openHlsOutput(final File playlistFile, long segmentDurationMs) {
+        final HlsSampleMuxer muxer = new HlsSampleMuxer(playlistFile, segmentDurationMs > 0
+                ? segmentDurationMs * 1000 : HlsSampleMuxer.DEFAULT_SEGMENT_DURATION_US,
+                IFRAME_INTERVAL * 1000000L, 0);
+        muxer.setSyncFrameSource(mVideoEncoder);
+        muxer.setListener(new SegmentingSampleMuxer.Listener() {
+            @Override
+            public void onSegmentFinished(final int index, final long durationUs, long bytes) {
+                final String path = HlsSampleMuxer.getSegmentFile(playlistFile, index).toString();
+                if (VERBOSE) {
+                    Log.d(TAG, "segment " + path + " listed, " + durationUs + "us, "
+                            + bytes + " bytes");
+                }
+                if (durationUs > muxer.getTargetDurationUs()) {
+                    Log.w(TAG, "segment " + path + " overran the target duration, "
+                            + durationUs + "us");
+                }
+                final RecordCallback callback = mCallback;
+                if (callback instanceof RecordCallback.SegmentListener) {
+                    final RecordCallback.SegmentListener listener =
+                            (RecordCallback.SegmentListener) callback;
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onSegmentFinished(path, index, durationUs / 1000);
+                        }
+                    });
+                }
+            }
+        });
+        openOutput(muxer, playlistFile.toString());
+        mContainer = Container.HLS;
+    }
+
+    /**
+     * Keeps the segments opened by {@link #openOutput(File, Container, long, long)} within the
+     * quota of {@code ring}, deleting the oldest.  Call before opening the output.
+     *
+     * @param ring may be null
+     */
+    public void setSegmentRing(SegmentRing ring) {
+        mSegmentRing = ring;
+    }
+
+    /**
+     * @return the file segment {@code index} of a recording into {@code outputFile} is written
+     * to: its name with the index appended, e.g. rec_007.mp4 for rec.mp4
+     */
+    public static File getSegmentFile(File outputFile, int index) {
+        String name = outputFile.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        return new File(outputFile.getParentFile(),
+                String.format(Locale.US, "%s_%03d%s", base, index, extension));
+    }
+
+    /**
+     * Opens the output of a warm core.  Samples encoded from now on are recorded.
+     *
+     * @param path where the muxer writes, reported to the callback
+     * @throws IllegalStateException if the core isn't warm or its output is open already
+     */
+    public void openOutput(SampleMuxer muxer, String path) {
+        if (mDeferredOutput == null) {
+            throw new IllegalStateException("output was given at construction");
+        }
+        synchronized (mMuxerLock) {
+            mDeferredOutput.open(muxer);
+            mPath = path;
+            if (!mVideoDrainer.isWriting()) {
+                // The encoders ran for the replay: start the file at a fresh key frame
+                mVideoDrainer.setWriting(true, true);
+                mAudioDrainer.setWriting(true, false);
+                mVideoEncoder.requestSyncFrame();
+            }
+            // Both formats may have come out already
+            tryStartMuxer();
+        }
+    }
+
+    /**
+     * Keeps every encoded sample in {@code replay} too.  A warm core then encodes before its
+     * output is opened, for the replay only.  Call before the encoders produce output.
+     */
+    public void setReplayBuffer(ReplayBuffer replay) {
+        mReplay = replay;
+        if (replay != null && !isOutputOpen()) {
+            mVideoDrainer.setWriting(false, false);
+            mAudioDrainer.setWriting(false, false);
+        }
+    }
+
+    /**
+     * @return true if samples are kept in a replay buffer
+     */
+    public boolean isReplaying() {
+        return mReplay != null;
+    }
+
+    /**
+     * @return false for a warm core whose output hasn't been opened yet
+     */
+    public boolean isOutputOpen() {
+        return mDeferredOutput == null || mDeferredOutput.isOpen();
     }
 
     /**
@@ -175,26 +571,55 @@ public class VideoEncoderCore {
             mVideoEncoder = null;
         }
         if (mAudioEncoder != null) {
+            mAudioStage.stop();
             mAudioEncoder.stop();
             mAudioEncoder.release();
             mAudioEncoder = null;
         }
-        if (mProgressTimer != null) {
-            mProgressTimer.cancel();
-            mProgressTimer = null;
+        synchronized (mMuxerLock) {
+            if (isOutputOpen()) {
+                releaseMuxer();
+            } else if (mMuxer != null) {
+                // A warm core that never recorded, there is no file to finish
+                mMuxer.release();
+                mMuxer = null;
+            }
         }
+    }
+
+    private void releaseMuxer() {
         if (mMuxer != null) {
             try {
-                if (mIsAudioEmpty) {
+                if (mAudioDrainer.getWrittenSamples() == 0 && mContainer == Container.MP4
+                        && mMuxerStarted && mAudioDrainer.getTrackIndex() >= 0) {
                     // avoid empty audio track. if the audio track is empty , muxer.stop will failed
+                    // Only MediaMuxer needs it, the other containers would get a garbage frame.
+                    // Not before the muxer started: that stop fails anyway.
                     byte[] bytes = new byte[2];
                     ByteBuffer buffer = ByteBuffer.wrap(bytes);
                     mABufferInfo.set(0, 2, System.nanoTime() / 1000, 0);
-                    buffer.position(mABufferInfo.offset);
-                    buffer.limit(mABufferInfo.offset + mABufferInfo.size);
-                    mMuxer.writeSampleData(mATrackIndex, buffer, mABufferInfo);
+                    mMuxer.writeSampleData(mAudioDrainer.getTrackIndex(), buffer, mABufferInfo);
                 }
                 mMuxer.stop();
+                if (VERBOSE) {
+                    Log.d(TAG, "muxer queue high water mark " + mMuxer.getHighWaterMark()
+                            + ", dropped " + mMuxer.getDroppedSamples() + " samples, "
+                            + mMuxer.getPendingDroppedSamples() + " before start");
+                    PtsSanitizer pts = mMuxer.getPtsSanitizer();
+                    Log.d(TAG, "timestamps corrected " + pts.getCorrections() + " ("
+                            + pts.getDuplicates() + " duplicate, " + pts.getBackwards()
+                            + " backwards, " + pts.getDropped() + " dropped)");
+                    SampleArena arena = mMuxer.getArena();
+                    Log.d(TAG, "sample arena peak " + arena.getPeakInUseBytes() + " of "
+                            + arena.getAllocatedBytes() + " bytes, " + arena.getHits() + " hits, "
+                            + arena.getMisses() + " misses, " + arena.getRejections() + " rejections");
+                    Log.d(TAG, "frame latency: "
+                            + (mFrameLatency != null ? mFrameLatency.summarize() : null));
+                    PcmFramer framer = mAudioStage.getFramer();
+                    Log.d(TAG, "audio gaps " + framer.getGaps() + ", " + framer.getGapSamples()
+                            + " samples of silence filled in, drift " + mClock.getAudioDriftUs()
+                            + "us, corrected by " + mClock.getAudioCorrectionUs() + "us");
+                }
                 if (mCallback != null) {
                     mMainHandler.post(new Runnable() {
                         @Override
@@ -225,6 +650,74 @@ public class VideoEncoderCore {
 
     }
 
+    public TrackDrainer getVideoDrainer() {
+        return mVideoDrainer;
+    }
+
+    public TrackDrainer getAudioDrainer() {
+        return mAudioDrainer;
+    }
+
+    /**
+     * Returns the timeline both tracks are written on, e.g. to read the audio drift.
+     */
+    public MediaClock getMediaClock() {
+        return mClock;
+    }
+
+    /**
+     * Returns what encodes the audio, e.g. to read its ring occupancy and overruns.
+     */
+    public AudioEncodeStage getAudioStage() {
+        return mAudioStage;
+    }
+
+    /**
+     * @return ms since the muxer started, less the time spent paused, or 0 if it hasn't yet
+     */
+    public long getRecordedDurationMs() {
+        long startedAt = mRecordStartedAt;
+        if (startedAt == 0) {
+            return 0;
+        }
+        return System.currentTimeMillis() - startedAt - mClock.getPausedUs() / 1000;
+    }
+
+    /**
+     * Stops recording into the file while keeping the encoders and the muxer running: video
+     * frames and PCM captured from now on are discarded.  (Any thread.)
+     */
+    public void pause() {
+        mClock.pause(System.nanoTime() / 1000);
+    }
+
+    /**
+     * Picks recording up again where {@link #pause()} left it.  Later samples are stamped as if
+     * the pause never happened, and the next video frame is a key frame so the file plays on
+     * cleanly from there.  (Any thread.)
+     */
+    public void resume() {
+        if (!mClock.isPaused()) {
+            return;
+        }
+        mClock.resume(System.nanoTime() / 1000);
+        MediaEncoder videoEncoder = mVideoEncoder;
+        if (videoEncoder != null) {
+            videoEncoder.requestSyncFrame();
+        }
+    }
+
+    public boolean isPaused() {
+        return mClock.isPaused();
+    }
+
+    /**
+     * Returns the writer that owns the muxer, e.g. to read its queue metrics.
+     */
+    public MuxerWriter getMuxerWriter() {
+        return mMuxer;
+    }
+
     public String getCoverPath() {
         return mCoverPath;
     }
@@ -237,10 +730,38 @@ public class VideoEncoderCore {
         return mCallback;
     }
 
+    /**
+     * Has the encoder output and the muxer writer report video frames to {@code tracker}.  Its
+     * summary is logged when the recording is finished.
+     */
+    public void setFrameLatencyTracker(FrameLatencyTracker tracker) {
+        mFrameLatency = tracker;
+        mVideoDrainer.setLatencyTracker(tracker);
+        mMuxer.setLatencyTracker(tracker);
+    }
+
     public void setRecordCallback(RecordCallback callback) {
         mCallback = callback;
     }
 
+    /**
+     * Sets how much media time passes between two {@link RecordCallback#onRecordedDurationChanged}
+     * calls.  Call before recording starts.
+     */
+    public void setProgressInterval(long intervalMs) {
+        mProgress = new ProgressDispatcher(mMainExecutor, mProgressListener, intervalMs);
+        mProgress.setMediaClock(mClock);
+        mVideoDrainer.setProgressDispatcher(mProgress);
+        mAudioDrainer.setProgressDispatcher(mProgress);
+    }
+
+    /**
+     * Returns what reports the recorded duration, e.g. to count the updates it posted.
+     */
+    public ProgressDispatcher getProgressDispatcher() {
+        return mProgress;
+    }
+
     /**
      * Extracts all pending data from the encoder and forwards it to the muxer.
      * <p>
@@ -248,6 +769,9 @@ public class VideoEncoderCore {
      * is set, we send EOS to the encoder, and then iterate until we see EOS on the output.
      * Calling this with endOfStream set should be done once, right before stopping the muxer.
      * <p>
+     * When the video encoder runs in asynchronous mode (API 23+), its output reaches the muxer
+     * from the codec's callback as it comes, so this only waits for it at end of stream.
+     * <p>
      * We're just using the muxer to get a .mp4 file (instead of a raw H.264 stream).  We're
      * not recording audio.
      */
@@ -264,230 +788,111 @@ public class VideoEncoderCore {
             mStreamEnded = true;
         }
 
-        drainVideo(endOfStream);
-        drainAudio(endOfStream);
-
-        if (mMuxerStarted && mCallback != null) {
-            mMainHandler.post(mRecordProgressChangeRunnable);
+        if (mAsyncVideo) {
+            // Video output is pushed to the muxer by the codec callback; only wait for it at EOS
+            if (endOfStream) {
+                awaitVideoEos();
+            }
+        } else {
+            drainVideo(endOfStream);
+        }
+        if (endOfStream && !mAudioStage.finish(EOS_TIMEOUT_MS)) {
+            Log.w(TAG, "timed out waiting for audio EOS");
         }
     }
 
     private void drainVideo(boolean endOfStream) {
-        while (true) {
-            int encoderStatus = mVideoEncoder.dequeueOutputBuffer(mVBufferInfo, TIMEOUT_USEC);
-            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                // no output available yet
-                if (!endOfStream) {
-                    break;      // out of while
-                } else {
-                    if (mStreamEnded) {
-                        break;
-                    }
-                    if (VERBOSE) {
-                        Log.d(TAG, "no video output available, spinning to await EOS");
-                    }
-                }
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // should happen before receiving buffers, and should only happen once
-                if (mMuxerStarted) {
-                    throw new RuntimeException("format changed twice");
-                }
-                MediaFormat newFormat = mVideoEncoder.getOutputFormat();
-                Log.d(TAG, "video encoder output format changed: " + newFormat);
-
-                // now that we have the Magic Goodies, start the muxer
-                mVTrackIndex = mMuxer.addTrack(newFormat);
-                tryStartMuxer();
-            } else if (encoderStatus < 0) {
-                Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
-                        encoderStatus);
-                // let's ignore it
+        if (mVideoDrainer.drain(TIMEOUT_USEC, endOfStream && !mStreamEnded)) {
+            if (!endOfStream) {
+                Log.w(TAG, "reached end of stream unexpectedly");
             } else {
-                if (mMuxerStarted) {
-                    // same as mVideoEncoder.getOutputBuffer(encoderStatus)
-                    ByteBuffer encodedData = mVideoEncoder.getOutputBuffer(encoderStatus);
-
-                    if (encodedData == null) {
-                        throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
-                                " was null");
-                    }
-
-                    if ((mVBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                        // The codec config data was pulled out and fed to the muxer when we got
-                        // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
-                        if (VERBOSE) {
-                            Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                        }
-                        mVBufferInfo.size = 0;
-                    }
-
-                    if (mVBufferInfo.size != 0) {
-                        if (!mMuxerStarted) {
-                            throw new RuntimeException("muxer hasn't started");
-                        }
-
-                        // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                        encodedData.position(mVBufferInfo.offset);
-                        encodedData.limit(mVBufferInfo.offset + mVBufferInfo.size);
-
-                        mMuxer.writeSampleData(mVTrackIndex, encodedData, mVBufferInfo);
-                        if (VERBOSE) {
-                            Log.d(TAG, "sent " + mVBufferInfo.size + " video bytes to muxer, ts=" +
-                                    mVBufferInfo.presentationTimeUs);
-                        }
-                    }
-
-                    mVideoEncoder.releaseOutputBuffer(encoderStatus, false);
-
-                    if ((mVBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        if (!endOfStream) {
-                            Log.w(TAG, "reached end of stream unexpectedly");
-                        } else {
-                            if (VERBOSE) {
-                                Log.d(TAG, "end of video stream reached");
-                            }
-                        }
-                        break;      // out of while
-                    }
-                } else {
-                    Log.w(TAG, "Muxer is not started, just return");
-                    // let's ignore it
-                    mVideoEncoder.releaseOutputBuffer(encoderStatus, false);
+                if (VERBOSE) {
+                    Log.d(TAG, "end of video stream reached");
                 }
             }
         }
     }
 
-    public void drainAudio(boolean endOfStream) {
-        while (true) {
-            // Start to get data from OutputBuffer and write to Muxer
-            int index = mAudioEncoder.dequeueOutputBuffer(mABufferInfo, TIMEOUT_USEC);
-            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                // no output available yet
-                if (!endOfStream) {
-                    break;      // out of while
-                } else {
-                    if (mStreamEnded) {
-                        break;
-                    }
-                    if (VERBOSE) {
-                        Log.d(TAG, "no audio output available, spinning to await EOS");
-                    }
-                }
-            }
-            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                if (mATrackIndex != -1) {
-                    throw new RuntimeException("format changed twice");
-                }
-                mATrackIndex = mMuxer.addTrack(mAudioEncoder.getOutputFormat());
-                tryStartMuxer();
-            } else if (index >= 0) {
-                if (mMuxerStarted) {
-                    if ((mABufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                        // ignore codec config
-                        mABufferInfo.size = 0;
-                    }
-
-                    if (mABufferInfo.size != 0) {
-                        ByteBuffer out = mAudioEncoder.getOutputBuffer(index);
-                        out.position(mABufferInfo.offset);
-                        out.limit(mABufferInfo.offset + mABufferInfo.size);
-                        mMuxer.writeSampleData(mATrackIndex, out, mABufferInfo);
-                        mIsAudioEmpty = false;
-                        if (VERBOSE) {
-                            Log.d(TAG, "sent " + mABufferInfo.size + " audio bytes to muxer, ts=" +
-                                    mABufferInfo.presentationTimeUs);
-                        }
-                    }
-
-                    mAudioEncoder.releaseOutputBuffer(index, false);
+    private void signalVideoEos() {
+        synchronized (mVideoEosFence) {
+            mVideoEosReached = true;
+            mVideoEosFence.notifyAll();
+        }
+    }
 
-                    if ((mABufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        if (!endOfStream) {
-                            Log.w(TAG, "reached end of stream unexpectedly");
-                        } else {
-                            if (VERBOSE) {
-                                Log.d(TAG, "end of audio stream reached");
-                            }
-                        }
-                        mStreamEnded = true; // Audio stream ended
-                        break;      // out of while
-                    }
-                } else {
-                    Log.w(TAG, "Muxer is not started, just return");
-                    // let's ignore it
-                    mAudioEncoder.releaseOutputBuffer(index, false); // Don't forget to release it
+    private void awaitVideoEos() {
+        long deadline = System.currentTimeMillis() + EOS_TIMEOUT_MS;
+        synchronized (mVideoEosFence) {
+            while (!mVideoEosReached) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    Log.w(TAG, "timed out waiting for video EOS");
+                    return;
+                }
+                try {
+                    mVideoEosFence.wait(remaining);
+                } catch (InterruptedException ie) {
+                    // ignore
                 }
             }
         }
     }
 
     /**
-     * Enqueue the audio frame buffers to the encoder
+     * Enqueue the audio frame buffers to the audio encode stage.  The chunk is dropped if the
+     * stage is too far behind.
      *
      * @param buffer      the data
-     * @param size        size of the data
+     * @param size        size of the data, at most {@link PcmRing#DEFAULT_CHUNK_SIZE}
+     * @param presentTimeUs when the first sample of the data was captured.  Only used to detect
+     *                      gaps, the encoder gets timestamps counted from the samples.
      * @param endOfStream is this frame the end
      */
     public void enqueueAudioFrame(ByteBuffer buffer, int size, long presentTimeUs, boolean endOfStream) {
-        boolean done = false;
-        while (!done) {
-            // Start to put data to InputBuffer
-            int index = mAudioEncoder.dequeueInputBuffer(TIMEOUT_USEC);
-            if (index >= 0) { // In case we didn't get any input buffer, it may be blocked by all output buffers being
-                // full, thus try to drain them below if we didn't get any
-                ByteBuffer in = mAudioEncoder.getInputBuffer(index);
-                in.clear();
-                if (size < 0) {
-                    size = 0;
-                }
-                if (buffer == null) {
-                    buffer = ByteBuffer.allocate(0);
-                    size = 0;
-                }
-                in.position(0);
-                in.limit(size);
-                buffer.position(0);
-                buffer.limit(size);
-                if (VERBOSE) {
-                    Log.d(TAG, "enqueueAudioFrame: "
-                            + "buffer [pos:" + buffer.position() + ", limit: " + buffer.limit() + "]"
-                            + "in [pos:" + in.position() + ", capacity: " + in.capacity() + "]");
-                }
-                in.put(buffer); // Here we should ensure that `size` is smaller than the capacity of the `in` buffer
-                int flag = endOfStream ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0;
-                mAudioEncoder.queueInputBuffer(index, 0, size, presentTimeUs, flag);
-                done = true; // Done passing the input to the codec, but still check for available output below
-            } else if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                // if input buffers are full try to drain them
-                if (VERBOSE) {
-                    Log.d(TAG, "no input available, spinning to await EOS");
-                }
-            }
+        if (VERBOSE) {
+            Log.d(TAG, "enqueueAudioFrame: " + size + " bytes, ts=" + presentTimeUs);
+        }
+        if (!mAudioStage.write(buffer, size, presentTimeUs, endOfStream)) {
+            Log.w(TAG, "Audio encoder is behind, dropping " + size + " bytes");
         }
     }
 
     /**
-     * Enqueue the audio frame buffers to the encoder
+     * Enqueue the audio frame buffers to the encoder, captured just now
      *
      * @param buffer      the data
      * @param size        size of the data
      * @param endOfStream is this frame the end
      */
     public void enqueueAudioFrame(ByteBuffer buffer, int size, boolean endOfStream) {
-        enqueueAudioFrame(buffer, size, System.nanoTime() / 1000, endOfStream);
+        long durationUs = Math.max(size, 0) * 1000000L / (2 * DEFAULT_CHANNEL_CONFIG * DEFAULT_SAMPLE_RATE);
+        enqueueAudioFrame(buffer, size, System.nanoTime() / 1000 - durationUs, endOfStream);
+    }
+
+    /**
+     * Reads an audio chunk from {@code source} straight into the audio encode stage's ring.
+     * (Audio capture thread.)
+     *
+     * @param size        how many bytes to read at most
+     * @param endOfStream is this chunk the end
+     * @return number of bytes read, or one of the {@link PcmSource} ERROR_* codes
+     */
+    public int captureAudioFrame(PcmSource source, int size, boolean endOfStream) {
+        return mAudioStage.read(source, size, endOfStream);
     }
 
+    /**
+     * Must be called with mMuxerLock held.
+     */
     private void tryStartMuxer() {
-        if (mVTrackIndex != -1  // Video track is added
-                && mATrackIndex != -1 // and audio track is added
-                && !mMuxerStarted) { // and muxer not started
+        if (mVideoDrainer.getTrackIndex() != -1  // Video track is added
+                && mAudioDrainer.getTrackIndex() != -1 // and audio track is added
+                && !mMuxerStarted // and muxer not started
+                && isOutputOpen()) { // and there is a file to write
             // then start the muxer
             mMuxer.start();
             mMuxerStarted = true;
             mRecordStartedAt = System.currentTimeMillis();
-            mProgressTimer = new Timer();
-            mProgressTimer.schedule(mProgressTask, 0, 16);
         }
     }
 }
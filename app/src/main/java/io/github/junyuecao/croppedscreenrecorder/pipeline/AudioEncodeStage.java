@@ -0,0 +1,345 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs an audio {@link MediaEncoder} on its own thread, both sides of it.
+ * <p>
+ * The capture thread hands PCM chunks over with {@link #write} or {@link #read}, which copy or
+ * read them into a {@link PcmRing} slot and return right away.  The encode thread re-chunks the
+ * ring's data into AAC frames with a {@link PcmFramer}, assembled straight in the encoder's
+ * input buffers as they free up, and drains the encoder's output into the muxer through a
+ * {@link TrackDrainer}, whether or not video frames arrive.
+ * When the ring is full the chunk is dropped and counted as an overrun, rather than holding up
+ * capture.
+ * <p>
+ * While the {@link MediaClock} is paused, chunks are read but discarded, and the timeline picks
+ * up from the first chunk after the resume.
+ */
+public class AudioEncodeStage implements Runnable {
+    /** How long the encode thread sleeps when it has nothing to do, unless new PCM wakes it */
+    private static final long IDLE_PARK_NANOS = 5000000;
+
+    private final MediaEncoder mEncoder;
+    private final TrackDrainer mDrainer;
+    private final PcmRing mRing;
+    private final PcmFramer mFramer;
+    private final long mBytesPerSecond;
+    private MediaClock mClock;
+    // Capture thread only: read target for chunks that are dropped, and whether one was
+    private ByteBuffer mSpare;
+    private boolean mDiscontinuity;
+    private volatile Thread mThread;
+    private volatile boolean mFinishing;
+    private volatile boolean mQuit;
+    private volatile boolean mEosReached;
+    // Encode thread only
+    private boolean mEosQueued;
+    private int mInputIndex = -1;
+    private int mChunkOffset = -1;
+
+    /**
+     * @param drainer      drains the encoder, whose input is fed by this stage
+     * @param sampleRate   of the PCM data
+     * @param channelCount of the PCM data
+     */
+    public AudioEncodeStage(TrackDrainer drainer, int sampleRate, int channelCount, int capacity,
+                            int chunkSize) {
+        mEncoder = drainer.getEncoder();
+        mDrainer = drainer;
+        mRing = new PcmRing(capacity, chunkSize);
+        mFramer = new PcmFramer(sampleRate, channelCount, PcmFramer.AAC_FRAME_SAMPLES);
+        mBytesPerSecond = 2L * channelCount * sampleRate;
+    }
+
+    /**
+     * Starts the encode thread.  The encoder must have been started.
+     */
+    public void start() {
+        Thread thread = new Thread(this, "AudioEncodeStage");
+        mThread = thread;
+        thread.start();
+    }
+
+    public PcmRing getRing() {
+        return mRing;
+    }
+
+    /**
+     * @param clock corrects the audio drift and says when recording is paused.  Set before
+     *              {@link #start()}.
+     */
+    public void setMediaClock(MediaClock clock) {
+        mClock = clock;
+        mFramer.setMediaClock(clock);
+    }
+
+    /**
+     * Returns what stamps the audio, e.g. to read its gap counts.  Encode thread state: only
+     * read it once the stage has stopped.
+     */
+    public PcmFramer getFramer() {
+        return mFramer;
+    }
+
+    /**
+     * @return number of chunks dropped because the ring was full
+     */
+    public long getOverruns() {
+        return mRing.getOverruns();
+    }
+
+    /**
+     * @return number of chunks waiting for the encoder
+     */
+    public int getOccupancy() {
+        return mRing.size();
+    }
+
+    /**
+     * @return true once the end of stream came out of the encoder
+     */
+    public boolean isEosReached() {
+        return mEosReached;
+    }
+
+    /**
+     * Copies {@code size} bytes from the start of {@code buffer} into the ring.  (Capture thread.)
+     *
+     * @param buffer      the data, may be null for an empty (end of stream) chunk
+     * @param presentationTimeUs when the first sample of the chunk was captured
+     * @param endOfStream is this chunk the end
+     * @return false if the ring was full and the chunk was dropped
+     */
+    public boolean write(ByteBuffer buffer, int size, long presentationTimeUs, boolean endOfStream) {
+        if (size < 0 || buffer == null) {
+            size = 0;
+        }
+        if (size > mRing.getChunkSize()) {
+            throw new IllegalArgumentException("chunk of " + size + " bytes doesn't fit a slot of "
+                    + mRing.getChunkSize());
+        }
+        if (isPaused() && !endOfStream) {
+            mDiscontinuity = true;
+            return true;
+        }
+        PcmRing.Chunk chunk = mRing.claim();
+        if (chunk == null) {
+            // The next chunk isn't contiguous with the last one, as in read()
+            mDiscontinuity = true;
+            return false;
+        }
+        chunk.data.clear();
+        if (size > 0) {
+            buffer.position(0);
+            buffer.limit(size);
+            chunk.data.put(buffer);
+        }
+        publish(chunk, size, presentationTimeUs, endOfStream);
+        return true;
+    }
+
+    /**
+     * Reads up to {@code size} bytes from {@code source} straight into the ring, stamped with the
+     * time the read returned less the duration of the data read.  (Capture thread.)
+     * <p>
+     * If the ring is full the chunk is still read, so capture stays paced by the source, but
+     * dropped.
+     *
+     * @return number of bytes read, or one of the {@link PcmSource} ERROR_* codes
+     */
+    public int read(PcmSource source, int size, boolean endOfStream) {
+        size = Math.min(size, mRing.getChunkSize());
+        boolean paused = isPaused() && !endOfStream;
+        PcmRing.Chunk chunk = paused ? null : mRing.claim();
+        if (chunk == null) {
+            if (mSpare == null) {
+                mSpare = ByteBuffer.allocateDirect(mRing.getChunkSize());
+            }
+            mDiscontinuity = true;
+            return source.read(mSpare, size);
+        }
+        int read = source.read(chunk.data, size);
+        if (read < 0) {
+            if (!endOfStream) {
+                return read;
+            }
+            // Still pass the end of stream on
+            read = 0;
+        }
+        long startUs = System.nanoTime() / 1000 - read * 1000000L / mBytesPerSecond;
+        publish(chunk, read, startUs, endOfStream);
+        return read;
+    }
+
+    private void publish(PcmRing.Chunk chunk, int size, long presentationTimeUs, boolean endOfStream) {
+        chunk.size = size;
+        chunk.presentationTimeUs = presentationTimeUs;
+        chunk.endOfStream = endOfStream;
+        chunk.discontinuity = mDiscontinuity;
+        mDiscontinuity = false;
+        mRing.publish();
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private boolean isPaused() {
+        MediaClock clock = mClock;
+        return clock != null && clock.isPaused();
+    }
+
+    /**
+     * Ends the stream and waits for the encode thread to drain it, then stops the thread.  Queues
+     * an end of stream chunk itself if the capture thread hasn't.
+     *
+     * @param timeoutMs how long to wait for the end of stream to come out of the encoder
+     * @return true if it did
+     */
+    public boolean finish(long timeoutMs) {
+        Thread thread = mThread;
+        if (thread == null) {
+            return mEosReached;
+        }
+        mFinishing = true;
+        LockSupport.unpark(thread);
+        join(thread, timeoutMs);
+        stop();
+        return mEosReached;
+    }
+
+    /**
+     * Stops the encode thread without waiting for the end of stream.  Chunks still in the ring
+     * are dropped.
+     */
+    public void stop() {
+        Thread thread = mThread;
+        if (thread == null) {
+            return;
+        }
+        mQuit = true;
+        LockSupport.unpark(thread);
+        join(thread, 0);
+        mThread = null;
+    }
+
+    private static void join(Thread thread, long timeoutMs) {
+        boolean interrupted = false;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (thread.isAlive()) {
+            long remaining = timeoutMs == 0 ? 0 : deadline - System.currentTimeMillis();
+            if (timeoutMs != 0 && remaining <= 0) {
+                break;
+            }
+            try {
+                thread.join(remaining);
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!mQuit) {
+            boolean stalled = feed();
+            if (mFinishing && !mEosQueued && mRing.size() == 0) {
+                mEosQueued = attachInput();
+                if (mEosQueued) {
+                    queueFrame(true);
+                }
+                stalled = !mEosQueued;
+            }
+            if (mDrainer.drain(0, false)) {
+                mEosReached = true;
+                return;
+            }
+            if (stalled || mRing.size() == 0) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Frames chunks from the ring into free encoder input buffers.
+     *
+     * @return true if data is left waiting for an input buffer
+     */
+    private boolean feed() {
+        PcmRing.Chunk chunk;
+        while ((chunk = mRing.peek()) != null) {
+            if (mEosQueued) {
+                // Nothing goes after the end of stream
+                mRing.release();
+                continue;
+            }
+            if (mChunkOffset < 0) {
+                if (chunk.discontinuity && mFramer.getFilled() > 0) {
+                    // The partial frame belongs before the jump
+                    queueFrame(false);
+                }
+                if (chunk.size > 0) {
+                    if (chunk.discontinuity) {
+                        mFramer.restartChunk(chunk.presentationTimeUs);
+                    } else {
+                        mFramer.startChunk(chunk.presentationTimeUs);
+                    }
+                }
+                mChunkOffset = 0;
+            }
+            while (mChunkOffset < chunk.size || mFramer.hasPendingSilence()) {
+                if (!attachInput()) {
+                    return true;
+                }
+                mChunkOffset += mFramer.append(chunk.data, mChunkOffset, chunk.size - mChunkOffset);
+                if (mFramer.isFrameFull()) {
+                    queueFrame(false);
+                }
+            }
+            if (chunk.endOfStream) {
+                // The last frame may be short
+                if (!attachInput()) {
+                    return true;
+                }
+                queueFrame(true);
+                mEosQueued = true;
+            }
+            mChunkOffset = -1;
+            mRing.release();
+        }
+        return false;
+    }
+
+    /**
+     * Makes sure the framer has an encoder input buffer to assemble a frame in.
+     *
+     * @return false if none is free
+     */
+    private boolean attachInput() {
+        if (mFramer.hasTarget()) {
+            return true;
+        }
+        int index = mEncoder.dequeueInputBuffer(0);
+        if (index < 0) {
+            return false;
+        }
+        mInputIndex = index;
+        ByteBuffer in = mEncoder.getInputBuffer(index);
+        in.clear();
+        mFramer.attach(in);
+        return true;
+    }
+
+    private void queueFrame(boolean endOfStream) {
+        int size = mFramer.getFilled();
+        long presentationTimeUs = mFramer.takeFrame();
+        int flags = endOfStream ? SampleInfo.FLAG_END_OF_STREAM : 0;
+        mEncoder.queueInputBuffer(mInputIndex, 0, size, presentationTimeUs, flags);
+        mInputIndex = -1;
+    }
+}
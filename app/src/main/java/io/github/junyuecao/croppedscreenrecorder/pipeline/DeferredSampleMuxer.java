@@ -0,0 +1,88 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link SampleMuxer} whose output is opened late, so the encoders can be configured and
+ * started before the file to record into is known.
+ * <p>
+ * Tracks added before {@link #open} are kept and added to the real muxer when it is opened.
+ * Everything else needs it open.
+ */
+public class DeferredSampleMuxer implements SampleMuxer {
+    private static final int MAX_TRACKS = 4;
+
+    private final TrackFormat[] mFormats = new TrackFormat[MAX_TRACKS];
+    private int mTrackCount;
+    private volatile SampleMuxer mTarget;
+
+    /**
+     * Opens the output.  Tracks added so far are added to it, in order.
+     *
+     * @throws IllegalStateException if it is open already, or {@code target} numbers the tracks
+     *                               differently
+     */
+    public synchronized void open(SampleMuxer target) {
+        if (mTarget != null) {
+            throw new IllegalStateException("output is open already");
+        }
+        for (int i = 0; i < mTrackCount; i++) {
+            if (target.addTrack(mFormats[i]) != i) {
+                throw new IllegalStateException("muxer numbered track " + i + " differently");
+            }
+            mFormats[i] = null;
+        }
+        mTarget = target;
+    }
+
+    public boolean isOpen() {
+        return mTarget != null;
+    }
+
+    @Override
+    public synchronized int addTrack(TrackFormat format) {
+        SampleMuxer target = mTarget;
+        if (target != null) {
+            return target.addTrack(format);
+        }
+        if (mTrackCount == MAX_TRACKS) {
+            throw new IllegalStateException("too many tracks");
+        }
+        mFormats[mTrackCount] = format;
+        return mTrackCount++;
+    }
+
+    @Override
+    public void start() {
+        target().start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+        target().writeSampleData(trackIndex, data, info);
+    }
+
+    @Override
+    public void stop() {
+        target().stop();
+    }
+
+    /**
+     * Releases the output, if it was opened.
+     */
+    @Override
+    public void release() {
+        SampleMuxer target = mTarget;
+        if (target != null) {
+            target.release();
+        }
+    }
+
+    private SampleMuxer target() {
+        SampleMuxer target = mTarget;
+        if (target == null) {
+            throw new IllegalStateException("output isn't open");
+        }
+        return target;
+    }
+}
@@ -0,0 +1,316 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-JVM stand-in for a MediaCodec encoder, for running the pipeline headless.
+ * <p>
+ * Every input (a queued input buffer, or {@link #submitFrame} for surface input) comes out as
+ * one output buffer after the configured encode latency plus a random jitter.  Outputs stay in
+ * input order.  Like a real codec, output stalls while all output buffers are held by the
+ * client, and the output format is reported once, before the first buffer.
+ * <p>
+ * Configure with the setters before {@link #start()}.
+ */
+public class FakeMediaEncoder implements MediaEncoder {
+    private static final int FORMAT_CHANGED_MARKER = INFO_OUTPUT_FORMAT_CHANGED;
+
+    private final TrackFormat mFormat;
+    private long mLatencyUs = 5000;
+    private long mJitterUs;
+    private int mMinOutputSize = 1024;
+    private int mMaxOutputSize = 1024;
+    private int mKeyFrameInterval = 1;
+    private int mBufferCount = 8;
+    private int mInputBufferSize = 64 * 1024;
+    private Random mRandom = new Random(0);
+
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private SampleInfo[] mOutputInfos;
+    private BlockingQueue<Integer> mFreeInputs;
+    private BlockingQueue<Integer> mFreeOutputs;
+    private BlockingQueue<Integer> mReadyOutputs;
+    private final DelayQueue<Job> mJobs = new DelayQueue<>();
+    private volatile Callback mCallback;
+    private Thread mWorker;
+    private long mLastDueNanos;
+    private long mFrameCount;
+    private boolean mSyncFrameRequested;
+    private volatile long mEncodedFrames;
+
+    /**
+     * @param format what {@link #getOutputFormat()} reports
+     */
+    public FakeMediaEncoder(TrackFormat format) {
+        mFormat = format;
+    }
+
+    /**
+     * @param latencyUs time between an input and its output
+     * @param jitterUs  upper bound of a uniformly distributed extra latency
+     */
+    public FakeMediaEncoder setLatency(long latencyUs, long jitterUs) {
+        mLatencyUs = latencyUs;
+        mJitterUs = jitterUs;
+        return this;
+    }
+
+    /**
+     * Output sizes are uniformly distributed between the bounds; key frames get the maximum.
+     */
+    public FakeMediaEncoder setOutputSize(int minSize, int maxSize) {
+        mMinOutputSize = minSize;
+        mMaxOutputSize = maxSize;
+        return this;
+    }
+
+    /**
+     * @param interval every interval-th output is a key frame, 1 makes all of them key frames
+     */
+    public FakeMediaEncoder setKeyFrameInterval(int interval) {
+        mKeyFrameInterval = interval;
+        return this;
+    }
+
+    public FakeMediaEncoder setBufferCount(int count) {
+        mBufferCount = count;
+        return this;
+    }
+
+    public FakeMediaEncoder setSeed(long seed) {
+        mRandom = new Random(seed);
+        return this;
+    }
+
+    /**
+     * @return number of outputs produced so far
+     */
+    public long getEncodedFrames() {
+        return mEncodedFrames;
+    }
+
+    @Override
+    public boolean setCallback(Callback callback) {
+        mCallback = callback;
+        return true;
+    }
+
+    @Override
+    public void start() {
+        mInputBuffers = new ByteBuffer[mBufferCount];
+        mOutputBuffers = new ByteBuffer[mBufferCount];
+        mOutputInfos = new SampleInfo[mBufferCount];
+        mFreeInputs = new ArrayBlockingQueue<>(mBufferCount);
+        mFreeOutputs = new ArrayBlockingQueue<>(mBufferCount);
+        // + 1 for the format change marker
+        mReadyOutputs = new ArrayBlockingQueue<>(mBufferCount + 1);
+        for (int i = 0; i < mBufferCount; i++) {
+            mInputBuffers[i] = ByteBuffer.allocateDirect(mInputBufferSize);
+            mOutputBuffers[i] = ByteBuffer.allocateDirect(mMaxOutputSize);
+            mOutputInfos[i] = new SampleInfo();
+            mFreeInputs.add(i);
+            mFreeOutputs.add(i);
+        }
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encodeLoop();
+            }
+        }, "FakeMediaEncoder");
+        mWorker.start();
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        Integer index = poll(mFreeInputs, timeoutUs);
+        return index == null ? INFO_TRY_AGAIN_LATER : index;
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mInputBuffers[index];
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        schedule(index, presentationTimeUs, flags);
+    }
+
+    /**
+     * Surface-input counterpart of {@link #queueInputBuffer}: a frame was rendered with the
+     * given presentation time.
+     */
+    public void submitFrame(long presentationTimeUs) {
+        schedule(-1, presentationTimeUs, 0);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+        if (mCallback != null) {
+            throw new IllegalStateException("encoder is in async mode");
+        }
+        Integer index = poll(mReadyOutputs, timeoutUs);
+        if (index == null) {
+            return INFO_TRY_AGAIN_LATER;
+        }
+        if (index >= 0) {
+            SampleInfo out = mOutputInfos[index];
+            info.set(out.offset, out.size, out.presentationTimeUs, out.flags);
+        }
+        return index;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mFreeOutputs.add(index);
+    }
+
+    @Override
+    public TrackFormat getOutputFormat() {
+        return mFormat;
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        schedule(-1, 0, SampleInfo.FLAG_END_OF_STREAM);
+    }
+
+    @Override
+    public synchronized void requestSyncFrame() {
+        mSyncFrameRequested = true;
+    }
+
+    @Override
+    public void stop() {
+        if (mWorker != null) {
+            mWorker.interrupt();
+            try {
+                mWorker.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            mWorker = null;
+        }
+        mJobs.clear();
+    }
+
+    @Override
+    public void release() {
+        stop();
+    }
+
+    private synchronized void schedule(int inputIndex, long presentationTimeUs, int flags) {
+        long now = System.nanoTime();
+        long latencyUs = mLatencyUs;
+        if (mJitterUs > 0) {
+            latencyUs += (long) (mRandom.nextDouble() * mJitterUs);
+        }
+        // Real encoders don't reorder output
+        long due = Math.max(now + latencyUs * 1000, mLastDueNanos + 1);
+        mLastDueNanos = due;
+
+        int size = 0;
+        if ((flags & SampleInfo.FLAG_END_OF_STREAM) == 0) {
+            boolean keyFrame = mFrameCount % mKeyFrameInterval == 0 || mSyncFrameRequested;
+            mSyncFrameRequested = false;
+            mFrameCount++;
+            if (keyFrame) {
+                flags |= SampleInfo.FLAG_KEY_FRAME;
+                size = mMaxOutputSize;
+            } else {
+                size = mMinOutputSize + mRandom.nextInt(mMaxOutputSize - mMinOutputSize + 1);
+            }
+        }
+        mJobs.put(new Job(due, inputIndex, presentationTimeUs, flags, size));
+    }
+
+    private void encodeLoop() {
+        boolean formatReported = false;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Job job = mJobs.take();
+                if (job.mInputIndex >= 0) {
+                    mFreeInputs.add(job.mInputIndex);
+                }
+                int index = mFreeOutputs.take();
+
+                ByteBuffer out = mOutputBuffers[index];
+                out.clear();
+                for (int i = 0; i < job.mSize; i++) {
+                    out.put((byte) i);
+                }
+                out.flip();
+                mOutputInfos[index].set(0, job.mSize, job.mPresentationTimeUs, job.mFlags);
+                mEncodedFrames++;
+
+                Callback callback = mCallback;
+                if (!formatReported) {
+                    formatReported = true;
+                    if (callback != null) {
+                        callback.onOutputFormatChanged(this, mFormat);
+                    } else {
+                        mReadyOutputs.put(FORMAT_CHANGED_MARKER);
+                    }
+                }
+                if (callback != null) {
+                    callback.onOutputBufferAvailable(this, index, mOutputInfos[index]);
+                } else {
+                    mReadyOutputs.put(index);
+                }
+            }
+        } catch (InterruptedException ie) {
+            // stopped
+        }
+    }
+
+    private static Integer poll(BlockingQueue<Integer> queue, long timeoutUs) {
+        try {
+            if (timeoutUs < 0) {
+                return queue.take();
+            }
+            return queue.poll(timeoutUs, TimeUnit.MICROSECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private static class Job implements Delayed {
+        final long mDueNanos;
+        final int mInputIndex;
+        final long mPresentationTimeUs;
+        final int mFlags;
+        final int mSize;
+
+        Job(long dueNanos, int inputIndex, long presentationTimeUs, int flags, int size) {
+            mDueNanos = dueNanos;
+            mInputIndex = inputIndex;
+            mPresentationTimeUs = presentationTimeUs;
+            mFlags = flags;
+            mSize = size;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mDueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long other = ((Job) o).mDueNanos;
+            return mDueNanos < other ? -1 : (mDueNanos == other ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-JVM stand-in for AudioRecord producing a 16-bit sawtooth.
+ * <p>
+ * When real time pacing is on, read() blocks like AudioRecord does until the requested
+ * samples would have been captured, so a capture loop runs at the real audio rate.
+ */
+public class FakePcmSource implements PcmSource {
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private boolean mRealTime;
+    private volatile boolean mStarted;
+    private long mStartNanos;
+    private long mFramesRead;
+    private short mPhase;
+
+    public FakePcmSource(int sampleRate, int channelCount) {
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+    }
+
+    /**
+     * @param realTime if true, reads are paced at the sample rate
+     */
+    public FakePcmSource setRealTime(boolean realTime) {
+        mRealTime = realTime;
+        return this;
+    }
+
+    @Override
+    public boolean start() {
+        mStartNanos = System.nanoTime();
+        mFramesRead = 0;
+        mStarted = true;
+        return true;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int size) {
+        if (!mStarted) {
+            return ERROR_INVALID_OPERATION;
+        }
+        if (offset < 0 || size < 0 || offset + size > buffer.length) {
+            return ERROR_BAD_VALUE;
+        }
+        size -= size % (2 * mChannelCount);
+        short phase = mPhase;
+        for (int i = offset; i < offset + size; i += 2) {
+            phase += 64;
+            buffer[i] = (byte) phase;
+            buffer[i + 1] = (byte) (phase >> 8);
+        }
+        mPhase = phase;
+        return advance(size);
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int size) {
+        if (!mStarted) {
+            return ERROR_INVALID_OPERATION;
+        }
+        if (!buffer.isDirect() || size < 0 || size > buffer.capacity()) {
+            return ERROR_BAD_VALUE;
+        }
+        size -= size % (2 * mChannelCount);
+        short phase = mPhase;
+        for (int i = 0; i < size; i += 2) {
+            phase += 64;
+            buffer.put(i, (byte) phase);
+            buffer.put(i + 1, (byte) (phase >> 8));
+        }
+        mPhase = phase;
+        return advance(size);
+    }
+
+    private int advance(int size) {
+        mFramesRead += size / (2 * mChannelCount);
+        if (mRealTime) {
+            long due = mStartNanos + mFramesRead * 1000000000L / mSampleRate;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    /**
+     * @return number of sample frames (one sample per channel) read so far
+     */
+    public long getFramesRead() {
+        return mFramesRead;
+    }
+
+    @Override
+    public void stop() {
+        mStarted = false;
+    }
+
+    @Override
+    public void release() {
+        stop();
+    }
+}
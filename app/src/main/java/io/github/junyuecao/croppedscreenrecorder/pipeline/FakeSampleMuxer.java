@@ -0,0 +1,145 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-JVM stand-in for MediaMuxer that only counts what it's given.
+ * <p>
+ * Each write can be made to take a configurable time, plus jitter and an occasional long stall,
+ * to model slow or hiccuping storage.  Sample data is read but not kept.
+ * <p>
+ * Like MPEG4Writer, it fails on a timestamp that doesn't increase within its track.
+ */
+public class FakeSampleMuxer implements SampleMuxer {
+    private final List<TrackFormat> mTracks = new ArrayList<>();
+    private long mWriteLatencyUs;
+    private long mJitterUs;
+    private int mStallEvery;
+    private long mStallUs;
+    private Random mRandom = new Random(0);
+
+    private volatile boolean mStarted;
+    private volatile boolean mStopped;
+    private volatile long mSamples;
+    private volatile long mBytes;
+    private long[] mLastPresentationTimeUs = new long[0];
+    private long mChecksum;
+
+    /**
+     * @param latencyUs time every write takes
+     * @param jitterUs  upper bound of a uniformly distributed extra time
+     */
+    public FakeSampleMuxer setWriteLatency(long latencyUs, long jitterUs) {
+        mWriteLatencyUs = latencyUs;
+        mJitterUs = jitterUs;
+        return this;
+    }
+
+    /**
+     * Makes every {@code every}-th write take {@code stallUs} extra, 0 disables stalls.
+     */
+    public FakeSampleMuxer setStall(int every, long stallUs) {
+        mStallEvery = every;
+        mStallUs = stallUs;
+        return this;
+    }
+
+    public FakeSampleMuxer setSeed(long seed) {
+        mRandom = new Random(seed);
+        return this;
+    }
+
+    @Override
+    public synchronized int addTrack(TrackFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("muxer already started");
+        }
+        mTracks.add(format);
+        mLastPresentationTimeUs = new long[mTracks.size()];
+        Arrays.fill(mLastPresentationTimeUs, Long.MIN_VALUE);
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        if (mTracks.isEmpty()) {
+            throw new IllegalStateException("no tracks added");
+        }
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+        if (!mStarted || mStopped) {
+            throw new IllegalStateException("muxer not started");
+        }
+        long checksum = mChecksum;
+        for (int i = info.offset; i < info.offset + info.size; i++) {
+            checksum += data.get(i);
+        }
+        mChecksum = checksum;
+        long last = mLastPresentationTimeUs[trackIndex];
+        if (info.presentationTimeUs <= last || info.presentationTimeUs < 0) {
+            throw new IllegalStateException("track " + trackIndex + " timestamp "
+                    + info.presentationTimeUs + "us not after " + last + "us");
+        }
+        mLastPresentationTimeUs[trackIndex] = info.presentationTimeUs;
+        mBytes += info.size;
+        mSamples++;
+
+        long delayUs = mWriteLatencyUs;
+        if (mJitterUs > 0) {
+            delayUs += (long) (mRandom.nextDouble() * mJitterUs);
+        }
+        if (mStallEvery > 0 && mSamples % mStallEvery == 0) {
+            delayUs += mStallUs;
+        }
+        if (delayUs > 0) {
+            LockSupport.parkNanos(delayUs * 1000);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (!mStarted) {
+            throw new IllegalStateException("muxer not started");
+        }
+        mStopped = true;
+    }
+
+    @Override
+    public void release() {
+    }
+
+    public synchronized List<TrackFormat> getTracks() {
+        return new ArrayList<>(mTracks);
+    }
+
+    public long getSampleCount() {
+        return mSamples;
+    }
+
+    public long getByteCount() {
+        return mBytes;
+    }
+
+    public long getLastPresentationTimeUs(int trackIndex) {
+        return mLastPresentationTimeUs[trackIndex];
+    }
+
+    /**
+     * @return a sum over all written bytes, so benchmarks can't have the copies optimized away
+     */
+    public long getChecksum() {
+        return mChecksum;
+    }
+
+    public boolean isStopped() {
+        return mStopped;
+    }
+}
@@ -0,0 +1,704 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * {@link SampleMuxer} writing a fragmented MPEG-4 file, in pure Java.
+ * <p>
+ * MediaMuxer only writes the moov box, with all the sample tables, when it is stopped, so a
+ * recording that is killed or fails to stop can't be played.  Here the moov box only describes
+ * the tracks and goes out at {@link #start()}; the samples follow in self-contained moof/mdat
+ * fragments of about {@link #DEFAULT_FRAGMENT_DURATION_US}, cut on video key frames.  A file
+ * cut short plays up to its last complete fragment.
+ * <p>
+ * Supports H.264 video, with the SPS and PPS as csd-0 and csd-1 and samples in Annex-B as
+ * MediaCodec outputs them, and AAC audio, with the AudioSpecificConfig as csd-0.  Sample
+ * durations come from the next sample of the track, so the last sample of each track is held
+ * until then.  A fragment is assembled in reused buffers and written to the channel in one go.
+ */
+public class FragmentedMp4Muxer implements SampleMuxer {
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 2000000;
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int MAX_TRACKS = 4;
+    private static final int INITIAL_DATA_CAPACITY = 256 * 1024;
+    // Sample flags: sample_depends_on 2 for sync samples, 1 and is_non_sync_sample otherwise
+    private static final int FLAGS_SYNC = 0x02000000;
+    private static final int FLAGS_NON_SYNC = 0x01010000;
+    // trun: data-offset, sample-duration, sample-size and sample-flags present
+    private static final int TRUN_FLAGS = 0x000701;
+    // tfhd: default-base-is-moof
+    private static final int TFHD_FLAGS = 0x020000;
+
+    private static class Track {
+        final TrackFormat format;
+        final int id;
+        final int timescale;
+        // Samples not written yet, decode times in timescale units; data in data, back to back
+        long[] dts = new long[64];
+        int[] sizes = new int[64];
+        boolean[] sync = new boolean[64];
+        int count;
+        long lastDts = -1;
+        long lastDuration;
+        ByteBuffer data = ByteBuffer.allocateDirect(INITIAL_DATA_CAPACITY);
+        // Set while a fragment is written: samples and bytes it takes
+        int flushCount;
+        int flushBytes;
+
+        Track(TrackFormat format, int id) {
+            this.format = format;
+            this.id = id;
+            timescale = format.isVideo() ? VIDEO_TIMESCALE : format.getSampleRate();
+        }
+    }
+
+    private final WritableByteChannel mChannel;
+    private final long mFragmentDurationUs;
+    private final Track[] mTracks = new Track[MAX_TRACKS];
+    private int mTrackCount;
+    private int mVideoTrack = -1;
+    private boolean mStarted;
+    private boolean mStopped;
+    private ByteBuffer mHeader = ByteBuffer.allocate(16 * 1024);
+    private final ByteBuffer[] mGather = new ByteBuffer[MAX_TRACKS + 1];
+    private final int[] mDataOffsetAt = new int[MAX_TRACKS];
+    private long mFragmentStartUs = -1;
+    private int mSequence;
+    private volatile long mFragments;
+    private volatile long mBytesWritten;
+
+    /**
+     * Writes a new file at {@code path}, fragments of {@link #DEFAULT_FRAGMENT_DURATION_US}.
+     */
+    public FragmentedMp4Muxer(String path) throws IOException {
+        this(new FileOutputStream(path).getChannel(), DEFAULT_FRAGMENT_DURATION_US);
+    }
+
+    /**
+     * @param channel            where to write, from its current position; closed by
+     *                           {@link #release()}
+     * @param fragmentDurationUs how much media a fragment holds before it is cut at the next
+     *                           video key frame
+     */
+    public FragmentedMp4Muxer(WritableByteChannel channel, long fragmentDurationUs) {
+        mChannel = channel;
+        mFragmentDurationUs = fragmentDurationUs;
+    }
+
+    /**
+     * @return number of fragments written
+     */
+    public long getFragmentCount() {
+        return mFragments;
+    }
+
+    /**
+     * @return bytes written to the channel
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("tracks must be added before start");
+        }
+        if (mTrackCount == MAX_TRACKS) {
+            throw new IllegalStateException("too many tracks");
+        }
+        if (format.isVideo() ? format.getCsd0() == null || format.getCsd1() == null
+                : format.getSampleRate() <= 0) {
+            throw new IllegalArgumentException("incomplete format " + format);
+        }
+        int index = mTrackCount++;
+        mTracks[index] = new Track(format, index + 1);
+        if (format.isVideo() && mVideoTrack < 0) {
+            mVideoTrack = index;
+        }
+        return index;
+    }
+
+    /**
+     * Writes the file header: ftyp, and moov describing the tracks.
+     */
+    @Override
+    public void start() {
+        if (mStarted) {
+            throw new IllegalStateException("already started");
+        }
+        if (mTrackCount == 0) {
+            throw new IllegalStateException("no tracks");
+        }
+        mStarted = true;
+        ByteBuffer buf = header(4096);
+        writeFtyp(buf);
+        writeMoov(buf);
+        buf.flip();
+        mGather[0] = buf;
+        write(1);
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+        if (!mStarted || mStopped) {
+            throw new IllegalStateException("muxer isn't running");
+        }
+        if (info.isCodecConfig() || info.size == 0) {
+            return;
+        }
+        Track track = mTracks[trackIndex];
+        long ptsUs = info.presentationTimeUs;
+        if (mFragmentStartUs < 0) {
+            mFragmentStartUs = ptsUs;
+        }
+        boolean sync = track.format.isAudio() || info.isKeyFrame();
+        long dts = toTimescale(ptsUs, track.timescale);
+        if (dts <= track.lastDts) {
+            dts = track.lastDts + 1;
+        }
+
+        boolean cutHere = mVideoTrack < 0 || (trackIndex == mVideoTrack && sync);
+        if (cutHere && ptsUs - mFragmentStartUs >= mFragmentDurationUs && hasSamples()) {
+            writeFragment(trackIndex, dts, false);
+            mFragmentStartUs = ptsUs;
+        }
+
+        if (track.count == track.dts.length) {
+            int capacity = track.count * 2;
+            track.dts = Arrays.copyOf(track.dts, capacity);
+            track.sizes = Arrays.copyOf(track.sizes, capacity);
+            track.sync = Arrays.copyOf(track.sync, capacity);
+        }
+        int start = track.data.position();
+        if (track.format.isVideo()) {
+            appendAvcSample(track, data, info.offset, info.size);
+        } else {
+            track.data = ensure(track.data, info.size);
+            copy(data, info.offset, info.size, track.data);
+        }
+        int n = track.count++;
+        track.dts[n] = dts;
+        track.sizes[n] = track.data.position() - start;
+        track.sync[n] = sync;
+        if (track.lastDts >= 0) {
+            track.lastDuration = dts - track.lastDts;
+        }
+        track.lastDts = dts;
+    }
+
+    /**
+     * Writes the samples still held as a last fragment, and forces them to storage if the
+     * channel is a file.
+     */
+    @Override
+    public void stop() {
+        if (!mStarted || mStopped) {
+            throw new IllegalStateException("muxer isn't running");
+        }
+        mStopped = true;
+        if (hasSamples()) {
+            writeFragment(-1, 0, true);
+        }
+        if (mChannel instanceof FileChannel) {
+            try {
+                ((FileChannel) mChannel).force(false);
+            } catch (IOException e) {
+                throw new IllegalStateException("failed to sync", e);
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to close", e);
+        }
+    }
+
+    private boolean hasSamples() {
+        for (int i = 0; i < mTrackCount; i++) {
+            if (mTracks[i].count > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long toTimescale(long us, int timescale) {
+        return (us * timescale + 500000) / 1000000;
+    }
+
+    /**
+     * Writes a moof/mdat fragment.  Each track's last sample is held back, since its duration
+     * isn't known yet, unless {@code last} or the track is {@code nextTrack}, whose next sample
+     * is decoded at {@code nextDts}.
+     */
+    private void writeFragment(int nextTrack, long nextDts, boolean last) {
+        int mdatSize = 8;
+        for (int i = 0; i < mTrackCount; i++) {
+            Track track = mTracks[i];
+            int count = last || i == nextTrack ? track.count : Math.max(0, track.count - 1);
+            track.flushCount = count;
+            track.flushBytes = 0;
+            for (int s = 0; s < count; s++) {
+                track.flushBytes += track.sizes[s];
+            }
+            mdatSize += track.flushBytes;
+        }
+
+        ByteBuffer buf = header(256 + 16 * sampleCount());
+        int moof = begin(buf, "moof");
+        int mfhd = beginFull(buf, "mfhd", 0, 0);
+        buf.putInt(++mSequence);
+        end(buf, mfhd);
+        int[] dataOffsetAt = mDataOffsetAt;
+        for (int i = 0; i < mTrackCount; i++) {
+            Track track = mTracks[i];
+            int count = track.flushCount;
+            dataOffsetAt[i] = -1;
+            if (count == 0) {
+                continue;
+            }
+            int traf = begin(buf, "traf");
+            int tfhd = beginFull(buf, "tfhd", 0, TFHD_FLAGS);
+            buf.putInt(track.id);
+            end(buf, tfhd);
+            int tfdt = beginFull(buf, "tfdt", 1, 0);
+            buf.putLong(track.dts[0]);
+            end(buf, tfdt);
+            int trun = beginFull(buf, "trun", 0, TRUN_FLAGS);
+            buf.putInt(count);
+            dataOffsetAt[i] = buf.position();
+            buf.putInt(0);
+            for (int s = 0; s < count; s++) {
+                long duration;
+                if (s + 1 < track.count) {
+                    duration = track.dts[s + 1] - track.dts[s];
+                } else if (i == nextTrack) {
+                    duration = nextDts - track.dts[s];
+                } else {
+                    // The very last sample: assume it lasts as long as the one before
+                    duration = track.lastDuration;
+                }
+                buf.putInt((int) duration);
+                buf.putInt(track.sizes[s]);
+                buf.putInt(track.sync[s] ? FLAGS_SYNC : FLAGS_NON_SYNC);
+            }
+            end(buf, trun);
+            end(buf, traf);
+        }
+        end(buf, moof);
+        int moofSize = buf.position() - moof;
+        // Data offsets count from the start of the moof
+        int offset = moofSize + 8;
+        for (int i = 0; i < mTrackCount; i++) {
+            if (dataOffsetAt[i] >= 0) {
+                buf.putInt(dataOffsetAt[i], offset);
+                offset += mTracks[i].flushBytes;
+            }
+        }
+        buf.putInt(mdatSize);
+        buf.put(type("mdat"));
+        buf.flip();
+
+        int buffers = 0;
+        mGather[buffers++] = buf;
+        for (int i = 0; i < mTrackCount; i++) {
+            Track track = mTracks[i];
+            if (track.flushBytes > 0) {
+                ByteBuffer data = track.data.duplicate();
+                data.flip();
+                data.limit(track.flushBytes);
+                mGather[buffers++] = data;
+            }
+        }
+        write(buffers);
+        mFragments++;
+
+        for (int i = 0; i < mTrackCount; i++) {
+            dropFlushed(mTracks[i]);
+        }
+    }
+
+    private int sampleCount() {
+        int count = 0;
+        for (int i = 0; i < mTrackCount; i++) {
+            count += mTracks[i].count;
+        }
+        return count;
+    }
+
+    /**
+     * Moves the samples a fragment didn't take to the front.
+     */
+    private static void dropFlushed(Track track) {
+        int count = track.flushCount;
+        int left = track.count - count;
+        if (count == 0) {
+            return;
+        }
+        System.arraycopy(track.dts, count, track.dts, 0, left);
+        System.arraycopy(track.sizes, count, track.sizes, 0, left);
+        System.arraycopy(track.sync, count, track.sync, 0, left);
+        track.count = left;
+        ByteBuffer data = track.data;
+        data.flip();
+        data.position(track.flushBytes);
+        data.compact();
+    }
+
+    private void write(int buffers) {
+        try {
+            for (int i = 0; i < buffers; i++) {
+                ByteBuffer buf = mGather[i];
+                while (buf.hasRemaining()) {
+                    mBytesWritten += mChannel.write(buf);
+                }
+                mGather[i] = null;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to write", e);
+        }
+    }
+
+    /**
+     * Copies an Annex-B access unit as length prefixed NAL units, the way MP4 stores them.
+     */
+    private static void appendAvcSample(Track track, ByteBuffer src, int offset, int size) {
+        // Each 3 byte start code becomes a 4 byte length, so this much room is always enough
+        ByteBuffer dst = track.data = ensure(track.data, size + size / 3 + 4);
+        int end = offset + size;
+        int nal = skipStartCode(src, offset, end);
+        if (nal == offset) {
+            // Not Annex-B, take it as a single NAL unit
+            dst.putInt(size);
+            copy(src, offset, size, dst);
+            return;
+        }
+        while (nal < end) {
+            int next = findStartCode(src, nal, end);
+            int nalEnd = next;
+            while (nalEnd > nal && src.get(nalEnd - 1) == 0) {
+                // Trailing zeros, or the first byte of a 4 byte start code
+                nalEnd--;
+            }
+            if (nalEnd > nal) {
+                dst.putInt(nalEnd - nal);
+                copy(src, nal, nalEnd - nal, dst);
+            }
+            nal = next == end ? end : skipStartCode(src, next, end);
+        }
+    }
+
+    /**
+     * @return the index after the start code at {@code i}, or {@code i} if there is none
+     */
+    private static int skipStartCode(ByteBuffer buf, int i, int end) {
+        int j = i;
+        while (j < end && buf.get(j) == 0) {
+            j++;
+        }
+        if (j - i >= 2 && j < end && buf.get(j) == 1) {
+            return j + 1;
+        }
+        return i;
+    }
+
+    /**
+     * @return the index of the next 00 00 01 at or after {@code i}, or {@code end}
+     */
+    private static int findStartCode(ByteBuffer buf, int i, int end) {
+        for (int j = i; j + 2 < end; j++) {
+            if (buf.get(j + 2) > 1) {
+                j += 2;
+            } else if (buf.get(j) == 0 && buf.get(j + 1) == 0 && buf.get(j + 2) == 1) {
+                return j;
+            }
+        }
+        return end;
+    }
+
+    private static void copy(ByteBuffer src, int offset, int size, ByteBuffer dst) {
+        ByteBuffer view = src.duplicate();
+        view.limit(offset + size);
+        view.position(offset);
+        dst.put(view);
+    }
+
+    private static ByteBuffer ensure(ByteBuffer buf, int extra) {
+        if (buf.remaining() >= extra) {
+            return buf;
+        }
+        int capacity = Math.max(buf.capacity() * 2, buf.position() + extra);
+        ByteBuffer bigger = buf.isDirect() ? ByteBuffer.allocateDirect(capacity)
+                : ByteBuffer.allocate(capacity);
+        buf.flip();
+        bigger.put(buf);
+        return bigger;
+    }
+
+    private ByteBuffer header(int capacity) {
+        if (mHeader.capacity() < capacity) {
+            mHeader = ByteBuffer.allocate(Math.max(capacity, mHeader.capacity() * 2));
+        }
+        mHeader.clear();
+        return mHeader;
+    }
+
+    // ----- boxes -----
+
+    private static byte[] type(String fourcc) {
+        return new byte[] {(byte) fourcc.charAt(0), (byte) fourcc.charAt(1),
+                (byte) fourcc.charAt(2), (byte) fourcc.charAt(3)};
+    }
+
+    private static int begin(ByteBuffer buf, String fourcc) {
+        int start = buf.position();
+        buf.putInt(0);
+        buf.put(type(fourcc));
+        return start;
+    }
+
+    private static int beginFull(ByteBuffer buf, String fourcc, int version, int flags) {
+        int start = begin(buf, fourcc);
+        buf.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private static void end(ByteBuffer buf, int start) {
+        buf.putInt(start, buf.position() - start);
+    }
+
+    private static void putMatrix(ByteBuffer buf) {
+        int[] matrix = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+        for (int value : matrix) {
+            buf.putInt(value);
+        }
+    }
+
+    private static void writeFtyp(ByteBuffer buf) {
+        int ftyp = begin(buf, "ftyp");
+        buf.put(type("isom"));
+        buf.putInt(0x200);
+        buf.put(type("isom"));
+        buf.put(type("iso6"));
+        buf.put(type("mp41"));
+        buf.put(type("avc1"));
+        end(buf, ftyp);
+    }
+
+    private void writeMoov(ByteBuffer buf) {
+        int moov = begin(buf, "moov");
+        int mvhd = beginFull(buf, "mvhd", 0, 0);
+        buf.putInt(0); // creation time
+        buf.putInt(0); // modification time
+        buf.putInt(MOVIE_TIMESCALE);
+        buf.putInt(0); // duration: in the fragments
+        buf.putInt(0x00010000); // rate
+        buf.putShort((short) 0x0100); // volume
+        buf.put(new byte[10]);
+        putMatrix(buf);
+        buf.put(new byte[24]);
+        buf.putInt(mTrackCount + 1); // next track ID
+        end(buf, mvhd);
+        for (int i = 0; i < mTrackCount; i++) {
+            writeTrak(buf, mTracks[i]);
+        }
+        int mvex = begin(buf, "mvex");
+        for (int i = 0; i < mTrackCount; i++) {
+            int trex = beginFull(buf, "trex", 0, 0);
+            buf.putInt(mTracks[i].id);
+            buf.putInt(1); // sample description index
+            buf.putInt(0); // duration, size and flags are all in the truns
+            buf.putInt(0);
+            buf.putInt(0);
+            end(buf, trex);
+        }
+        end(buf, mvex);
+        end(buf, moov);
+    }
+
+    private static void writeTrak(ByteBuffer buf, Track track) {
+        TrackFormat format = track.format;
+        boolean video = format.isVideo();
+        int trak = begin(buf, "trak");
+        int tkhd = beginFull(buf, "tkhd", 0, 3); // enabled, in movie
+        buf.putInt(0); // creation time
+        buf.putInt(0); // modification time
+        buf.putInt(track.id);
+        buf.putInt(0);
+        buf.putInt(0); // duration
+        buf.put(new byte[8]);
+        buf.putShort((short) 0); // layer
+        buf.putShort((short) 0); // alternate group
+        buf.putShort((short) (video ? 0 : 0x0100)); // volume
+        buf.putShort((short) 0);
+        putMatrix(buf);
+        buf.putInt(video ? format.getWidth() << 16 : 0);
+        buf.putInt(video ? format.getHeight() << 16 : 0);
+        end(buf, tkhd);
+
+        int mdia = begin(buf, "mdia");
+        int mdhd = beginFull(buf, "mdhd", 0, 0);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(track.timescale);
+        buf.putInt(0);
+        buf.putShort((short) 0x55c4); // "und"
+        buf.putShort((short) 0);
+        end(buf, mdhd);
+        int hdlr = beginFull(buf, "hdlr", 0, 0);
+        buf.putInt(0);
+        buf.put(type(video ? "vide" : "soun"));
+        buf.put(new byte[12]);
+        byte[] name = (video ? "VideoHandle\0" : "SoundHandle\0").getBytes();
+        buf.put(name);
+        end(buf, hdlr);
+
+        int minf = begin(buf, "minf");
+        if (video) {
+            int vmhd = beginFull(buf, "vmhd", 0, 1);
+            buf.put(new byte[8]);
+            end(buf, vmhd);
+        } else {
+            int smhd = beginFull(buf, "smhd", 0, 0);
+            buf.putInt(0);
+            end(buf, smhd);
+        }
+        int dinf = begin(buf, "dinf");
+        int dref = beginFull(buf, "dref", 0, 0);
+        buf.putInt(1);
+        int url = beginFull(buf, "url ", 0, 1); // data is in this file
+        end(buf, url);
+        end(buf, dref);
+        end(buf, dinf);
+
+        int stbl = begin(buf, "stbl");
+        int stsd = beginFull(buf, "stsd", 0, 0);
+        buf.putInt(1);
+        if (video) {
+            writeAvc1(buf, format);
+        } else {
+            writeMp4a(buf, format);
+        }
+        end(buf, stsd);
+        // The samples are all in fragments, these tables stay empty
+        String[] empty = {"stts", "stsc", "stco"};
+        for (String fourcc : empty) {
+            int box = beginFull(buf, fourcc, 0, 0);
+            buf.putInt(0);
+            end(buf, box);
+        }
+        int stsz = beginFull(buf, "stsz", 0, 0);
+        buf.putInt(0);
+        buf.putInt(0);
+        end(buf, stsz);
+        end(buf, stbl);
+        end(buf, minf);
+        end(buf, mdia);
+        end(buf, trak);
+    }
+
+    private static void writeAvc1(ByteBuffer buf, TrackFormat format) {
+        ByteBuffer sps = stripStartCode(format.getCsd0());
+        ByteBuffer pps = stripStartCode(format.getCsd1());
+        int avc1 = begin(buf, "avc1");
+        buf.put(new byte[6]);
+        buf.putShort((short) 1); // data reference index
+        buf.put(new byte[16]);
+        buf.putShort((short) format.getWidth());
+        buf.putShort((short) format.getHeight());
+        buf.putInt(0x00480000); // 72 dpi
+        buf.putInt(0x00480000);
+        buf.putInt(0);
+        buf.putShort((short) 1); // frame count
+        buf.put(new byte[32]); // compressor name
+        buf.putShort((short) 0x0018); // depth
+        buf.putShort((short) -1);
+        int avcC = begin(buf, "avcC");
+        buf.put((byte) 1); // configuration version
+        buf.put(sps.get(sps.position() + 1)); // profile
+        buf.put(sps.get(sps.position() + 2)); // profile compatibility
+        buf.put(sps.get(sps.position() + 3)); // level
+        buf.put((byte) 0xff); // 4 byte NAL unit lengths
+        buf.put((byte) 0xe1); // one SPS
+        buf.putShort((short) sps.remaining());
+        buf.put(sps);
+        buf.put((byte) 1); // one PPS
+        buf.putShort((short) pps.remaining());
+        buf.put(pps);
+        end(buf, avcC);
+        end(buf, avc1);
+    }
+
+    private static void writeMp4a(ByteBuffer buf, TrackFormat format) {
+        ByteBuffer asc;
+        if (format.getCsd0() != null) {
+            asc = format.getCsd0().duplicate();
+        } else {
+            asc = ByteBuffer.wrap(audioSpecificConfig(format.getSampleRate(),
+                    format.getChannelCount()));
+        }
+        int mp4a = begin(buf, "mp4a");
+        buf.put(new byte[6]);
+        buf.putShort((short) 1); // data reference index
+        buf.put(new byte[8]);
+        buf.putShort((short) format.getChannelCount());
+        buf.putShort((short) 16); // sample size
+        buf.putInt(0);
+        buf.putInt(format.getSampleRate() << 16);
+        int esds = beginFull(buf, "esds", 0, 0);
+        int ascSize = asc.remaining();
+        buf.put((byte) 0x03); // ES_Descriptor
+        buf.put((byte) (3 + 15 + 2 + ascSize + 3));
+        buf.putShort((short) 0); // ES_ID
+        buf.put((byte) 0);
+        buf.put((byte) 0x04); // DecoderConfigDescriptor
+        buf.put((byte) (13 + 2 + ascSize));
+        buf.put((byte) 0x40); // MPEG-4 audio
+        buf.put((byte) 0x15); // audio stream
+        buf.put(new byte[3]); // buffer size
+        buf.putInt(0); // max bitrate
+        buf.putInt(0); // average bitrate
+        buf.put((byte) 0x05); // DecoderSpecificInfo
+        buf.put((byte) ascSize);
+        buf.put(asc);
+        buf.put((byte) 0x06); // SLConfigDescriptor
+        buf.put((byte) 1);
+        buf.put((byte) 2);
+        end(buf, esds);
+        end(buf, mp4a);
+    }
+
+    /**
+     * Builds an AAC-LC AudioSpecificConfig, for formats that don't carry one.
+     */
+    static byte[] audioSpecificConfig(int sampleRate, int channelCount) {
+        int[] rates = {96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000,
+                11025, 8000, 7350};
+        int index = 3;
+        for (int i = 0; i < rates.length; i++) {
+            if (rates[i] == sampleRate) {
+                index = i;
+            }
+        }
+        int config = (2 << 11) | (index << 7) | (channelCount << 3);
+        return new byte[] {(byte) (config >> 8), (byte) config};
+    }
+
+    private static ByteBuffer stripStartCode(ByteBuffer csd) {
+        ByteBuffer view = csd.duplicate();
+        int start = skipStartCode(view, view.position(), view.limit());
+        view.position(start);
+        return view;
+    }
+}
@@ -0,0 +1,211 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Follows video frames through the recording pipeline and collects how long each one spends
+ * between stages into {@link LatencyHistogram}s.
+ * <p>
+ * The render thread reports a frame with {@link #frameDrawn} and {@link #frameSwapped}; the
+ * encoder output side and the muxer writer report it again by presentation time with
+ * {@link #frameDequeued} and {@link #frameWritten}.  In-flight frames are kept in a fixed table
+ * of {@link #MAX_FRAMES_IN_FLIGHT} entries, so nothing is allocated per frame.  A frame still in
+ * flight when its entry is reused is lost from the later stages.
+ * <p>
+ * The histograms can be read with {@link #summarize()} at any time, from any thread.
+ * <p>
+ * The startup latency, from the moment recording was asked for to the first video key frame
+ * written, is measured once per recording: {@link #startRequested}, then
+ * {@link #keyFrameWritten}.
+ */
+public class FrameLatencyTracker {
+    public static final int MAX_FRAMES_IN_FLIGHT = 64;
+
+    /**
+     * The measured intervals, each ending at one stage of the pipeline.
+     */
+    public enum Interval {
+        /** SurfaceTexture timestamp to the frame available callback */
+        CAPTURE,
+        /** Frame available to latched with updateTexImage() */
+        LATCH,
+        /** Latched to drawn onto the encoder input surface (GL calls issued) */
+        DRAW,
+        /** Drawn to eglSwapBuffers() returned */
+        SWAP,
+        /** Swapped to dequeued from the video encoder */
+        ENCODE,
+        /** Dequeued from the encoder to written by the muxer */
+        MUX,
+        /** Frame available to written by the muxer */
+        TOTAL
+    }
+
+    private static final Interval[] INTERVALS = Interval.values();
+
+    // Timestamps kept per frame, in System.nanoTime()
+    private static final int AVAILABLE = 0;
+    private static final int SWAPPED = 1;
+    private static final int DEQUEUED = 2;
+    private static final int STAMPS = 3;
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int MASK = MAX_FRAMES_IN_FLIGHT - 1;
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[INTERVALS.length];
+    private final AtomicLongArray mPresentationTimes = new AtomicLongArray(MAX_FRAMES_IN_FLIGHT);
+    private final AtomicLongArray mStamps = new AtomicLongArray(MAX_FRAMES_IN_FLIGHT * STAMPS);
+    // Render thread only
+    private int mNextSlot;
+    private int mCurrentSlot = -1;
+    private volatile long mStartRequestedNanos;
+    private volatile long mStartupNanos = -1;
+
+    public FrameLatencyTracker() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+        clearSlots();
+    }
+
+    public LatencyHistogram getHistogram(Interval interval) {
+        return mHistograms[interval.ordinal()];
+    }
+
+    /**
+     * Forgets all frames and recorded values.  Call before a recording starts, from the render
+     * thread.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        clearSlots();
+        mNextSlot = 0;
+        mCurrentSlot = -1;
+        mStartRequestedNanos = 0;
+        mStartupNanos = -1;
+    }
+
+    /**
+     * Recording was asked for, e.g. on touch down.  Call after {@link #reset()}.
+     */
+    public void startRequested(long nanos) {
+        mStartupNanos = -1;
+        mStartRequestedNanos = nanos;
+    }
+
+    /**
+     * The muxer has written a video key frame.  The first one after {@link #startRequested} ends
+     * the startup latency.  (Muxer writer thread.)
+     */
+    public void keyFrameWritten(long nanos) {
+        long requested = mStartRequestedNanos;
+        if (requested != 0 && mStartupNanos < 0) {
+            mStartupNanos = nanos - requested;
+        }
+    }
+
+    /**
+     * @return time from {@link #startRequested} to the first key frame written, or -1 if there
+     * hasn't been one yet
+     */
+    public long getStartupNanos() {
+        return mStartupNanos;
+    }
+
+    /**
+     * A frame has been drawn.  (Render thread.)
+     *
+     * @param presentationTimeUs the presentation time the frame will have at the encoder output
+     * @param captureNanos       the frame's SurfaceTexture timestamp, or 0 if unknown
+     */
+    public void frameDrawn(long presentationTimeUs, long captureNanos, long availableNanos,
+                           long latchedNanos, long drawnNanos) {
+        int slot = mNextSlot;
+        mNextSlot = (slot + 1) & MASK;
+        mCurrentSlot = slot;
+        mPresentationTimes.set(slot, EMPTY);
+        mStamps.set(slot * STAMPS + AVAILABLE, availableNanos);
+        // Until the swap returns, ENCODE is measured from the draw
+        mStamps.set(slot * STAMPS + SWAPPED, drawnNanos);
+        mStamps.set(slot * STAMPS + DEQUEUED, 0);
+        // Published before the swap: the encoder may emit the frame before swap returns
+        mPresentationTimes.set(slot, presentationTimeUs);
+
+        if (captureNanos > 0 && captureNanos <= availableNanos) {
+            record(Interval.CAPTURE, availableNanos - captureNanos);
+        }
+        record(Interval.LATCH, latchedNanos - availableNanos);
+        record(Interval.DRAW, drawnNanos - latchedNanos);
+    }
+
+    /**
+     * The frame last reported by {@link #frameDrawn} has been swapped to the encoder.
+     * (Render thread.)
+     */
+    public void frameSwapped(long swappedNanos) {
+        int slot = mCurrentSlot;
+        if (slot < 0) {
+            return;
+        }
+        mCurrentSlot = -1;
+        long drawnNanos = mStamps.get(slot * STAMPS + SWAPPED);
+        record(Interval.SWAP, swappedNanos - drawnNanos);
+        mStamps.set(slot * STAMPS + SWAPPED, swappedNanos);
+    }
+
+    /**
+     * The encoder has output the frame.  (Encoder output thread.)
+     */
+    public void frameDequeued(long presentationTimeUs, long nanos) {
+        int slot = find(presentationTimeUs);
+        if (slot < 0) {
+            return;
+        }
+        record(Interval.ENCODE, nanos - mStamps.get(slot * STAMPS + SWAPPED));
+        mStamps.set(slot * STAMPS + DEQUEUED, nanos);
+    }
+
+    /**
+     * The muxer has written the frame.  (Muxer writer thread.)
+     */
+    public void frameWritten(long presentationTimeUs, long nanos) {
+        int slot = find(presentationTimeUs);
+        if (slot < 0) {
+            return;
+        }
+        long dequeued = mStamps.get(slot * STAMPS + DEQUEUED);
+        if (dequeued != 0) {
+            record(Interval.MUX, nanos - dequeued);
+        }
+        record(Interval.TOTAL, nanos - mStamps.get(slot * STAMPS + AVAILABLE));
+        mPresentationTimes.compareAndSet(slot, presentationTimeUs, EMPTY);
+    }
+
+    /**
+     * Returns the p50, p99 and maximum of every interval so far.
+     */
+    public LatencySummary summarize() {
+        return new LatencySummary(mHistograms, mStartupNanos);
+    }
+
+    private void record(Interval interval, long nanos) {
+        mHistograms[interval.ordinal()].record(nanos);
+    }
+
+    private int find(long presentationTimeUs) {
+        for (int i = 0; i < MAX_FRAMES_IN_FLIGHT; i++) {
+            if (mPresentationTimes.get(i) == presentationTimeUs) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void clearSlots() {
+        for (int i = 0; i < MAX_FRAMES_IN_FLIGHT; i++) {
+            mPresentationTimes.set(i, EMPTY);
+        }
+    }
+}
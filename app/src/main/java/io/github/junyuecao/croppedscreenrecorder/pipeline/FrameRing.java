@@ -0,0 +1,135 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+/**
+ * Hands available frames from the SurfaceTexture listener thread to the encoder thread.
+ * <p>
+ * A fixed ring of preallocated {@link Frame} slots, each with its own transform, so a frame can
+ * not be overwritten by the next one before the encoder has drawn it, and nothing is allocated
+ * per frame.  There must be exactly one producer thread and one consumer thread.
+ * <p>
+ * Producer: {@link #claim()}, fill in the slot, {@link #publish()}.  Consumer: {@link #peek()},
+ * use the slot, {@link #release()}.
+ */
+public class FrameRing {
+    public static final int DEFAULT_CAPACITY = 8;
+
+    /**
+     * A frame slot.  Only the thread currently owning the slot may touch it.
+     */
+    public static class Frame {
+        /** The texture transform, from SurfaceTexture */
+        public final float[] transform = new float[16];
+        /** The frame's timestamp, from SurfaceTexture */
+        public long timestampNanos;
+        /** System.nanoTime() when the frame was published */
+        public long availableNanos;
+        /**
+         * False if the frame still has to be latched from its SurfaceTexture by the consumer,
+         * which then fills in the transform and timestamp
+         */
+        public boolean latched;
+    }
+
+    private final Frame[] mSlots;
+    private final int mMask;
+    // Written by the producer only
+    private volatile long mTail;
+    // Written by the consumer only
+    private volatile long mHead;
+    private volatile long mDroppedFrames;
+    private volatile long mSkippedFrames;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    public FrameRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mSlots = new Frame[size];
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new Frame();
+        }
+        mMask = size - 1;
+    }
+
+    public int getCapacity() {
+        return mSlots.length;
+    }
+
+    /**
+     * Returns the next free slot for the producer to fill, or null if the consumer is a full
+     * ring behind.  In that case the frame is counted as dropped.
+     */
+    public Frame claim() {
+        long tail = mTail;
+        if (tail - mHead >= mSlots.length) {
+            mDroppedFrames++;
+            return null;
+        }
+        return mSlots[(int) tail & mMask];
+    }
+
+    /**
+     * Makes the slot returned by the last {@link #claim()} visible to the consumer.
+     */
+    public void publish() {
+        mSlots[(int) mTail & mMask].availableNanos = System.nanoTime();
+        mTail = mTail + 1;
+    }
+
+    /**
+     * Returns the oldest published frame without removing it, or null if there is none.
+     */
+    public Frame peek() {
+        long head = mHead;
+        if (head == mTail) {
+            return null;
+        }
+        return mSlots[(int) head & mMask];
+    }
+
+    /**
+     * Gives the slot returned by {@link #peek()} back to the producer.
+     */
+    public void release() {
+        mHead = mHead + 1;
+    }
+
+    /**
+     * Releases every published frame but the newest, which {@link #peek()} then returns.
+     * Consumer side, for when only the latest frame is worth drawing.
+     *
+     * @return number of frames skipped
+     */
+    public int skipToLatest() {
+        long tail = mTail;
+        long head = mHead;
+        if (tail - head <= 1) {
+            return 0;
+        }
+        int skipped = (int) (tail - 1 - head);
+        mSkippedFrames = mSkippedFrames + skipped;
+        mHead = tail - 1;
+        return skipped;
+    }
+
+    /**
+     * @return number of frames published but not released yet
+     */
+    public int size() {
+        return (int) (mTail - mHead);
+    }
+
+    /**
+     * @return number of frames the producer could not claim a slot for
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * @return number of frames passed over by {@link #skipToLatest()}
+     */
+    public long getSkippedFrames() {
+        return mSkippedFrames;
+    }
+}
@@ -0,0 +1,140 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Media playlist of an HLS recording, rewritten as each segment is finished so players can follow
+ * the recording live.
+ * <p>
+ * The playlist is written to a temporary file and renamed over, so a server never hands out a
+ * half written one.  With a window, only the newest segments are listed and the media sequence
+ * counts the ones dropped; the files themselves are left alone.  Without one, every segment is
+ * listed and the playlist is an EVENT playlist, which players can also seek back in.
+ * {@link #finish} marks the end of the recording.
+ */
+public class HlsPlaylist {
+    private static class Segment {
+        final String uri;
+        final long durationUs;
+
+        Segment(String uri, long durationUs) {
+            this.uri = uri;
+            this.durationUs = durationUs;
+        }
+    }
+
+    private final File mFile;
+    private final int mWindowSize;
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<>();
+    private final StringBuilder mText = new StringBuilder();
+    private final long mTargetDurationS;
+    private long mMediaSequence;
+    private long mOverruns;
+    private boolean mFinished;
+
+    /**
+     * @param targetDurationUs how long segments may be at most.  A live playlist can't change its
+     *                         target duration, so it is fixed here; longer segments are still
+     *                         listed, and counted as overruns.
+     * @param windowSize       number of segments listed, 0 for all of them
+     */
+    public HlsPlaylist(File file, long targetDurationUs, int windowSize) {
+        mFile = file;
+        mWindowSize = windowSize;
+        mTargetDurationS = Math.max(1, (targetDurationUs + 999999) / 1000000);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return number of segments dropped off the window
+     */
+    public synchronized long getMediaSequence() {
+        return mMediaSequence;
+    }
+
+    /**
+     * @return the target duration, in seconds
+     */
+    public long getTargetDurationS() {
+        return mTargetDurationS;
+    }
+
+    /**
+     * @return number of segments listed that are longer than the target duration
+     */
+    public synchronized long getOverruns() {
+        return mOverruns;
+    }
+
+    /**
+     * Lists a finished segment and rewrites the playlist.
+     *
+     * @param uri where the segment is, relative to the playlist
+     */
+    public synchronized void addSegment(String uri, long durationUs) throws IOException {
+        if (mFinished) {
+            throw new IllegalStateException("playlist is finished");
+        }
+        // Durations are rounded to the nearest second when checked against the target.  Failing
+        // the recording over a segment that wasn't cut in time would lose far more.
+        if ((durationUs + 500000) / 1000000 > mTargetDurationS) {
+            mOverruns++;
+        }
+        mSegments.add(new Segment(uri, durationUs));
+        if (mWindowSize > 0 && mSegments.size() > mWindowSize) {
+            mSegments.remove();
+            mMediaSequence++;
+        }
+        write();
+    }
+
+    /**
+     * Marks the recording ended and rewrites the playlist a last time.
+     */
+    public synchronized void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        write();
+    }
+
+    private void write() throws IOException {
+        StringBuilder text = mText;
+        text.setLength(0);
+        text.append("#EXTM3U\n");
+        text.append("#EXT-X-VERSION:3\n");
+        if (mWindowSize == 0) {
+            text.append("#EXT-X-PLAYLIST-TYPE:EVENT\n");
+        }
+        text.append("#EXT-X-TARGETDURATION:").append(mTargetDurationS).append('\n');
+        text.append("#EXT-X-MEDIA-SEQUENCE:").append(mMediaSequence).append('\n');
+        for (Segment segment : mSegments) {
+            text.append(String.format(Locale.US, "#EXTINF:%.3f,\n", segment.durationUs / 1e6));
+            text.append(segment.uri).append('\n');
+        }
+        if (mFinished) {
+            text.append("#EXT-X-ENDLIST\n");
+        }
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(text.toString().getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            temp.delete();
+            throw new IOException("failed to replace " + mFile);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * A {@link SampleMuxer} recording HLS: MPEG-TS segments written by {@link TsMuxer}, cut on key
+ * frames by a {@link SegmentingSampleMuxer}, and a live {@link HlsPlaylist} listing them, so the
+ * recording can be served while it goes on.
+ * <p>
+ * Segments are named after the playlist, e.g. rec_000.ts, rec_001.ts for rec.m3u8, in the same
+ * directory.  Timestamps run on across segments, so players don't see a discontinuity.  The
+ * playlist is rewritten after each segment is finished and ended when the muxer is stopped.
+ */
+public class HlsSampleMuxer implements SampleMuxer {
+    /** Segment duration Apple recommends */
+    public static final long DEFAULT_SEGMENT_DURATION_US = 6000000;
+
+    private final File mPlaylistFile;
+    private final HlsPlaylist mPlaylist;
+    private final SegmentingSampleMuxer mSegments;
+    private final long mTargetDurationUs;
+    private SegmentingSampleMuxer.Listener mListener;
+
+    /**
+     * @param segmentDurationUs  media time after which a segment is cut
+     * @param keyFrameIntervalUs media time between the video encoder's regular key frames.  A
+     *                           cut waits for a key frame if the one it asks for doesn't come,
+     *                           or for the audio if the video is silent as long, so segments
+     *                           may be this much longer, which the playlist's target duration
+     *                           allows for.
+     * @param windowSize         number of segments the playlist lists, 0 for all of them
+     */
+    public HlsSampleMuxer(final File playlistFile, long segmentDurationUs,
+                          long keyFrameIntervalUs, int windowSize) {
+        mPlaylistFile = playlistFile;
+        mTargetDurationUs = segmentDurationUs + keyFrameIntervalUs;
+        mPlaylist = new HlsPlaylist(playlistFile, mTargetDurationUs, windowSize);
+        mSegments = new SegmentingSampleMuxer(new SegmentingSampleMuxer.Output() {
+            @Override
+            public SampleMuxer openSegment(int index) throws IOException {
+                return new TsMuxer(getSegmentFile(playlistFile, index).getPath());
+            }
+        }, segmentDurationUs, 0);
+        mSegments.setRebaseTimestamps(false);
+        // A static screen sends no frames, and no key frames to cut on
+        mSegments.setMaxLeadGapUs(keyFrameIntervalUs);
+        mSegments.setListener(new SegmentingSampleMuxer.Listener() {
+            @Override
+            public void onSegmentFinished(int index, long durationUs, long bytes) {
+                try {
+                    mPlaylist.addSegment(getSegmentFile(playlistFile, index).getName(),
+                            durationUs);
+                } catch (IOException e) {
+                    throw new IllegalStateException("failed to write " + playlistFile, e);
+                }
+                SegmentingSampleMuxer.Listener listener = mListener;
+                if (listener != null) {
+                    listener.onSegmentFinished(index, durationUs, bytes);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the file segment {@code index} of the playlist {@code playlistFile} is written to
+     */
+    public static File getSegmentFile(File playlistFile, int index) {
+        String name = playlistFile.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        return new File(playlistFile.getParentFile(),
+                String.format(Locale.US, "%s_%03d.ts", base, index));
+    }
+
+    public File getPlaylistFile() {
+        return mPlaylistFile;
+    }
+
+    /**
+     * @return how long segments should be at most
+     */
+    public long getTargetDurationUs() {
+        return mTargetDurationUs;
+    }
+
+    /**
+     * @see HlsPlaylist#getOverruns()
+     */
+    public long getOverruns() {
+        return mPlaylist.getOverruns();
+    }
+
+    /**
+     * @param listener told about each segment once the playlist lists it, may be null
+     */
+    public void setListener(SegmentingSampleMuxer.Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @see SegmentingSampleMuxer#setSyncFrameSource
+     */
+    public void setSyncFrameSource(MediaEncoder encoder) {
+        mSegments.setSyncFrameSource(encoder);
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        return mSegments.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mSegments.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+        mSegments.writeSampleData(trackIndex, data, info);
+    }
+
+    /**
+     * Finishes the last segment and ends the playlist.
+     */
+    @Override
+    public void stop() {
+        mSegments.stop();
+        try {
+            mPlaylist.finish();
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to write " + mPlaylistFile, e);
+        }
+    }
+
+    @Override
+    public void release() {
+        mSegments.release();
+    }
+}
@@ -0,0 +1,71 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import io.github.junyuecao.croppedscreenrecorder.pipeline.FrameLatencyTracker.Interval;
+
+import java.util.Locale;
+
+/**
+ * Immutable p50/p99/max of each {@link FrameLatencyTracker.Interval}, and the startup latency,
+ * taken from a {@link FrameLatencyTracker} at one point in time.
+ */
+public class LatencySummary {
+    private static final Interval[] INTERVALS = Interval.values();
+
+    private final long[] mCount = new long[INTERVALS.length];
+    private final long[] mP50 = new long[INTERVALS.length];
+    private final long[] mP99 = new long[INTERVALS.length];
+    private final long[] mMax = new long[INTERVALS.length];
+    private final long mStartupNanos;
+
+    LatencySummary(LatencyHistogram[] histograms, long startupNanos) {
+        mStartupNanos = startupNanos;
+        for (int i = 0; i < INTERVALS.length; i++) {
+            mCount[i] = histograms[i].getCount();
+            mP50[i] = histograms[i].getPercentileNanos(50);
+            mP99[i] = histograms[i].getPercentileNanos(99);
+            mMax[i] = histograms[i].getMaxNanos();
+        }
+    }
+
+    /**
+     * @return number of frames measured for the interval
+     */
+    public long getCount(Interval interval) {
+        return mCount[interval.ordinal()];
+    }
+
+    public long getP50Nanos(Interval interval) {
+        return mP50[interval.ordinal()];
+    }
+
+    public long getP99Nanos(Interval interval) {
+        return mP99[interval.ordinal()];
+    }
+
+    public long getMaxNanos(Interval interval) {
+        return mMax[interval.ordinal()];
+    }
+
+    /**
+     * @return time from asking for the recording to its first video key frame written, or -1
+     * if unknown
+     */
+    public long getStartupNanos() {
+        return mStartupNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("LatencySummary[startup=");
+        sb.append(mStartupNanos < 0 ? -1 : mStartupNanos / 1000).append("us");
+        for (int i = 0; i < INTERVALS.length; i++) {
+            sb.append(", ");
+            sb.append(INTERVALS[i].name().toLowerCase(Locale.US))
+                    .append(" p50=").append(mP50[i] / 1000)
+                    .append("us p99=").append(mP99[i] / 1000)
+                    .append("us max=").append(mMax[i] / 1000)
+                    .append("us n=").append(mCount[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,184 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.util.Arrays;
+
+/**
+ * The timeline both tracks are written on.
+ * <p>
+ * Video timestamps come from SurfaceTexture and capture times from System.nanoTime(), both
+ * CLOCK_MONOTONIC, so that is the source time base.  The media timeline is that base shifted so
+ * it starts at zero at the origin, the earliest sample the muxer writes.
+ * <p>
+ * Audio timestamps are counted from samples (see {@link PcmFramer}), so they follow the audio
+ * device's clock, which drifts from the monotonic clock over a long recording.  The drift is
+ * measured from the capture time of every chunk, smoothed, and corrected by nudging audio
+ * timestamps towards it by at most {@link #DEFAULT_MAX_SLEW_US} per frame, so the correction
+ * never reorders or stalls them.
+ * <p>
+ * Recording can be paused: source time spent paused is cut out of the media timeline, so
+ * samples captured after a resume follow on from those captured before the pause.
+ */
+public class MediaClock {
+    /** Most the audio correction moves per audio frame */
+    public static final long DEFAULT_MAX_SLEW_US = 1000;
+    /** Weight of the newest measurement in the smoothed drift is 1 / DRIFT_SMOOTHING */
+    private static final int DRIFT_SMOOTHING = 64;
+
+    private volatile long mOriginUs = -1;
+    private long mMaxSlewUs = DEFAULT_MAX_SLEW_US;
+    // Written by the audio encode thread only
+    private boolean mDriftMeasured;
+    private volatile long mAudioDriftUs;
+    private volatile long mAudioCorrectionUs;
+    // Pauses, in source time; mResumes[i] is 0 while pause i is still going.  Guarded by this.
+    private long[] mPauses = new long[4];
+    private long[] mResumes = new long[4];
+    // Source time cut out by pauses 0..i
+    private long[] mCutUs = new long[4];
+    private int mPauseCount;
+
+    /**
+     * @return the source time, with the pauses before it cut out, that is media time zero, or -1
+     * if it isn't set yet
+     */
+    public long getOriginUs() {
+        return mOriginUs;
+    }
+
+    public void setOriginUs(long originUs) {
+        mOriginUs = originUs;
+    }
+
+    /**
+     * Maps a source timestamp onto the media timeline.  Samples from before the origin are
+     * clamped to zero.
+     */
+    public long toMediaTimeUs(long presentationTimeUs) {
+        return Math.max(0, removePauses(presentationTimeUs) - mOriginUs);
+    }
+
+    /**
+     * Maps a source timestamp onto the source timeline with the pauses before it cut out.
+     * Timestamps inside a pause map to where it started.
+     */
+    public synchronized long removePauses(long presentationTimeUs) {
+        // Most samples are recent, look from the last pause back
+        for (int i = mPauseCount - 1; i >= 0; i--) {
+            if (presentationTimeUs >= mPauses[i]) {
+                long cutBeforeUs = i > 0 ? mCutUs[i - 1] : 0;
+                if (mResumes[i] == 0 || presentationTimeUs < mResumes[i]) {
+                    return mPauses[i] - cutBeforeUs;
+                }
+                return presentationTimeUs - mCutUs[i];
+            }
+        }
+        return presentationTimeUs;
+    }
+
+    /**
+     * Starts cutting source time out of the timeline.
+     */
+    public synchronized void pause(long sourceTimeUs) {
+        if (isPaused()) {
+            return;
+        }
+        if (mPauseCount == mPauses.length) {
+            mPauses = Arrays.copyOf(mPauses, mPauseCount * 2);
+            mResumes = Arrays.copyOf(mResumes, mPauseCount * 2);
+            mCutUs = Arrays.copyOf(mCutUs, mPauseCount * 2);
+        }
+        mPauses[mPauseCount] = sourceTimeUs;
+        mResumes[mPauseCount] = 0;
+        mPauseCount++;
+    }
+
+    /**
+     * Ends the pause started by {@link #pause}.
+     */
+    public synchronized void resume(long sourceTimeUs) {
+        if (!isPaused()) {
+            return;
+        }
+        int i = mPauseCount - 1;
+        long resumeUs = Math.max(sourceTimeUs, mPauses[i] + 1);
+        mResumes[i] = resumeUs;
+        mCutUs[i] = (i > 0 ? mCutUs[i - 1] : 0) + resumeUs - mPauses[i];
+    }
+
+    public synchronized boolean isPaused() {
+        return mPauseCount > 0 && mResumes[mPauseCount - 1] == 0;
+    }
+
+    /**
+     * @return true if a sample captured at {@code sourceTimeUs} falls in a pause
+     */
+    public synchronized boolean isPausedAt(long sourceTimeUs) {
+        for (int i = mPauseCount - 1; i >= 0; i--) {
+            if (sourceTimeUs >= mPauses[i]) {
+                return mResumes[i] == 0 || sourceTimeUs < mResumes[i];
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return source time cut out by the pauses that have ended
+     */
+    public synchronized long getPausedUs() {
+        int ended = isPaused() ? mPauseCount - 1 : mPauseCount;
+        return ended > 0 ? mCutUs[ended - 1] : 0;
+    }
+
+    /**
+     * @param maxSlewUs most the audio correction moves per audio frame
+     */
+    public void setMaxSlewUs(long maxSlewUs) {
+        mMaxSlewUs = maxSlewUs;
+    }
+
+    /**
+     * Measures the audio drift.  (Audio encode thread.)
+     *
+     * @param sampleTimeUs  time of a sample counted from the samples before it
+     * @param captureTimeUs time the same sample was captured, by the monotonic clock
+     */
+    public void onAudioCaptured(long sampleTimeUs, long captureTimeUs) {
+        long driftUs = captureTimeUs - sampleTimeUs;
+        if (!mDriftMeasured) {
+            mDriftMeasured = true;
+            mAudioDriftUs = driftUs;
+        } else {
+            mAudioDriftUs = mAudioDriftUs + (driftUs - mAudioDriftUs) / DRIFT_SMOOTHING;
+        }
+    }
+
+    /**
+     * Corrects the timestamp of the next audio frame, moving the correction one step closer to
+     * the measured drift.  (Audio encode thread.)
+     *
+     * @param sampleTimeUs the frame's time counted from the samples
+     */
+    public long correctAudio(long sampleTimeUs) {
+        long correctionUs = mAudioCorrectionUs;
+        long stepUs = mAudioDriftUs - correctionUs;
+        stepUs = Math.max(-mMaxSlewUs, Math.min(mMaxSlewUs, stepUs));
+        correctionUs += stepUs;
+        mAudioCorrectionUs = correctionUs;
+        return sampleTimeUs + correctionUs;
+    }
+
+    /**
+     * @return how far the audio device's clock has drifted from the monotonic clock, smoothed;
+     * positive if audio runs slow
+     */
+    public long getAudioDriftUs() {
+        return mAudioDriftUs;
+    }
+
+    /**
+     * @return how much audio timestamps are currently shifted to make up for the drift
+     */
+    public long getAudioCorrectionUs() {
+        return mAudioCorrectionUs;
+    }
+}
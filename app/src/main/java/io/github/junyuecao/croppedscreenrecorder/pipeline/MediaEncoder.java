@@ -0,0 +1,71 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The subset of MediaCodec the recording pipeline uses, so the pipeline can be driven by a
+ * fake encoder on a plain JVM.  Status codes and flags have MediaCodec's values.
+ * <p>
+ * The encoder is configured by its implementation; {@link #start()} makes it ready for input.
+ */
+public interface MediaEncoder {
+    int INFO_TRY_AGAIN_LATER = -1;
+    int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+    /**
+     * Switches the encoder to asynchronous output.  Must be called before {@link #start()}.
+     * Once set, output must not be polled with {@link #dequeueOutputBuffer}.
+     *
+     * @return false if this encoder doesn't support async mode, in which case nothing changed
+     */
+    boolean setCallback(Callback callback);
+
+    void start();
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    /**
+     * @return an output buffer index, or one of the INFO_* codes
+     */
+    int dequeueOutputBuffer(SampleInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index);
+
+    TrackFormat getOutputFormat();
+
+    /**
+     * Signals end of stream on a surface-input encoder.
+     */
+    void signalEndOfInputStream();
+
+    /**
+     * Asks a video encoder to make its next output a key frame.
+     */
+    void requestSyncFrame();
+
+    void stop();
+
+    void release();
+
+    /**
+     * Async-mode output callbacks.  They are invoked on a thread owned by the encoder.
+     */
+    interface Callback {
+        /**
+         * The callee must eventually hand the buffer back with {@link #releaseOutputBuffer}.
+         * {@code info} is only valid during the call.
+         */
+        void onOutputBufferAvailable(MediaEncoder encoder, int index, SampleInfo info);
+
+        void onOutputFormatChanged(MediaEncoder encoder, TrackFormat format);
+
+        void onError(MediaEncoder encoder, Exception e);
+    }
+}
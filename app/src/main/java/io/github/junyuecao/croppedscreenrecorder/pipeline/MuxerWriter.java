@@ -0,0 +1,525 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Owns a {@link SampleMuxer} and writes samples to it from a dedicated thread.
+ * <p>
+ * Encoder threads hand samples over with {@link #writeSampleData}, which copies the data into
+ * {@link SampleArena} memory so the codec buffer can be released immediately, and puts it on a
+ * bounded queue.  A slow storage device therefore never stalls the encoder threads, unless the
+ * queue fills up or the arena runs out of budget, and the {@link OverflowPolicy} says so.
+ * <p>
+ * Samples written after their track was added but before {@link #start()} (one encoder is
+ * usually ready before the other) are held in pooled memory, up to a byte cap, and written
+ * first in presentation time order once the muxer starts.
+ * <p>
+ * Timestamps are rebased by a {@link MediaClock} whose origin is the earliest sample held at
+ * {@link #start()}, or the first one written after it, so the file starts at zero.  A
+ * {@link PtsSanitizer} then makes sure they increase strictly per track.
+ */
+public class MuxerWriter {
+    public static final int DEFAULT_CAPACITY = 64;
+    /** How many bytes of samples may be held until the muxer starts */
+    public static final int DEFAULT_PENDING_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * What to do when a sample arrives and the queue is full or out of memory.
+     */
+    public enum OverflowPolicy {
+        /** Block the producer until the writer thread catches up */
+        BLOCK,
+        /**
+         * Drop the sample unless it is a key frame.  Once a video frame has been dropped, the
+         * rest of that track is dropped until the next key frame so no frame references a
+         * missing one.  Key frames still block.
+         */
+        DROP_NON_KEYFRAMES,
+        /** Give up: the recording is marked failed and further samples are rejected */
+        FAIL
+    }
+
+    private final SampleMuxer mMuxer;
+    private final SampleArena mArena;
+    private volatile OverflowPolicy mPolicy;
+
+    // Ring of preallocated sample slots
+    private final Sample[] mSlots;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+    private int mHead;
+    private int mCount;
+    private int mHighWaterMark;
+    private long mDroppedSamples;
+    private boolean[] mVideoTrack = new boolean[0];
+    private boolean[] mAwaitingKeyFrame = new boolean[0];
+    // Samples held until start(), then owned by the writer thread
+    private final int mPendingByteCap;
+    private List<Sample> mPending = new ArrayList<>();
+    private int mPendingBytes;
+    private long mPendingDropped;
+    // Held samples the writer thread hasn't written yet
+    private int mPendingInFlight;
+    private boolean mStarted;
+    private boolean mStopping;
+    private volatile Throwable mFailure;
+    private volatile FrameLatencyTracker mLatencyTracker;
+    private volatile MediaClock mClock = new MediaClock();
+    // Used by the writer thread only, past start()
+    private final PtsSanitizer mSanitizer = new PtsSanitizer(PtsSanitizer.Policy.CLAMP);
+    // Written by the writer thread only
+    private volatile long mWrittenBytes;
+    private Thread mThread;
+
+    public MuxerWriter(SampleMuxer muxer, int capacity, OverflowPolicy policy) {
+        this(muxer, capacity, policy, DEFAULT_PENDING_BYTES);
+    }
+
+    /**
+     * @param pendingByteCap how many bytes of samples may be held until the muxer starts; later
+     *                       ones are dropped
+     */
+    public MuxerWriter(SampleMuxer muxer, int capacity, OverflowPolicy policy, int pendingByteCap) {
+        this(muxer, capacity, policy, pendingByteCap, new SampleArena(SampleArena.DEFAULT_BUDGET));
+    }
+
+    /**
+     * @param arena where sample data is kept until written, may be shared with other users
+     */
+    public MuxerWriter(SampleMuxer muxer, int capacity, OverflowPolicy policy, int pendingByteCap,
+                       SampleArena arena) {
+        mMuxer = muxer;
+        mArena = arena;
+        mPolicy = policy;
+        mPendingByteCap = pendingByteCap;
+        mSlots = new Sample[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = new Sample();
+        }
+    }
+
+    public SampleArena getArena() {
+        return mArena;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        mPolicy = policy;
+    }
+
+    /**
+     * @param tracker told when each video sample has been written, may be null
+     */
+    public void setLatencyTracker(FrameLatencyTracker tracker) {
+        mLatencyTracker = tracker;
+    }
+
+    public MediaClock getMediaClock() {
+        return mClock;
+    }
+
+    /**
+     * @param clock rebases the timestamps written, e.g. one shared with the audio encoder.  Set
+     *              before {@link #start()}.
+     */
+    public void setMediaClock(MediaClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Returns what keeps timestamps increasing, e.g. to set its policy or read its counts.
+     */
+    public PtsSanitizer getPtsSanitizer() {
+        return mSanitizer;
+    }
+
+    /**
+     * Adds a track.  Must be called before {@link #start()}.
+     *
+     * @return the track index to use with {@link #writeSampleData}
+     */
+    public int addTrack(TrackFormat format) {
+        mLock.lock();
+        try {
+            int index = mMuxer.addTrack(format);
+            if (index >= mVideoTrack.length) {
+                boolean[] video = new boolean[index + 1];
+                System.arraycopy(mVideoTrack, 0, video, 0, mVideoTrack.length);
+                mVideoTrack = video;
+                mAwaitingKeyFrame = new boolean[index + 1];
+            }
+            mVideoTrack[index] = format.isVideo();
+            return index;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Starts the muxer and the writer thread, which first writes the samples held so far.
+     */
+    public void start() {
+        mLock.lock();
+        try {
+            mMuxer.start();
+            mStarted = true;
+            // Stable sort, so samples with equal times keep their order
+            Collections.sort(mPending, new Comparator<Sample>() {
+                @Override
+                public int compare(Sample a, Sample b) {
+                    long ta = a.mInfo.presentationTimeUs;
+                    long tb = b.mInfo.presentationTimeUs;
+                    return ta < tb ? -1 : (ta == tb ? 0 : 1);
+                }
+            });
+            if (!mPending.isEmpty()) {
+                mClock.setOriginUs(mClock.removePauses(mPending.get(0).mInfo.presentationTimeUs));
+            }
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeLoop();
+                }
+            }, "MuxerWriter");
+            mThread.start();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public boolean isStarted() {
+        mLock.lock();
+        try {
+            return mStarted;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Copies the sample and queues it for writing.  (Call from encoder threads.)
+     * <p>
+     * The data is read between {@code info.offset} and {@code info.offset + info.size}; the
+     * buffer's position and limit are moved accordingly.  Before {@link #start()} the sample is
+     * held instead, unless that would exceed the pending byte cap.
+     *
+     * @return true if the sample was queued or held, false if it was dropped or the writer
+     * failed
+     * @throws IllegalArgumentException if {@code trackIndex} isn't a track added
+     */
+    public boolean writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+        boolean keyFrame = info.isKeyFrame();
+        mLock.lock();
+        try {
+            if (trackIndex < 0 || trackIndex >= mVideoTrack.length) {
+                throw new IllegalArgumentException("unknown track " + trackIndex);
+            }
+            if (mStopping || mFailure != null) {
+                return false;
+            }
+            if (!mStarted) {
+                return holdSample(trackIndex, data, info);
+            }
+            if (mAwaitingKeyFrame[trackIndex]) {
+                if (!keyFrame) {
+                    mDroppedSamples++;
+                    return false;
+                }
+                mAwaitingKeyFrame[trackIndex] = false;
+            }
+            SampleArena.Lease lease;
+            while (mCount == mSlots.length || (lease = mArena.acquire(info.size)) == null) {
+                OverflowPolicy policy = mPolicy;
+                if (policy == OverflowPolicy.FAIL) {
+                    mFailure = new IllegalStateException("muxer queue overflow, "
+                            + mCount + " samples pending, " + mArena.getInUseBytes() + " bytes");
+                    mNotEmpty.signal();
+                    return false;
+                }
+                // Out of memory with nothing of ours left to write: waiting won't free any
+                boolean starved = mCount + mPendingInFlight == 0;
+                if (policy == OverflowPolicy.DROP_NON_KEYFRAMES && !keyFrame || starved) {
+                    mDroppedSamples++;
+                    mAwaitingKeyFrame[trackIndex] = mVideoTrack[trackIndex];
+                    return false;
+                }
+                mNotFull.awaitUninterruptibly();
+                if (mStopping || mFailure != null) {
+                    return false;
+                }
+            }
+
+            copySample(mSlots[(mHead + mCount) % mSlots.length], lease, trackIndex, data, info);
+
+            mCount++;
+            if (mCount > mHighWaterMark) {
+                mHighWaterMark = mCount;
+            }
+            mNotEmpty.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Must be called with mLock held.
+     */
+    private boolean holdSample(int trackIndex, ByteBuffer data, SampleInfo info) {
+        if (mAwaitingKeyFrame[trackIndex] && !info.isKeyFrame()) {
+            mPendingDropped++;
+            return false;
+        }
+        if (mPendingBytes + info.size > mPendingByteCap) {
+            mPendingDropped++;
+            // Later frames of the track would reference the dropped one
+            mAwaitingKeyFrame[trackIndex] = mVideoTrack[trackIndex];
+            return false;
+        }
+        SampleArena.Lease lease = mArena.acquire(info.size);
+        if (lease == null) {
+            mPendingDropped++;
+            mAwaitingKeyFrame[trackIndex] = mVideoTrack[trackIndex];
+            return false;
+        }
+        mAwaitingKeyFrame[trackIndex] = false;
+        Sample sample = new Sample();
+        copySample(sample, lease, trackIndex, data, info);
+        mPending.add(sample);
+        mPendingBytes += info.size;
+        mPendingInFlight++;
+        return true;
+    }
+
+    private void copySample(Sample sample, SampleArena.Lease lease, int trackIndex,
+                            ByteBuffer data, SampleInfo info) {
+        ByteBuffer copy = lease.buffer();
+        data.limit(info.offset + info.size);
+        data.position(info.offset);
+        copy.put(data);
+        copy.flip();
+        sample.mTrackIndex = trackIndex;
+        sample.mLease = lease;
+        sample.mData = copy;
+        sample.mInfo.set(0, info.size, info.presentationTimeUs, info.flags);
+    }
+
+    /**
+     * Writes out everything still queued, stops the writer thread and stops the muxer.
+     *
+     * @throws IllegalStateException if the writer failed or the muxer could not be stopped
+     */
+    public void stop() {
+        Thread thread;
+        mLock.lock();
+        try {
+            if (!mStarted) {
+                throw new IllegalStateException("muxer was never started");
+            }
+            mStopping = true;
+            mNotEmpty.signal();
+            mNotFull.signalAll();
+            thread = mThread;
+        } finally {
+            mLock.unlock();
+        }
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        Throwable failure = mFailure;
+        if (failure != null) {
+            throw new IllegalStateException("muxer writer failed", failure);
+        }
+        mMuxer.stop();
+    }
+
+    /**
+     * Releases the muxer.  Call after {@link #stop()}.
+     */
+    public void release() {
+        mMuxer.release();
+    }
+
+    /**
+     * @return the failure that stopped the writer, or null if it's healthy
+     */
+    public Throwable getFailure() {
+        return mFailure;
+    }
+
+    /**
+     * @return number of samples waiting to be written
+     */
+    public int getQueueDepth() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return number of sample bytes the muxer has been given so far
+     */
+    public long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    /**
+     * @return number of samples dropped before the muxer started because the pending byte cap
+     * was reached
+     */
+    public long getPendingDroppedSamples() {
+        mLock.lock();
+        try {
+            return mPendingDropped;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the largest queue depth seen so far
+     */
+    public int getHighWaterMark() {
+        mLock.lock();
+        try {
+            return mHighWaterMark;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return number of samples dropped by {@link OverflowPolicy#DROP_NON_KEYFRAMES}
+     */
+    public long getDroppedSamples() {
+        mLock.lock();
+        try {
+            return mDroppedSamples;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        List<Sample> pending;
+        mLock.lock();
+        try {
+            pending = mPending;
+            mPending = null;
+            mPendingBytes = 0;
+        } finally {
+            mLock.unlock();
+        }
+        for (Sample sample : pending) {
+            if (mFailure == null) {
+                writeSample(sample);
+            } else {
+                sample.mLease.release();
+            }
+            mLock.lock();
+            try {
+                mPendingInFlight--;
+                mNotFull.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        while (true) {
+            Sample sample;
+            mLock.lock();
+            try {
+                while (mCount == 0 && !mStopping && mFailure == null) {
+                    mNotEmpty.awaitUninterruptibly();
+                }
+                if (mCount == 0 || mFailure != null) {
+                    return;
+                }
+                // The slot stays owned by us until we advance mHead below
+                sample = mSlots[mHead];
+            } finally {
+                mLock.unlock();
+            }
+
+            writeSample(sample);
+            mLock.lock();
+            try {
+                mHead = (mHead + 1) % mSlots.length;
+                mCount--;
+                if (mFailure != null) {
+                    // Nobody will drain the queue any more, wake up every blocked producer
+                    mNotFull.signalAll();
+                } else {
+                    mNotFull.signal();
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes one sample to the muxer and gives its memory back to the arena.  (Writer thread.)
+     */
+    private void writeSample(Sample sample) {
+        try {
+            SampleInfo info = sample.mInfo;
+            long presentationTimeUs = info.presentationTimeUs;
+            MediaClock clock = mClock;
+            if (clock.getOriginUs() < 0) {
+                clock.setOriginUs(clock.removePauses(presentationTimeUs));
+            }
+            long mediaTimeUs = mSanitizer.sanitize(sample.mTrackIndex,
+                    clock.toMediaTimeUs(presentationTimeUs));
+            if (mediaTimeUs != PtsSanitizer.DROP) {
+                info.presentationTimeUs = mediaTimeUs;
+                mMuxer.writeSampleData(sample.mTrackIndex, sample.mData, info);
+                mWrittenBytes += info.size;
+                FrameLatencyTracker tracker = mLatencyTracker;
+                if (tracker != null && mVideoTrack[sample.mTrackIndex]) {
+                    // The tracker knows the frame by its encoder timestamp
+                    long now = System.nanoTime();
+                    tracker.frameWritten(presentationTimeUs, now);
+                    if (info.isKeyFrame()) {
+                        tracker.keyFrameWritten(now);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            mFailure = e;
+        }
+
+        sample.mLease.release();
+        sample.mLease = null;
+        sample.mData = null;
+    }
+
+    private static class Sample {
+        final SampleInfo mInfo = new SampleInfo();
+        int mTrackIndex;
+        SampleArena.Lease mLease;
+        ByteBuffer mData;
+    }
+}
@@ -0,0 +1,222 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Re-chunks captured PCM into frames of exactly one AAC frame's worth of samples, and stamps
+ * each frame from the sample count instead of the clock.
+ * <p>
+ * The first chunk anchors the timeline; a frame's presentation time is the anchor plus the
+ * duration of all samples before it, so timestamps carry no scheduling jitter.  Each chunk's
+ * own timestamp is only used to detect gaps: if a chunk starts later than the samples so far
+ * account for (the source under-ran), the gap is filled with silence so the timeline keeps up.
+ * With a {@link MediaClock}, chunk timestamps also feed its drift measurement, gaps are judged
+ * net of the drift, and frame timestamps get its correction.
+ * <p>
+ * Frames are assembled in place in a target buffer the caller attaches, typically an encoder
+ * input buffer, so the data is copied once.  Use from one thread:
+ * <pre>
+ * framer.startChunk(chunkStartUs);
+ * while (bytes left in the chunk or framer.hasPendingSilence()) {
+ *     if (!framer.hasTarget()) framer.attach(buffer);
+ *     offset += framer.append(chunk, offset, size - offset);
+ *     if (framer.isFrameFull()) queue(buffer, framer.getFilled(), framer.takeFrame());
+ * }
+ * </pre>
+ */
+public class PcmFramer {
+    /** Samples per channel in an AAC-LC frame */
+    public static final int AAC_FRAME_SAMPLES = 1024;
+    /** How much later than expected a chunk may start before it counts as a gap */
+    public static final long DEFAULT_GAP_THRESHOLD_US = 50000;
+    /** The most silence a single gap is filled with */
+    public static final long MAX_GAP_FILL_US = 1000000;
+
+    private final int mSampleRate;
+    private final int mBytesPerFrame; // bytes per sample frame, all channels
+    private final int mFrameBytes;
+    private long mGapThresholdUs = DEFAULT_GAP_THRESHOLD_US;
+    private MediaClock mClock;
+    private boolean mAnchored;
+    private long mAnchorUs;
+    // Samples in the frames taken so far
+    private long mFramedSamples;
+    private ByteBuffer mTarget;
+    private int mFilled;
+    private long mSilenceBytes;
+    private long mGaps;
+    private long mGapSamples;
+
+    /**
+     * @param samplesPerFrame samples per channel in each frame, e.g. {@link #AAC_FRAME_SAMPLES}
+     */
+    public PcmFramer(int sampleRate, int channelCount, int samplesPerFrame) {
+        mSampleRate = sampleRate;
+        mBytesPerFrame = 2 * channelCount;
+        mFrameBytes = samplesPerFrame * mBytesPerFrame;
+    }
+
+    /**
+     * @return bytes in a full frame
+     */
+    public int getFrameBytes() {
+        return mFrameBytes;
+    }
+
+    public void setGapThresholdUs(long gapThresholdUs) {
+        mGapThresholdUs = gapThresholdUs;
+    }
+
+    /**
+     * @param clock measures and corrects the audio drift, may be null
+     */
+    public void setMediaClock(MediaClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * @return number of gaps filled with silence
+     */
+    public long getGaps() {
+        return mGaps;
+    }
+
+    /**
+     * @return samples per channel of silence filled in
+     */
+    public long getGapSamples() {
+        return mGapSamples;
+    }
+
+    /**
+     * @return the time the next appended sample will be presented at, in microseconds
+     */
+    public long getPositionUs() {
+        long samples = mFramedSamples + (mFilled + mSilenceBytes) / mBytesPerFrame;
+        return mAnchorUs + samples * 1000000 / mSampleRate;
+    }
+
+    /**
+     * Announces a new chunk of captured data, before it is appended.  The first one anchors the
+     * timeline; later ones starting too late are preceded by silence.
+     *
+     * @param startUs when the chunk's first sample was captured
+     */
+    public void startChunk(long startUs) {
+        MediaClock clock = mClock;
+        if (!mAnchored) {
+            mAnchored = true;
+            mAnchorUs = startUs;
+        } else {
+            long lateUs = startUs - getPositionUs() - (clock != null ? clock.getAudioDriftUs() : 0);
+            if (lateUs > mGapThresholdUs) {
+                long samples = Math.min(lateUs, MAX_GAP_FILL_US) * mSampleRate / 1000000;
+                mSilenceBytes += samples * mBytesPerFrame;
+                mGaps++;
+                mGapSamples += samples;
+            }
+        }
+        if (clock != null) {
+            clock.onAudioCaptured(getPositionUs(), startUs);
+        }
+    }
+
+    /**
+     * Announces a chunk that doesn't follow on from the previous one, e.g. the first after a
+     * pause: the timeline jumps to the chunk's start instead of being filled with silence.
+     * Take a partly assembled frame first, it belongs before the jump.
+     *
+     * @param startUs when the chunk's first sample was captured
+     */
+    public void restartChunk(long startUs) {
+        if (!mAnchored) {
+            startChunk(startUs);
+            return;
+        }
+        MediaClock clock = mClock;
+        // Keep the measured drift, the device clock hasn't changed
+        long driftUs = clock != null ? clock.getAudioDriftUs() : 0;
+        mAnchorUs += startUs - driftUs - getPositionUs();
+        mSilenceBytes = 0;
+        if (clock != null) {
+            clock.onAudioCaptured(getPositionUs(), startUs);
+        }
+    }
+
+    /**
+     * @return true if a frame is being assembled
+     */
+    public boolean hasTarget() {
+        return mTarget != null;
+    }
+
+    /**
+     * Starts assembling the next frame from index 0 of {@code target}, which must hold at least
+     * {@link #getFrameBytes()}.
+     */
+    public void attach(ByteBuffer target) {
+        mTarget = target;
+        mFilled = 0;
+    }
+
+    /**
+     * @return true if silence for a gap is still to be appended
+     */
+    public boolean hasPendingSilence() {
+        return mSilenceBytes > 0;
+    }
+
+    /**
+     * Appends pending silence, then data from {@code src}, until the frame is full.
+     *
+     * @return number of bytes taken from {@code src}
+     */
+    public int append(ByteBuffer src, int offset, int size) {
+        ByteBuffer target = mTarget;
+        int silence = (int) Math.min(mSilenceBytes, mFrameBytes - mFilled);
+        for (int i = 0; i < silence; i++) {
+            target.put(mFilled + i, (byte) 0);
+        }
+        mFilled += silence;
+        mSilenceBytes -= silence;
+
+        int n = Math.min(size, mFrameBytes - mFilled);
+        if (n > 0) {
+            src.limit(offset + n);
+            src.position(offset);
+            target.limit(mFrameBytes);
+            target.position(mFilled);
+            target.put(src);
+            mFilled += n;
+        }
+        return n;
+    }
+
+    /**
+     * @return true if the frame holds a full frame's worth of samples
+     */
+    public boolean isFrameFull() {
+        return mFilled == mFrameBytes;
+    }
+
+    /**
+     * @return bytes in the frame being assembled
+     */
+    public int getFilled() {
+        return mFilled;
+    }
+
+    /**
+     * Finishes the frame being assembled, full or not, and detaches its buffer.
+     *
+     * @return the frame's presentation time in microseconds, drift corrected if there is a clock
+     */
+    public long takeFrame() {
+        long presentationTimeUs = mAnchorUs + mFramedSamples * 1000000 / mSampleRate;
+        mFramedSamples += mFilled / mBytesPerFrame;
+        mTarget = null;
+        mFilled = 0;
+        MediaClock clock = mClock;
+        return clock != null ? clock.correctAudio(presentationTimeUs) : presentationTimeUs;
+    }
+}
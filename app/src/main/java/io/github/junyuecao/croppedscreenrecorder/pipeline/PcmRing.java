@@ -0,0 +1,130 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hands PCM chunks from the audio capture thread to the audio encode thread.
+ * <p>
+ * A fixed ring of preallocated {@link Chunk} slots, each with its own direct buffer, so capture
+ * never waits on the encoder and nothing is allocated per chunk.  There must be exactly one
+ * producer thread and one consumer thread.
+ * <p>
+ * Producer: {@link #claim()}, fill in the slot, {@link #publish()}.  Consumer: {@link #peek()},
+ * use the slot, {@link #release()}.
+ */
+public class PcmRing {
+    public static final int DEFAULT_CAPACITY = 16;
+    public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+    /**
+     * A chunk slot.  Only the thread currently owning the slot may touch it.
+     */
+    public static class Chunk {
+        /** The PCM data, from index 0 */
+        public final ByteBuffer data;
+        /** Number of valid bytes in data */
+        public int size;
+        public long presentationTimeUs;
+        public boolean endOfStream;
+        /** True if data was discarded before this chunk, e.g. while paused */
+        public boolean discontinuity;
+
+        Chunk(int chunkSize) {
+            data = ByteBuffer.allocateDirect(chunkSize);
+        }
+    }
+
+    private final Chunk[] mSlots;
+    private final int mMask;
+    // Written by the producer only
+    private volatile long mTail;
+    // Written by the consumer only
+    private volatile long mHead;
+    private volatile long mOverruns;
+    private volatile int mHighWaterMark;
+
+    /**
+     * @param capacity  number of slots, rounded up to a power of two
+     * @param chunkSize bytes each slot can hold
+     */
+    public PcmRing(int capacity, int chunkSize) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mSlots = new Chunk[size];
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new Chunk(chunkSize);
+        }
+        mMask = size - 1;
+    }
+
+    public int getCapacity() {
+        return mSlots.length;
+    }
+
+    public int getChunkSize() {
+        return mSlots[0].data.capacity();
+    }
+
+    /**
+     * Returns the next free slot for the producer to fill, or null if the consumer is a full
+     * ring behind.  In that case the chunk is counted as an overrun.
+     */
+    public Chunk claim() {
+        long tail = mTail;
+        if (tail - mHead >= mSlots.length) {
+            mOverruns++;
+            return null;
+        }
+        return mSlots[(int) tail & mMask];
+    }
+
+    /**
+     * Makes the slot returned by the last {@link #claim()} visible to the consumer.
+     */
+    public void publish() {
+        long tail = mTail + 1;
+        mTail = tail;
+        int size = (int) (tail - mHead);
+        if (size > mHighWaterMark) {
+            mHighWaterMark = size;
+        }
+    }
+
+    /**
+     * Returns the oldest published chunk without removing it, or null if there is none.
+     */
+    public Chunk peek() {
+        long head = mHead;
+        if (head == mTail) {
+            return null;
+        }
+        return mSlots[(int) head & mMask];
+    }
+
+    /**
+     * Gives the slot returned by {@link #peek()} back to the producer.
+     */
+    public void release() {
+        mHead = mHead + 1;
+    }
+
+    /**
+     * @return number of chunks published but not released yet
+     */
+    public int size() {
+        return (int) (mTail - mHead);
+    }
+
+    /**
+     * @return the most chunks that were ever waiting at once
+     */
+    public int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    /**
+     * @return number of chunks the producer could not claim a slot for
+     */
+    public long getOverruns() {
+        return mOverruns;
+    }
+}
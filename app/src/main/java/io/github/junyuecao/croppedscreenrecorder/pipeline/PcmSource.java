@@ -0,0 +1,41 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A source of 16-bit PCM audio, the subset of AudioRecord the recording pipeline uses.
+ * Error codes have AudioRecord's values.
+ */
+public interface PcmSource {
+    int ERROR_BAD_VALUE = -2;
+    int ERROR_INVALID_OPERATION = -3;
+
+    /**
+     * @return false if the source could not be started
+     */
+    boolean start();
+
+    /**
+     * Blocks until {@code size} bytes have been read or the source is stopped.
+     *
+     * @return number of bytes read, or one of the ERROR_* codes
+     */
+    int read(byte[] buffer, int offset, int size);
+
+    /**
+     * Like {@link #read(byte[], int, int)}, but straight into a direct buffer.  As with
+     * AudioRecord, the data is written from index 0 whatever the buffer's position, and the
+     * position and limit are left alone.
+     *
+     * @return number of bytes read, or one of the ERROR_* codes
+     */
+    int read(ByteBuffer buffer, int size);
+
+    int getSampleRate();
+
+    int getChannelCount();
+
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,102 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reports the recorded duration to a listener, at most once per interval.
+ * <p>
+ * The duration is taken from the presentation times of the samples written, so it is the
+ * length of the media in the file rather than wall clock time.  Updates are coalesced: a new
+ * one is only handed to the executor once the interval has passed and the previous one has
+ * run, so a busy or slow executor (typically the main thread) gets at most one pending task.
+ * Reporting a sample never allocates.  With a {@link MediaClock}, time spent paused doesn't
+ * count.
+ */
+public class ProgressDispatcher {
+
+    public interface Listener {
+        /**
+         * @param durationMs recorded media duration, in ms
+         */
+        void onRecordedDurationChanged(long durationMs);
+    }
+
+    private final Executor mExecutor;
+    private final Listener mListener;
+    private final long mIntervalUs;
+    private final AtomicBoolean mPending = new AtomicBoolean();
+    private final Object mLock = new Object();  // guards the times below
+    private volatile MediaClock mClock;
+    private long mFirstPresentationTimeUs = -1;
+    private long mLastPresentationTimeUs;
+    private long mLastPostedUs = Long.MIN_VALUE / 2;
+    private volatile long mDurationUs;
+    private volatile long mPostedCount;
+
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            mPending.set(false);
+            mListener.onRecordedDurationChanged(mDurationUs / 1000);
+        }
+    };
+
+    /**
+     * @param executor   runs the listener
+     * @param intervalMs minimum media time between two updates
+     */
+    public ProgressDispatcher(Executor executor, Listener listener, long intervalMs) {
+        mExecutor = executor;
+        mListener = listener;
+        mIntervalUs = intervalMs * 1000;
+    }
+
+    /**
+     * @param clock cuts the pauses out of the reported duration, may be null
+     */
+    public void setMediaClock(MediaClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Notes that a sample with the given presentation time has been written.  (Any thread.)
+     */
+    public void onSampleWritten(long presentationTimeUs) {
+        MediaClock clock = mClock;
+        if (clock != null) {
+            presentationTimeUs = clock.removePauses(presentationTimeUs);
+        }
+        synchronized (mLock) {
+            if (mFirstPresentationTimeUs < 0) {
+                mFirstPresentationTimeUs = presentationTimeUs;
+            }
+            if (presentationTimeUs <= mLastPresentationTimeUs) {
+                return;
+            }
+            mLastPresentationTimeUs = presentationTimeUs;
+            long durationUs = presentationTimeUs - mFirstPresentationTimeUs;
+            mDurationUs = durationUs;
+            if (durationUs - mLastPostedUs < mIntervalUs || !mPending.compareAndSet(false, true)) {
+                return;
+            }
+            mLastPostedUs = durationUs;
+            mPostedCount++;
+        }
+        mExecutor.execute(mDispatch);
+    }
+
+    /**
+     * @return the recorded media duration so far, in ms
+     */
+    public long getDurationMs() {
+        return mDurationUs / 1000;
+    }
+
+    /**
+     * @return number of updates handed to the executor
+     */
+    public long getPostedCount() {
+        return mPostedCount;
+    }
+}
@@ -0,0 +1,128 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+/**
+ * Keeps the presentation times of every track strictly increasing, as MPEG4Writer requires: a
+ * duplicate or backwards timestamp, e.g. after the display was toggled or the microphone
+ * restarted, makes it abort the whole recording.
+ * <p>
+ * Offending samples are clamped to just after the previous sample of their track, or dropped,
+ * according to the {@link Policy}.  Every correction is counted.  Use from one thread.
+ */
+public class PtsSanitizer {
+    /** How far after the previous sample a clamped one is put */
+    public static final long MIN_STEP_US = 1;
+    /** Returned by {@link #sanitize} for a sample that must not be written */
+    public static final long DROP = -1;
+
+    /**
+     * What to do with a sample whose timestamp isn't after the previous one of its track.
+     */
+    public enum Policy {
+        /** Write it {@link #MIN_STEP_US} after the previous sample */
+        CLAMP,
+        /**
+         * Don't write it.  For video, frames after a dropped one may reference it, so this is
+         * best kept for audio or for tracks of key frames only.
+         */
+        DROP
+    }
+
+    private volatile Policy mPolicy;
+    private long[] mLastPts = new long[0];
+    private volatile long mDuplicates;
+    private volatile long mBackwards;
+    private volatile long mClamped;
+    private volatile long mDropped;
+
+    public PtsSanitizer(Policy policy) {
+        mPolicy = policy;
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    public void setPolicy(Policy policy) {
+        mPolicy = policy;
+    }
+
+    /**
+     * Checks the next sample of a track.
+     *
+     * @return the timestamp to write it with, or {@link #DROP}
+     */
+    public long sanitize(int trackIndex, long presentationTimeUs) {
+        if (trackIndex >= mLastPts.length) {
+            long[] last = new long[trackIndex + 1];
+            System.arraycopy(mLastPts, 0, last, 0, mLastPts.length);
+            for (int i = mLastPts.length; i < last.length; i++) {
+                last[i] = Long.MIN_VALUE;
+            }
+            mLastPts = last;
+        }
+        long last = mLastPts[trackIndex];
+        // The first sample of a track only needs to be non-negative
+        long min = last == Long.MIN_VALUE ? 0 : last + MIN_STEP_US;
+        boolean exhausted = min < last; // nothing can come after Long.MAX_VALUE
+        if (!exhausted && presentationTimeUs >= min) {
+            mLastPts[trackIndex] = presentationTimeUs;
+            return presentationTimeUs;
+        }
+
+        if (presentationTimeUs == last) {
+            mDuplicates++;
+        } else {
+            mBackwards++;
+        }
+        if (mPolicy == Policy.DROP || exhausted) {
+            mDropped++;
+            return DROP;
+        }
+        mClamped++;
+        mLastPts[trackIndex] = min;
+        return min;
+    }
+
+    /**
+     * Forgets the previous timestamps, e.g. for a new file.
+     */
+    public void reset() {
+        mLastPts = new long[0];
+    }
+
+    /**
+     * @return samples with the same timestamp as the previous one of their track
+     */
+    public long getDuplicates() {
+        return mDuplicates;
+    }
+
+    /**
+     * @return samples with an earlier timestamp than the previous one of their track, or a
+     * negative one
+     */
+    public long getBackwards() {
+        return mBackwards;
+    }
+
+    /**
+     * @return offending samples written with a clamped timestamp
+     */
+    public long getClamped() {
+        return mClamped;
+    }
+
+    /**
+     * @return offending samples not written
+     */
+    public long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * @return every correction made, clamped or dropped
+     */
+    public long getCorrections() {
+        return mClamped + mDropped;
+    }
+}
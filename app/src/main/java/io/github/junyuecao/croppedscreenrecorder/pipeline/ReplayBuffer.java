@@ -0,0 +1,320 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the last stretch of encoded samples in memory, so it can be saved after the fact
+ * ("instant replay").
+ * <p>
+ * Sample data lives back to back in one direct buffer of a fixed budget, the sample table in
+ * preallocated arrays, so nothing is allocated per sample.  The buffer always starts at a video
+ * key frame: old samples are evicted a whole group of pictures at a time, once the next key
+ * frame is older than the window or the budget needs the room.  So it holds at least the window,
+ * memory permitting, and at most one group of pictures more.
+ * <p>
+ * Samples are appended from the encoder threads and {@link #save} may run on any other thread
+ * while appends go on; samples it hasn't got to yet may be evicted under it, which fails it.
+ */
+public class ReplayBuffer {
+    private static final int MAX_TRACKS = 4;
+    /** Sample table entries per second of window, more than video and audio produce together */
+    private static final int SAMPLES_PER_SECOND = 128;
+    private static final int MIN_SAMPLES = 1024;
+
+    private final ByteBuffer mData;
+    private final long mWindowUs;
+    private final int mMask;
+    // Sample table, indexed by sequence number & mMask
+    private final long[] mPts;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final int[] mFlags;
+    private final byte[] mTracks;
+    // Sequence numbers of the key frames in the buffer, oldest first, indexed the same way
+    private final long[] mKeys;
+    private long mKeyHead;
+    private long mKeyTail;
+    private final TrackFormat[] mFormats = new TrackFormat[MAX_TRACKS];
+    private int mTrackCount;
+    private int mVideoTrack = -1;
+    // Sequence numbers of the oldest sample, and of the next one appended
+    private long mHead;
+    private long mTail;
+    private int mWritePos;
+    private long mNewestUs;
+    private long mEvictedSamples;
+    private long mDroppedSamples;
+
+    /**
+     * @param windowUs    how much media time to keep
+     * @param budgetBytes memory for the sample data, allocated up front
+     */
+    public ReplayBuffer(long windowUs, int budgetBytes) {
+        mWindowUs = windowUs;
+        mData = ByteBuffer.allocateDirect(budgetBytes);
+        long samples = Math.max(MIN_SAMPLES, windowUs / 1000000 * SAMPLES_PER_SECOND);
+        int capacity = Integer.highestOneBit((int) Math.min(samples, 1 << 20) - 1) << 1;
+        mMask = capacity - 1;
+        mPts = new long[capacity];
+        mOffsets = new int[capacity];
+        mSizes = new int[capacity];
+        mFlags = new int[capacity];
+        mTracks = new byte[capacity];
+        mKeys = new long[capacity];
+    }
+
+    public long getWindowUs() {
+        return mWindowUs;
+    }
+
+    /**
+     * @return bytes of memory the sample data may take
+     */
+    public int getBudgetBytes() {
+        return mData.capacity();
+    }
+
+    /**
+     * Adds a track, or finds the one with the same mime type.  An encoder built again for the
+     * same track, e.g. for the next recording, keeps what is buffered if its codec config is the
+     * same; otherwise the buffer is emptied, since the samples wouldn't decode with it.
+     *
+     * @return the track index to use with {@link #append}
+     */
+    public synchronized int addTrack(TrackFormat format) {
+        for (int i = 0; i < mTrackCount; i++) {
+            if (mFormats[i].getMime().equals(format.getMime())) {
+                if (!sameCodecConfig(mFormats[i], format)) {
+                    clear();
+                }
+                mFormats[i] = format;
+                return i;
+            }
+        }
+        if (mTrackCount == MAX_TRACKS) {
+            throw new IllegalStateException("too many tracks");
+        }
+        int index = mTrackCount++;
+        mFormats[index] = format;
+        if (format.isVideo() && mVideoTrack < 0) {
+            mVideoTrack = index;
+            // What is buffered so far doesn't start at a key frame
+            clear();
+        }
+        return index;
+    }
+
+    private static boolean sameCodecConfig(TrackFormat a, TrackFormat b) {
+        return equal(a.getCsd0(), b.getCsd0()) && equal(a.getCsd1(), b.getCsd1())
+                && a.getWidth() == b.getWidth() && a.getHeight() == b.getHeight()
+                && a.getSampleRate() == b.getSampleRate()
+                && a.getChannelCount() == b.getChannelCount();
+    }
+
+    private static boolean equal(ByteBuffer a, ByteBuffer b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Drops everything buffered.
+     */
+    public synchronized void clear() {
+        mEvictedSamples += mTail - mHead;
+        mHead = mTail;
+        mKeyHead = mKeyTail;
+        mWritePos = 0;
+    }
+
+    /**
+     * Copies a sample in, evicting the oldest as needed.  The data is read between
+     * {@code info.offset} and {@code info.offset + info.size}; the buffer's position and limit
+     * are moved accordingly.  (Call from encoder threads.)
+     *
+     * @return false if the sample was dropped: it doesn't fit the budget, or the buffer is empty
+     * and it isn't a key frame
+     */
+    public synchronized boolean append(int track, ByteBuffer data, SampleInfo info) {
+        int size = info.size;
+        boolean key = mVideoTrack < 0 || track == mVideoTrack && info.isKeyFrame();
+        if (size <= 0 || size > mData.capacity() || mHead == mTail && !key) {
+            mDroppedSamples++;
+            return false;
+        }
+        int offset;
+        while ((offset = reserve(size)) < 0 || mTail - mHead > mMask) {
+            evictGroup();
+            if (mHead == mTail && !key) {
+                // The budget doesn't hold a group of pictures
+                mDroppedSamples++;
+                return false;
+            }
+        }
+        data.limit(info.offset + size);
+        data.position(info.offset);
+        ByteBuffer target = mData.duplicate();
+        target.position(offset);
+        target.put(data);
+
+        int i = (int) mTail & mMask;
+        mPts[i] = info.presentationTimeUs;
+        mOffsets[i] = offset;
+        mSizes[i] = size;
+        mFlags[i] = info.flags;
+        mTracks[i] = (byte) track;
+        if (key) {
+            mKeys[(int) mKeyTail++ & mMask] = mTail;
+        }
+        mTail++;
+        mWritePos = offset + size;
+        if (info.presentationTimeUs > mNewestUs) {
+            mNewestUs = info.presentationTimeUs;
+        }
+
+        // Keep the window, starting at the newest key frame that still covers it
+        while (mKeyTail - mKeyHead > 1
+                && mPts[(int) mKeys[(int) (mKeyHead + 1) & mMask] & mMask] <= mNewestUs - mWindowUs) {
+            evictGroup();
+        }
+        return true;
+    }
+
+    /**
+     * @return where {@code size} bytes fit after the newest sample, or -1
+     */
+    private int reserve(int size) {
+        if (mHead == mTail) {
+            mWritePos = 0;
+            return 0;
+        }
+        int readPos = mOffsets[(int) mHead & mMask];
+        if (mWritePos > readPos) {
+            if (size <= mData.capacity() - mWritePos) {
+                return mWritePos;
+            }
+            // Wrap around, the end of the buffer stays unused this round
+            return size <= readPos ? 0 : -1;
+        }
+        return size <= readPos - mWritePos ? mWritePos : -1;
+    }
+
+    /**
+     * Evicts the oldest group of pictures: up to the second key frame, or everything.
+     */
+    private void evictGroup() {
+        mKeyHead++;
+        long next = mKeyHead < mKeyTail ? mKeys[(int) mKeyHead & mMask] : mTail;
+        mEvictedSamples += next - mHead;
+        mHead = next;
+        if (mHead == mTail) {
+            mWritePos = 0;
+        }
+    }
+
+    /**
+     * @return media time from the oldest sample to the newest
+     */
+    public synchronized long getBufferedUs() {
+        return mHead == mTail ? 0 : mNewestUs - mPts[(int) mHead & mMask];
+    }
+
+    /**
+     * @return number of samples evicted to keep the window or the budget
+     */
+    public synchronized long getEvictedSamples() {
+        return mEvictedSamples;
+    }
+
+    /**
+     * @return number of samples that couldn't be buffered
+     */
+    public synchronized long getDroppedSamples() {
+        return mDroppedSamples;
+    }
+
+    /**
+     * Writes the last {@code durationUs} of what is buffered to {@code muxer}, from the newest
+     * key frame that covers it, or everything if less is buffered.  Timestamps start from zero
+     * and are kept increasing per track by a {@link PtsSanitizer}, since an encoder rebuilt or
+     * a clock reset within the window may have stepped them back.  Tracks without samples are
+     * left out.  Stops and releases the muxer.
+     *
+     * @return media time written
+     * @throws IllegalStateException if nothing is buffered, or appends overtook the save
+     */
+    public long save(SampleMuxer muxer, long durationUs) {
+        try {
+            return writeTo(muxer, durationUs);
+        } finally {
+            muxer.release();
+        }
+    }
+
+    private long writeTo(SampleMuxer muxer, long durationUs) {
+        long start;
+        long end;
+        long startUs;
+        long endUs = 0;
+        int[] muxerTracks = new int[MAX_TRACKS];
+        synchronized (this) {
+            if (mHead == mTail) {
+                throw new IllegalStateException("replay buffer is empty");
+            }
+            start = mHead;
+            for (long k = mKeyTail - 1; k >= mKeyHead; k--) {
+                long seq = mKeys[(int) k & mMask];
+                if (mPts[(int) seq & mMask] <= mNewestUs - durationUs) {
+                    start = seq;
+                    break;
+                }
+            }
+            end = mTail;
+            startUs = mPts[(int) start & mMask];
+            boolean[] present = new boolean[MAX_TRACKS];
+            for (long seq = start; seq < end; seq++) {
+                present[mTracks[(int) seq & mMask]] = true;
+            }
+            for (int t = 0; t < mTrackCount; t++) {
+                muxerTracks[t] = present[t] ? muxer.addTrack(mFormats[t]) : -1;
+            }
+        }
+        muxer.start();
+        ByteBuffer scratch = ByteBuffer.allocateDirect(64 * 1024);
+        SampleInfo info = new SampleInfo();
+        PtsSanitizer sanitizer = new PtsSanitizer(PtsSanitizer.Policy.CLAMP);
+        int track;
+        for (long seq = start; seq < end; seq++) {
+            synchronized (this) {
+                if (seq < mHead) {
+                    throw new IllegalStateException("replay samples were evicted while saving");
+                }
+                int i = (int) seq & mMask;
+                int size = mSizes[i];
+                if (scratch.capacity() < size) {
+                    scratch = ByteBuffer.allocateDirect(Math.max(size, scratch.capacity() * 2));
+                }
+                ByteBuffer source = mData.duplicate();
+                source.limit(mOffsets[i] + size);
+                source.position(mOffsets[i]);
+                scratch.clear();
+                scratch.put(source);
+                track = mTracks[i];
+                info.set(0, size, mPts[i], mFlags[i]);
+            }
+            if (info.presentationTimeUs < startUs) {
+                // Audio from before the first key frame
+                continue;
+            }
+            long ptsUs = sanitizer.sanitize(muxerTracks[track], info.presentationTimeUs - startUs);
+            if (ptsUs == PtsSanitizer.DROP) {
+                continue;
+            }
+            info.presentationTimeUs = ptsUs;
+            if (info.presentationTimeUs > endUs) {
+                endUs = info.presentationTimeUs;
+            }
+            muxer.writeSampleData(muxerTracks[track], scratch, info);
+        }
+        muxer.stop();
+        return endUs;
+    }
+}
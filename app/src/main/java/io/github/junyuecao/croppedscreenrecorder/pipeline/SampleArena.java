@@ -0,0 +1,197 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct memory for encoded samples that have to outlive the codec buffer they came
+ * in.
+ * <p>
+ * Memory is handed out as {@link Lease}s from a few size classes matching typical AAC frames,
+ * H.264 P-frames and I-frames.  Small classes are carved out of 64 KiB slabs so they don't each
+ * cost a direct allocation.  Leases are reference counted and return to their class's free list
+ * when the last holder releases them; the lease objects themselves are reused, so once warmed
+ * up neither direct nor heap memory is allocated.
+ * <p>
+ * The total size of all slabs is limited by a byte budget: when a class has no free lease and a
+ * new slab would go over budget, {@link #acquire(int)} returns null.  Thread-safe.
+ */
+public class SampleArena {
+    /** Default byte budget, enough for a few seconds of 1080p video */
+    public static final long DEFAULT_BUDGET = 32 * 1024 * 1024;
+
+    private static final int SLAB_SIZE = 64 * 1024;
+    private static final int[] CLASS_SIZES = {
+        1024,               // AAC frames
+        4 * 1024,           // small P-frames
+        16 * 1024,          // P-frames
+        64 * 1024,          // large P-frames, small I-frames
+        256 * 1024,         // I-frames
+        1024 * 1024,        // large I-frames
+        4 * 1024 * 1024,
+        16 * 1024 * 1024
+    };
+
+    /**
+     * A reference-counted piece of arena memory.  Holders call {@link #retain()} to share it and
+     * {@link #release()} when done; the memory returns to the arena after the last release.
+     */
+    public static class Lease {
+        private final SampleArena mArena;
+        private final ByteBuffer mBuffer;
+        private final int mSizeClass;
+        private final AtomicInteger mRefCount = new AtomicInteger();
+
+        Lease(SampleArena arena, ByteBuffer buffer, int sizeClass) {
+            mArena = arena;
+            mBuffer = buffer;
+            mSizeClass = sizeClass;
+        }
+
+        /**
+         * Returns the leased memory.  Its position and limit belong to the holders.
+         */
+        public ByteBuffer buffer() {
+            return mBuffer;
+        }
+
+        public int capacity() {
+            return mBuffer.capacity();
+        }
+
+        public Lease retain() {
+            if (mRefCount.getAndIncrement() <= 0) {
+                throw new IllegalStateException("lease already released");
+            }
+            return this;
+        }
+
+        public void release() {
+            int count = mRefCount.decrementAndGet();
+            if (count == 0) {
+                mArena.recycle(this);
+            } else if (count < 0) {
+                throw new IllegalStateException("lease released too often");
+            }
+        }
+    }
+
+    private final long mBudget;
+    private final ArrayDeque<Lease>[] mFree;
+    private long mAllocatedBytes;
+    private long mInUseBytes;
+    private long mPeakInUseBytes;
+    private long mHits;
+    private long mMisses;
+    private long mRejections;
+
+    /**
+     * @param budget maximum bytes of direct memory the arena may allocate
+     */
+    @SuppressWarnings("unchecked")
+    public SampleArena(long budget) {
+        mBudget = budget;
+        mFree = new ArrayDeque[CLASS_SIZES.length];
+        for (int i = 0; i < mFree.length; i++) {
+            mFree[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Returns a cleared lease with at least {@code size} bytes, holding one reference, or null
+     * if serving it would exceed the budget.
+     *
+     * @throws IllegalArgumentException if {@code size} is larger than the largest size class
+     */
+    public synchronized Lease acquire(int size) {
+        int sizeClass = sizeClassFor(size);
+        Lease lease = mFree[sizeClass].pollFirst();
+        if (lease != null) {
+            mHits++;
+        } else {
+            int classSize = CLASS_SIZES[sizeClass];
+            int slabSize = Math.max(SLAB_SIZE, classSize);
+            if (mAllocatedBytes + slabSize > mBudget) {
+                mRejections++;
+                return null;
+            }
+            mMisses++;
+            mAllocatedBytes += slabSize;
+            ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+            for (int offset = 0; offset < slabSize; offset += classSize) {
+                slab.limit(offset + classSize);
+                slab.position(offset);
+                mFree[sizeClass].addLast(new Lease(this, slab.slice(), sizeClass));
+            }
+            lease = mFree[sizeClass].pollFirst();
+        }
+        lease.mBuffer.clear();
+        lease.mRefCount.set(1);
+        mInUseBytes += lease.capacity();
+        if (mInUseBytes > mPeakInUseBytes) {
+            mPeakInUseBytes = mInUseBytes;
+        }
+        return lease;
+    }
+
+    private synchronized void recycle(Lease lease) {
+        mInUseBytes -= lease.capacity();
+        mFree[lease.mSizeClass].addFirst(lease);
+    }
+
+    public long getBudget() {
+        return mBudget;
+    }
+
+    /**
+     * @return bytes of direct memory allocated so far
+     */
+    public synchronized long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    /**
+     * @return bytes currently leased out
+     */
+    public synchronized long getInUseBytes() {
+        return mInUseBytes;
+    }
+
+    /**
+     * @return the most bytes leased out at once
+     */
+    public synchronized long getPeakInUseBytes() {
+        return mPeakInUseBytes;
+    }
+
+    /**
+     * @return acquisitions served from a free list
+     */
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    /**
+     * @return acquisitions that needed a new slab
+     */
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * @return acquisitions refused because of the budget
+     */
+    public synchronized long getRejections() {
+        return mRejections;
+    }
+
+    private static int sizeClassFor(int size) {
+        for (int i = 0; i < CLASS_SIZES.length; i++) {
+            if (size <= CLASS_SIZES[i]) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("sample too large: " + size);
+    }
+}
@@ -0,0 +1,40 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+/**
+ * Metadata of one encoded sample.  Plain-Java counterpart of MediaCodec.BufferInfo, so the
+ * pipeline can run without the Android framework.  The flag values match MediaCodec's.
+ */
+public final class SampleInfo {
+    public static final int FLAG_KEY_FRAME = 1;
+    public static final int FLAG_CODEC_CONFIG = 2;
+    public static final int FLAG_END_OF_STREAM = 4;
+
+    public int offset;
+    public int size;
+    public long presentationTimeUs;
+    public int flags;
+
+    public void set(int newOffset, int newSize, long newTimeUs, int newFlags) {
+        offset = newOffset;
+        size = newSize;
+        presentationTimeUs = newTimeUs;
+        flags = newFlags;
+    }
+
+    public boolean isKeyFrame() {
+        return (flags & FLAG_KEY_FRAME) != 0;
+    }
+
+    public boolean isCodecConfig() {
+        return (flags & FLAG_CODEC_CONFIG) != 0;
+    }
+
+    public boolean isEndOfStream() {
+        return (flags & FLAG_END_OF_STREAM) != 0;
+    }
+
+    @Override
+    public String toString() {
+        return "SampleInfo[" + offset + "+" + size + " @" + presentationTimeUs + "us flags=" + flags + "]";
+    }
+}
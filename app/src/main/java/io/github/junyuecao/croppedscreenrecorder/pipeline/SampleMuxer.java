@@ -0,0 +1,27 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The subset of MediaMuxer the recording pipeline uses.  Implementations are only called from
+ * one thread at a time.
+ */
+public interface SampleMuxer {
+    /**
+     * Adds a track.  Must be called before {@link #start()}.
+     *
+     * @return the index to use with {@link #writeSampleData}
+     */
+    int addTrack(TrackFormat format);
+
+    void start();
+
+    /**
+     * Writes the bytes between {@code info.offset} and {@code info.offset + info.size}.
+     */
+    void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info);
+
+    void stop();
+
+    void release();
+}
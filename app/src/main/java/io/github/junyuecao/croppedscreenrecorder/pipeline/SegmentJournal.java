@@ -0,0 +1,276 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only on-disk log of the segments of a {@link SegmentRing}, so the ring is recovered
+ * after a restart by reading one small file instead of listing and parsing the recordings.
+ * <p>
+ * Each record is a type byte, the segment id, one or two longs and, when a segment is opened,
+ * its file name, followed by a CRC32 of the record.  A record torn by a crash is cut short or
+ * fails its check; it and anything after it are cut off when the journal is opened.  Records
+ * of deleted segments are dropped by {@link #compact}, which rewrites the journal to a new file
+ * and renames it over.
+ */
+public class SegmentJournal {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x53474a31; // "SGJ1"
+    private static final byte OPEN = 1;
+    private static final byte CLOSE = 2;
+    private static final byte DELETE = 3;
+    private static final int MAX_NAME = 1024;
+
+    /**
+     * A segment as the journal knows it.
+     */
+    public static class Entry {
+        public final long id;
+        public final String name;
+        public final long createdMs;
+        /** File size, -1 if the segment was never closed, e.g. recording crashed */
+        public long bytes = -1;
+        public long durationUs;
+
+        Entry(long id, String name, long createdMs) {
+            this.id = id;
+            this.name = name;
+            this.createdMs = createdMs;
+        }
+
+        public boolean isClosed() {
+            return bytes >= 0;
+        }
+    }
+
+    private final File mFile;
+    private final ByteBuffer mRecord = ByteBuffer.allocate(64 + MAX_NAME);
+    private final CRC32 mCrc = new CRC32();
+    private FileChannel mChannel;
+    private long mRecords;
+
+    public SegmentJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Reads the journal, creating it if there is none, and keeps it open for appending.
+     *
+     * @return the segments not deleted, oldest first
+     */
+    public List<Entry> open() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+        long size = mChannel.size();
+        if (size < 4) {
+            writeHeader(mChannel);
+            mRecords = 0;
+            return entries;
+        }
+        ByteBuffer data = ByteBuffer.allocate((int) size);
+        while (data.hasRemaining() && mChannel.read(data, data.position()) >= 0) {
+            // keep reading
+        }
+        data.flip();
+        if (data.getInt() != MAGIC) {
+            throw new IOException(mFile + " isn't a segment journal");
+        }
+        long valid = data.position();
+        while (data.hasRemaining()) {
+            int start = data.position();
+            int length = recordLength(data);
+            if (length < 0 || data.remaining() < length + 4) {
+                // Cut short by a crash
+                break;
+            }
+            mCrc.reset();
+            mCrc.update(data.array(), start, length);
+            if (data.getInt(start + length) != (int) mCrc.getValue()) {
+                break;
+            }
+            apply(data, entries);
+            data.position(start + length + 4);
+            valid = data.position();
+            mRecords++;
+        }
+        if (valid < size) {
+            mChannel.truncate(valid);
+        }
+        mChannel.position(valid);
+        return entries;
+    }
+
+    /**
+     * @return the length of the record at the buffer's position, without its check, or -1 if
+     * it is cut short or malformed
+     */
+    private static int recordLength(ByteBuffer data) {
+        int start = data.position();
+        if (data.remaining() < 9) {
+            return -1;
+        }
+        switch (data.get(start)) {
+            case OPEN:
+                if (data.remaining() < 19) {
+                    return -1;
+                }
+                int length = data.getShort(start + 17) & 0xffff;
+                return length > MAX_NAME ? -1 : 19 + length;
+            case CLOSE:
+                return 25;
+            case DELETE:
+                return 9;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Applies the checked record at the buffer's position to {@code entries}.
+     */
+    private static void apply(ByteBuffer data, List<Entry> entries) {
+        byte type = data.get();
+        long id = data.getLong();
+        if (type == OPEN) {
+            long createdMs = data.getLong();
+            int length = data.getShort() & 0xffff;
+            String name = new String(data.array(), data.position(), length, UTF_8);
+            entries.add(new Entry(id, name, createdMs));
+        } else if (type == CLOSE) {
+            Entry entry = find(entries, id);
+            if (entry != null) {
+                entry.bytes = data.getLong();
+                entry.durationUs = data.getLong();
+            }
+        } else {
+            Entry entry = find(entries, id);
+            if (entry != null) {
+                entries.remove(entry);
+            }
+        }
+    }
+
+    private static Entry find(List<Entry> entries, long id) {
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            if (entries.get(i).id == id) {
+                return entries.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return number of records in the journal, live or not
+     */
+    public long getRecordCount() {
+        return mRecords;
+    }
+
+    public void appendOpen(Entry entry) throws IOException {
+        byte[] name = entry.name.getBytes(UTF_8);
+        if (name.length > MAX_NAME) {
+            throw new IOException("segment name too long: " + entry.name);
+        }
+        ByteBuffer record = begin(OPEN, entry.id);
+        record.putLong(entry.createdMs);
+        record.putShort((short) name.length);
+        record.put(name);
+        append(mChannel, record);
+    }
+
+    public void appendClose(Entry entry) throws IOException {
+        ByteBuffer record = begin(CLOSE, entry.id);
+        record.putLong(entry.bytes);
+        record.putLong(entry.durationUs);
+        append(mChannel, record);
+    }
+
+    public void appendDelete(Entry entry) throws IOException {
+        append(mChannel, begin(DELETE, entry.id));
+    }
+
+    private ByteBuffer begin(byte type, long id) {
+        ByteBuffer record = mRecord;
+        record.clear();
+        record.put(type);
+        record.putLong(id);
+        return record;
+    }
+
+    /**
+     * Writes the record with its check, and forces it to storage.
+     */
+    private void append(FileChannel channel, ByteBuffer record) throws IOException {
+        mCrc.reset();
+        mCrc.update(record.array(), 0, record.position());
+        record.putInt((int) mCrc.getValue());
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        channel.force(false);
+        mRecords++;
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        header.putInt(MAGIC);
+        header.flip();
+        channel.truncate(0);
+        channel.position(0);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the records of {@code entries}.
+     */
+    public void compact(List<Entry> entries) throws IOException {
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileChannel channel = new RandomAccessFile(temp, "rw").getChannel();
+        try {
+            writeHeader(channel);
+            mRecords = 0;
+            for (Entry entry : entries) {
+                byte[] name = entry.name.getBytes(UTF_8);
+                ByteBuffer record = begin(OPEN, entry.id);
+                record.putLong(entry.createdMs);
+                record.putShort((short) name.length);
+                record.put(name);
+                append(channel, record);
+                if (entry.isClosed()) {
+                    record = begin(CLOSE, entry.id);
+                    record.putLong(entry.bytes);
+                    record.putLong(entry.durationUs);
+                    append(channel, record);
+                }
+            }
+        } catch (IOException e) {
+            channel.close();
+            temp.delete();
+            throw e;
+        }
+        if (!temp.renameTo(mFile)) {
+            channel.close();
+            temp.delete();
+            throw new IOException("failed to replace " + mFile);
+        }
+        mChannel.close();
+        mChannel = channel;
+    }
+
+    public void close() throws IOException {
+        if (mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+}
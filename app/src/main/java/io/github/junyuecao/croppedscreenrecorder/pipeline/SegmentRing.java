@@ -0,0 +1,158 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the segments of a recording that never ends within a storage quota, dashcam style:
+ * once the finished segments in a directory, plus room for one more, exceed the quota, the
+ * oldest are deleted.
+ * <p>
+ * Which segments exist and how big they are is kept in a {@link SegmentJournal} in the same
+ * directory, so a ring is picked up again after a restart without listing or parsing the
+ * recordings.  A segment left open by a crash is sized from its file once, when the ring is
+ * opened.  Only segments recorded through the ring count towards the quota and get deleted;
+ * other files in the directory are left alone.
+ * <p>
+ * The methods are synchronized; file and journal I/O happen on the calling thread.
+ */
+public class SegmentRing {
+    public static final String JOURNAL_NAME = ".segments";
+    /** The journal is compacted once it holds this many records, and four times the live ones */
+    private static final int COMPACT_MIN_RECORDS = 64;
+
+    private final File mDirectory;
+    private final long mQuotaBytes;
+    private final SegmentJournal mJournal;
+    private final List<SegmentJournal.Entry> mEntries;
+    private long mNextId;
+    private long mTotalBytes;
+    private long mLargestBytes;
+    private long mDeletedSegments;
+
+    /**
+     * Opens the ring of {@code directory}, recovering it from its journal if there is one, and
+     * deletes segments right away if they are over the quota.
+     */
+    public SegmentRing(File directory, long quotaBytes) throws IOException {
+        mDirectory = directory;
+        mQuotaBytes = quotaBytes;
+        mJournal = new SegmentJournal(new File(directory, JOURNAL_NAME));
+        mEntries = mJournal.open();
+        for (SegmentJournal.Entry entry : mEntries) {
+            if (!entry.isClosed()) {
+                // Cut short by a crash, the file has whatever made it to storage
+                entry.bytes = new File(directory, entry.name).length();
+                mJournal.appendClose(entry);
+            }
+            mTotalBytes += entry.bytes;
+            mLargestBytes = Math.max(mLargestBytes, entry.bytes);
+            mNextId = entry.id + 1;
+        }
+        enforceQuota(0);
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public long getQuotaBytes() {
+        return mQuotaBytes;
+    }
+
+    /**
+     * @return bytes taken by the finished segments
+     */
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * @return the segments, oldest first, including one being written
+     */
+    public synchronized List<File> getSegmentFiles() {
+        List<File> files = new ArrayList<>(mEntries.size());
+        for (SegmentJournal.Entry entry : mEntries) {
+            files.add(new File(mDirectory, entry.name));
+        }
+        return files;
+    }
+
+    /**
+     * @return number of segments deleted to keep the quota since the ring was opened
+     */
+    public synchronized long getDeletedSegments() {
+        return mDeletedSegments;
+    }
+
+    /**
+     * Records a segment about to be written, first making room for it as big as the largest so
+     * far.
+     */
+    public synchronized void segmentStarted(File file) throws IOException {
+        enforceQuota(mLargestBytes);
+        SegmentJournal.Entry entry = new SegmentJournal.Entry(mNextId++, file.getName(),
+                System.currentTimeMillis());
+        mJournal.appendOpen(entry);
+        mEntries.add(entry);
+    }
+
+    /**
+     * Records a segment written and closed, and deletes the oldest ones if over the quota.
+     */
+    public synchronized void segmentFinished(File file, long durationUs) throws IOException {
+        SegmentJournal.Entry entry = null;
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            SegmentJournal.Entry candidate = mEntries.get(i);
+            if (!candidate.isClosed() && candidate.name.equals(file.getName())) {
+                entry = candidate;
+                break;
+            }
+        }
+        if (entry == null) {
+            throw new IllegalStateException(file + " wasn't started");
+        }
+        entry.bytes = file.length();
+        entry.durationUs = durationUs;
+        mJournal.appendClose(entry);
+        mTotalBytes += entry.bytes;
+        mLargestBytes = Math.max(mLargestBytes, entry.bytes);
+        enforceQuota(0);
+    }
+
+    /**
+     * Deletes the oldest finished segments until they and {@code headroomBytes} fit the quota.
+     */
+    private void enforceQuota(long headroomBytes) throws IOException {
+        while (mTotalBytes + headroomBytes > mQuotaBytes) {
+            SegmentJournal.Entry oldest = null;
+            for (SegmentJournal.Entry entry : mEntries) {
+                if (entry.isClosed()) {
+                    oldest = entry;
+                    break;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            File file = new File(mDirectory, oldest.name);
+            if (!file.delete() && file.exists()) {
+                throw new IOException("failed to delete " + file);
+            }
+            mJournal.appendDelete(oldest);
+            mEntries.remove(oldest);
+            mTotalBytes -= oldest.bytes;
+            mDeletedSegments++;
+        }
+        long records = mJournal.getRecordCount();
+        if (records >= COMPACT_MIN_RECORDS && records >= 4L * mEntries.size()) {
+            mJournal.compact(mEntries);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        mJournal.close();
+    }
+}
@@ -0,0 +1,316 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link SampleMuxer} splitting the recording into segments, each written by a muxer of its
+ * own, while the encoders keep running.
+ * <p>
+ * A segment is due once it holds a given duration or number of bytes; it is then cut at the
+ * next video key frame, which is requested from the video encoder so the cut doesn't wait for
+ * the regular key frame interval.  Every segment starts at a key frame and its timestamps start
+ * from the cut, unless {@link #setRebaseTimestamps} says otherwise.  Audio samples from before
+ * the cut that arrive after it still go to the old segment, which is finished once every other
+ * track has passed the cut.  Without a video track the first track leads and segments are cut
+ * on time or size alone.
+ * <p>
+ * A video track goes silent while the screen doesn't change.  With {@link #setMaxLeadGapUs},
+ * another track cuts a due segment once video has been silent that long, and the video written
+ * after such a cut is dropped until its next key frame.
+ * <p>
+ * The muxers are opened by an {@link Output}, and each finished segment is reported to a
+ * {@link Listener}, both on the thread writing samples.
+ */
+public class SegmentingSampleMuxer implements SampleMuxer {
+    private static final int MAX_TRACKS = 4;
+
+    /**
+     * Opens the muxer of each segment.
+     */
+    public interface Output {
+        SampleMuxer openSegment(int index) throws IOException;
+    }
+
+    public interface Listener {
+        /**
+         * Called when a segment is written and closed.
+         *
+         * @param durationUs media time from the start of the segment to the next one, or to
+         *                   its last sample for the last segment
+         * @param bytes      sample data written to it
+         */
+        void onSegmentFinished(int index, long durationUs, long bytes);
+    }
+
+    private static class Segment {
+        final SampleMuxer muxer;
+        final int index;
+        final long baseUs;
+        long lastUs;
+        // Where the next segment starts, 0 until cut
+        long endUs;
+        long bytes;
+        boolean open = true;
+
+        Segment(SampleMuxer muxer, int index, long baseUs) {
+            this.muxer = muxer;
+            this.index = index;
+            this.baseUs = baseUs;
+            lastUs = baseUs;
+        }
+    }
+
+    private final Output mOutput;
+    private final long mMaxDurationUs;
+    private final long mMaxBytes;
+    private final TrackFormat[] mFormats = new TrackFormat[MAX_TRACKS];
+    private final boolean[] mPassedCut = new boolean[MAX_TRACKS];
+    private final SampleInfo mInfo = new SampleInfo();
+    private int mTrackCount;
+    private int mLeadTrack = -1;
+    private Listener mListener;
+    private MediaEncoder mSyncFrameSource;
+    private Segment mCurrent;
+    // The segment before the last cut, until the other tracks have caught up with it
+    private Segment mPrevious;
+    private long mCutUs;
+    private boolean mSyncRequested;
+    private boolean mRebaseTimestamps = true;
+    private long mMaxLeadGapUs;
+    private long mLeadLastUs;
+    // Set after a cut another track made, until the lead track's next key frame
+    private boolean mLeadAwaitingKeyFrame;
+    private volatile int mSegments;
+
+    /**
+     * @param maxDurationUs media time after which a segment is cut, 0 for no limit
+     * @param maxBytes      sample data after which a segment is cut, 0 for no limit
+     */
+    public SegmentingSampleMuxer(Output output, long maxDurationUs, long maxBytes) {
+        mOutput = output;
+        mMaxDurationUs = maxDurationUs;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @param listener told about each finished segment, may be null
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param encoder the video encoder, asked for a key frame when a segment is due.  Without
+     *                one, cuts wait for the encoder's regular key frames.
+     */
+    public void setSyncFrameSource(MediaEncoder encoder) {
+        mSyncFrameSource = encoder;
+    }
+
+    /**
+     * @param rebase true, the default, to start the timestamps of every segment from zero;
+     *               false to keep them running on across segments, as HLS wants
+     */
+    public void setRebaseTimestamps(boolean rebase) {
+        mRebaseTimestamps = rebase;
+    }
+
+    /**
+     * @param maxLeadGapUs how long the video track may be silent before another track cuts a
+     *                     due segment, 0, the default, to always wait for video
+     */
+    public void setMaxLeadGapUs(long maxLeadGapUs) {
+        mMaxLeadGapUs = maxLeadGapUs;
+    }
+
+    /**
+     * @return number of segments opened so far
+     */
+    public int getSegmentCount() {
+        return mSegments;
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        if (mCurrent != null) {
+            throw new IllegalStateException("tracks must be added before start");
+        }
+        if (mTrackCount == MAX_TRACKS) {
+            throw new IllegalStateException("too many tracks");
+        }
+        int index = mTrackCount++;
+        mFormats[index] = format;
+        if (format.isVideo() && (mLeadTrack < 0 || !mFormats[mLeadTrack].isVideo())) {
+            mLeadTrack = index;
+        } else if (mLeadTrack < 0) {
+            mLeadTrack = index;
+        }
+        return index;
+    }
+
+    /**
+     * Opens the first segment.
+     */
+    @Override
+    public void start() {
+        if (mCurrent != null) {
+            throw new IllegalStateException("already started");
+        }
+        mCurrent = openSegment(0, 0);
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+        if (mCurrent == null) {
+            throw new IllegalStateException("muxer isn't running");
+        }
+        long ptsUs = info.presentationTimeUs;
+        if (trackIndex == mLeadTrack) {
+            if (mLeadAwaitingKeyFrame) {
+                if (!info.isKeyFrame()) {
+                    return;
+                }
+                mLeadAwaitingKeyFrame = false;
+            }
+            mLeadLastUs = ptsUs;
+        } else if (mMaxLeadGapUs > 0 && ptsUs - mLeadLastUs >= mMaxLeadGapUs && isDue(ptsUs)
+                && ptsUs > mCurrent.baseUs && mFormats[mLeadTrack].isVideo()) {
+            // Video went silent, cut here and have it start the segment with a key frame
+            cut(ptsUs);
+            mLeadAwaitingKeyFrame = true;
+            MediaEncoder source = mSyncFrameSource;
+            if (source != null) {
+                source.requestSyncFrame();
+            }
+        }
+        if (mPrevious != null && trackIndex != mLeadTrack) {
+            if (ptsUs < mCutUs) {
+                write(mPrevious, trackIndex, data, info);
+                return;
+            }
+            mPassedCut[trackIndex] = true;
+            if (allPassedCut()) {
+                finish(mPrevious);
+                mPrevious = null;
+            }
+        }
+        if (trackIndex == mLeadTrack && isDue(ptsUs)) {
+            if (info.isKeyFrame() || !mFormats[mLeadTrack].isVideo()) {
+                cut(ptsUs);
+            } else if (!mSyncRequested) {
+                mSyncRequested = true;
+                MediaEncoder source = mSyncFrameSource;
+                if (source != null) {
+                    source.requestSyncFrame();
+                }
+            }
+        }
+        write(mCurrent, trackIndex, data, info);
+    }
+
+    private boolean isDue(long ptsUs) {
+        return mMaxDurationUs > 0 && ptsUs - mCurrent.baseUs >= mMaxDurationUs
+                || mMaxBytes > 0 && mCurrent.bytes >= mMaxBytes;
+    }
+
+    private boolean allPassedCut() {
+        for (int i = 0; i < mTrackCount; i++) {
+            if (i != mLeadTrack && !mPassedCut[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void cut(long ptsUs) {
+        if (mPrevious != null) {
+            // Another cut before the other tracks caught up with the last one
+            finish(mPrevious);
+        }
+        mPrevious = mCurrent;
+        mPrevious.endUs = ptsUs;
+        mCutUs = ptsUs;
+        for (int i = 0; i < mTrackCount; i++) {
+            mPassedCut[i] = false;
+        }
+        mCurrent = openSegment(mPrevious.index + 1, ptsUs);
+        mSyncRequested = false;
+        if (allPassedCut()) {
+            finish(mPrevious);
+            mPrevious = null;
+        }
+    }
+
+    private Segment openSegment(int index, long baseUs) {
+        SampleMuxer muxer;
+        try {
+            muxer = mOutput.openSegment(index);
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to open segment " + index, e);
+        }
+        for (int i = 0; i < mTrackCount; i++) {
+            if (muxer.addTrack(mFormats[i]) != i) {
+                muxer.release();
+                throw new IllegalStateException("muxer numbered track " + i + " differently");
+            }
+        }
+        muxer.start();
+        mSegments++;
+        return new Segment(muxer, index, baseUs);
+    }
+
+    private void write(Segment segment, int trackIndex, ByteBuffer data, SampleInfo info) {
+        long baseUs = mRebaseTimestamps ? segment.baseUs : 0;
+        mInfo.set(info.offset, info.size, info.presentationTimeUs - baseUs, info.flags);
+        segment.muxer.writeSampleData(trackIndex, data, mInfo);
+        segment.bytes += info.size;
+        if (info.presentationTimeUs > segment.lastUs) {
+            segment.lastUs = info.presentationTimeUs;
+        }
+    }
+
+    private void finish(Segment segment) {
+        segment.open = false;
+        try {
+            segment.muxer.stop();
+        } finally {
+            segment.muxer.release();
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            long endUs = segment.endUs > 0 ? segment.endUs : segment.lastUs;
+            listener.onSegmentFinished(segment.index, endUs - segment.baseUs, segment.bytes);
+        }
+    }
+
+    /**
+     * Finishes the segments still open.
+     */
+    @Override
+    public void stop() {
+        if (mCurrent == null) {
+            throw new IllegalStateException("muxer isn't running");
+        }
+        Segment previous = mPrevious;
+        mPrevious = null;
+        if (previous != null) {
+            finish(previous);
+        }
+        finish(mCurrent);
+    }
+
+    /**
+     * Releases the segments left open, e.g. when stopping failed.
+     */
+    @Override
+    public void release() {
+        Segment[] segments = {mPrevious, mCurrent};
+        for (Segment segment : segments) {
+            if (segment != null && segment.open) {
+                segment.open = false;
+                segment.muxer.release();
+            }
+        }
+    }
+}
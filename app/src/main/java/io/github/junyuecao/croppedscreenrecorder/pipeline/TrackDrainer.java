@@ -0,0 +1,190 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Moves the output of one {@link MediaEncoder} into a track of a {@link MuxerWriter}.
+ * <p>
+ * In sync mode the owner calls {@link #drain}; in async mode it forwards the encoder callback
+ * to {@link #onOutputBufferAvailable}.  Output produced before the muxer has started is held
+ * by the {@link MuxerWriter} until it starts.
+ * <p>
+ * Output can also be copied into a {@link ReplayBuffer}, and writing to the muxer turned off
+ * meanwhile, so an encoder kept running between recordings only feeds the replay.
+ */
+public class TrackDrainer {
+
+    /**
+     * Told about the encoder's output format, so the owner can add the track and start the muxer.
+     */
+    public interface Listener {
+        void onOutputFormatChanged(TrackDrainer drainer, TrackFormat format);
+    }
+
+    private final MediaEncoder mEncoder;
+    private final MuxerWriter mWriter;
+    private final Listener mListener;
+    private final SampleInfo mInfo = new SampleInfo();
+    private volatile int mTrackIndex = -1;
+    private volatile long mWrittenSamples;
+    private volatile long mWrittenBytes;
+    private volatile long mDiscardedSamples;
+    private volatile FrameLatencyTracker mLatencyTracker;
+    private volatile ProgressDispatcher mProgress;
+    private volatile ReplayBuffer mReplay;
+    private volatile int mReplayTrack = -1;
+    private volatile boolean mWriting = true;
+    private volatile boolean mAwaitingKeyFrame;
+
+    public TrackDrainer(MediaEncoder encoder, MuxerWriter writer, Listener listener) {
+        mEncoder = encoder;
+        mWriter = writer;
+        mListener = listener;
+    }
+
+    public MediaEncoder getEncoder() {
+        return mEncoder;
+    }
+
+    /**
+     * @return the muxer track index, or -1 if the track hasn't been added yet
+     */
+    public int getTrackIndex() {
+        return mTrackIndex;
+    }
+
+    public void setTrackIndex(int trackIndex) {
+        mTrackIndex = trackIndex;
+    }
+
+    /**
+     * @return number of samples handed to the muxer writer
+     */
+    public long getWrittenSamples() {
+        return mWrittenSamples;
+    }
+
+    /**
+     * @return number of bytes handed to the muxer writer
+     */
+    public long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    /**
+     * @return number of samples released without being written because the writer dropped them
+     */
+    public long getDiscardedSamples() {
+        return mDiscardedSamples;
+    }
+
+    /**
+     * @param tracker told when each sample is dequeued from the encoder, may be null
+     */
+    public void setLatencyTracker(FrameLatencyTracker tracker) {
+        mLatencyTracker = tracker;
+    }
+
+    /**
+     * @param progress told about the presentation time of each sample written, may be null
+     */
+    public void setProgressDispatcher(ProgressDispatcher progress) {
+        mProgress = progress;
+    }
+
+    /**
+     * @param replay also gets every sample, may be null
+     * @param track  the track index in {@code replay}
+     */
+    public void setReplayBuffer(ReplayBuffer replay, int track) {
+        mReplayTrack = track;
+        mReplay = replay;
+    }
+
+    /**
+     * Turns writing to the muxer writer on or off.  Samples not written are still copied to the
+     * replay buffer; they are not counted as discarded.
+     *
+     * @param fromKeyFrame when turning writing on, skip samples up to the next key frame, so a
+     *                     video track starts decodable
+     */
+    public void setWriting(boolean writing, boolean fromKeyFrame) {
+        mAwaitingKeyFrame = writing && fromKeyFrame;
+        mWriting = writing;
+    }
+
+    public boolean isWriting() {
+        return mWriting;
+    }
+
+    /**
+     * Polls the encoder for output until none is available (sync mode only).
+     *
+     * @param timeoutUs how long each dequeue may wait
+     * @param awaitEos  keep polling until the end of stream buffer shows up
+     * @return true if the end of stream buffer was seen
+     */
+    public boolean drain(long timeoutUs, boolean awaitEos) {
+        while (true) {
+            int index = mEncoder.dequeueOutputBuffer(mInfo, timeoutUs);
+            if (index == MediaEncoder.INFO_TRY_AGAIN_LATER) {
+                if (!awaitEos) {
+                    return false;
+                }
+            } else if (index == MediaEncoder.INFO_OUTPUT_FORMAT_CHANGED) {
+                mListener.onOutputFormatChanged(this, mEncoder.getOutputFormat());
+            } else if (index >= 0) {
+                if (onOutputBufferAvailable(index, mInfo)) {
+                    return true;
+                }
+            }
+            // other negative codes are ignored
+        }
+    }
+
+    /**
+     * Forwards one output buffer to the muxer writer and releases it back to the encoder.
+     * The writer copies the data, so the buffer is released right away.
+     *
+     * @return true if the buffer carried the end of stream flag
+     */
+    public boolean onOutputBufferAvailable(int index, SampleInfo info) {
+        // Codec config data was already handed to the muxer with the output format
+        if (!info.isCodecConfig() && info.size != 0) {
+            FrameLatencyTracker tracker = mLatencyTracker;
+            if (tracker != null) {
+                tracker.frameDequeued(info.presentationTimeUs, System.nanoTime());
+            }
+            int track = mTrackIndex;
+            ByteBuffer data = mEncoder.getOutputBuffer(index);
+            if (data == null) {
+                throw new IllegalStateException("encoder output buffer " + index + " was null");
+            }
+            ReplayBuffer replay = mReplay;
+            if (replay != null) {
+                replay.append(mReplayTrack, data, info);
+            }
+            if (mWriting) {
+                write(track, data, info);
+            }
+        }
+        mEncoder.releaseOutputBuffer(index);
+        return info.isEndOfStream();
+    }
+
+    private void write(int track, ByteBuffer data, SampleInfo info) {
+        if (mAwaitingKeyFrame && !info.isKeyFrame()) {
+            mDiscardedSamples++;
+        } else if (track >= 0 && mWriter.writeSampleData(track, data, info)) {
+            mAwaitingKeyFrame = false;
+            mWrittenSamples++;
+            mWrittenBytes += info.size;
+            ProgressDispatcher progress = mProgress;
+            if (progress != null) {
+                progress.onSampleWritten(info.presentationTimeUs);
+            }
+        } else {
+            mDiscardedSamples++;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Output format of an encoder track: what a muxer needs to add the track.
+ * <p>
+ * Plain-Java counterpart of MediaFormat.  When the format comes from a real codec, the
+ * original MediaFormat is kept as the platform format so the Android muxer can use it as is.
+ * Immutable, except for the contents of the codec specific data buffers which must not be
+ * modified.
+ */
+public final class TrackFormat {
+    private final String mMime;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final ByteBuffer mCsd0;
+    private final ByteBuffer mCsd1;
+    private final Object mPlatformFormat;
+
+    private TrackFormat(String mime, int width, int height, int sampleRate, int channelCount,
+                        ByteBuffer csd0, ByteBuffer csd1, Object platformFormat) {
+        mMime = mime;
+        mWidth = width;
+        mHeight = height;
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mCsd0 = csd0;
+        mCsd1 = csd1;
+        mPlatformFormat = platformFormat;
+    }
+
+    /**
+     * @param csd0 SPS for H.264, may be null
+     * @param csd1 PPS for H.264, may be null
+     */
+    public static TrackFormat video(String mime, int width, int height,
+                                    ByteBuffer csd0, ByteBuffer csd1, Object platformFormat) {
+        return new TrackFormat(mime, width, height, 0, 0, csd0, csd1, platformFormat);
+    }
+
+    /**
+     * @param csd0 AudioSpecificConfig for AAC, may be null
+     */
+    public static TrackFormat audio(String mime, int sampleRate, int channelCount,
+                                    ByteBuffer csd0, Object platformFormat) {
+        return new TrackFormat(mime, 0, 0, sampleRate, channelCount, csd0, null, platformFormat);
+    }
+
+    public String getMime() {
+        return mMime;
+    }
+
+    public boolean isVideo() {
+        return mMime != null && mMime.startsWith("video/");
+    }
+
+    public boolean isAudio() {
+        return mMime != null && mMime.startsWith("audio/");
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    /**
+     * @return a read-only view of the first codec specific data buffer, or null
+     */
+    public ByteBuffer getCsd0() {
+        return mCsd0 == null ? null : mCsd0.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return a read-only view of the second codec specific data buffer, or null
+     */
+    public ByteBuffer getCsd1() {
+        return mCsd1 == null ? null : mCsd1.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the platform object this format was created from (a MediaFormat on Android), or null
+     */
+    public Object getPlatformFormat() {
+        return mPlatformFormat;
+    }
+
+    @Override
+    public String toString() {
+        if (isVideo()) {
+            return "TrackFormat[" + mMime + " " + mWidth + "x" + mHeight + "]";
+        }
+        return "TrackFormat[" + mMime + " " + mSampleRate + "Hz x" + mChannelCount + "]";
+    }
+}
@@ -0,0 +1,462 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link SampleMuxer} writing an MPEG-2 transport stream, in pure Java.
+ * <p>
+ * Takes H.264 video, with the SPS and PPS as csd-0 and csd-1 and samples in Annex-B, and AAC
+ * audio, with the AudioSpecificConfig as csd-0 and raw frames as samples.  Each sample becomes
+ * one PES packet: video access units get an access unit delimiter, and key frames the SPS and
+ * PPS in front; audio frames get an ADTS header.  PAT and PMT go out at the start and before
+ * every video key frame, so each key frame starts a point a player can join at.  The program
+ * clock goes with the video, or the audio if there is no video.
+ * <p>
+ * Packets are assembled straight into one reused output buffer, written to the channel when it
+ * fills up, so nothing is allocated per sample or packet.
+ */
+public class TsMuxer implements SampleMuxer {
+    public static final int PACKET_SIZE = 188;
+    private static final int PACKETS_PER_WRITE = 128;
+    private static final int PMT_PID = 0x1000;
+    private static final int FIRST_ES_PID = 0x100;
+    private static final int STREAM_TYPE_H264 = 0x1b;
+    private static final int STREAM_TYPE_AAC_ADTS = 0x0f;
+    private static final int MAX_TRACKS = 4;
+    /** How far the program clock runs behind the timestamps, in 90 kHz units, like ffmpeg */
+    private static final long MUX_DELAY = 63000;
+    /** Audio only: PES packets between two PAT/PMT */
+    private static final int AUDIO_PSI_INTERVAL = 40;
+    private static final byte[] ACCESS_UNIT_DELIMITER = {0, 0, 0, 1, 0x09, (byte) 0xf0};
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private static class Track {
+        final TrackFormat format;
+        final int pid;
+        final int streamId;
+        // Video: delimiter, SPS and PPS, put before key frames.  Audio: the ADTS header.
+        final byte[] prefix;
+        final int profile;
+        final int sampleRateIndex;
+        final int channelConfig;
+        int continuity;
+
+        Track(TrackFormat format, int pid) {
+            this.format = format;
+            this.pid = pid;
+            if (format.isVideo()) {
+                streamId = 0xe0;
+                prefix = keyFramePrefix(format.getCsd0(), format.getCsd1());
+                profile = 0;
+                sampleRateIndex = 0;
+                channelConfig = 0;
+            } else {
+                streamId = 0xc0;
+                prefix = new byte[7];
+                ByteBuffer asc = format.getCsd0();
+                byte[] config = asc != null && asc.remaining() >= 2
+                        ? new byte[] {asc.get(asc.position()), asc.get(asc.position() + 1)}
+                        : FragmentedMp4Muxer.audioSpecificConfig(format.getSampleRate(),
+                                format.getChannelCount());
+                profile = ((config[0] & 0xff) >> 3) - 1;
+                sampleRateIndex = ((config[0] & 0x07) << 1) | ((config[1] & 0xff) >> 7);
+                channelConfig = ((config[1] & 0xff) >> 3) & 0x0f;
+            }
+        }
+    }
+
+    private final WritableByteChannel mChannel;
+    private final Track[] mTracks = new Track[MAX_TRACKS];
+    private int mTrackCount;
+    private int mPcrTrack = -1;
+    private boolean mStarted;
+    private boolean mStopped;
+    private final ByteBuffer mOut = ByteBuffer.allocateDirect(PACKET_SIZE * PACKETS_PER_WRITE);
+    private final byte[] mSection = new byte[PACKET_SIZE];
+    private final byte[] mPesHeader = new byte[19];
+    private int mPatContinuity;
+    private int mPmtContinuity;
+    private int mPesSincePsi;
+    private volatile long mBytesWritten;
+
+    /**
+     * Writes a new file at {@code path}.
+     */
+    public TsMuxer(String path) throws IOException {
+        this(new FileOutputStream(path).getChannel());
+    }
+
+    /**
+     * @param channel where to write; closed by {@link #release()}
+     */
+    public TsMuxer(WritableByteChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * @return bytes written to the channel
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("tracks must be added before start");
+        }
+        if (mTrackCount == MAX_TRACKS) {
+            throw new IllegalStateException("too many tracks");
+        }
+        if (format.isVideo() && (format.getCsd0() == null || format.getCsd1() == null)) {
+            throw new IllegalArgumentException("incomplete format " + format);
+        }
+        int index = mTrackCount++;
+        mTracks[index] = new Track(format, FIRST_ES_PID + index);
+        if (mPcrTrack < 0 || format.isVideo() && !mTracks[mPcrTrack].format.isVideo()) {
+            mPcrTrack = index;
+        }
+        return index;
+    }
+
+    @Override
+    public void start() {
+        if (mStarted) {
+            throw new IllegalStateException("already started");
+        }
+        if (mTrackCount == 0) {
+            throw new IllegalStateException("no tracks");
+        }
+        mStarted = true;
+        writePsi();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+        if (!mStarted || mStopped) {
+            throw new IllegalStateException("muxer isn't running");
+        }
+        if (info.isCodecConfig() || info.size == 0) {
+            return;
+        }
+        Track track = mTracks[trackIndex];
+        boolean video = track.format.isVideo();
+        boolean key = video && info.isKeyFrame();
+        if (key || !mTracks[mPcrTrack].format.isVideo() && mPesSincePsi >= AUDIO_PSI_INTERVAL) {
+            writePsi();
+        }
+        mPesSincePsi++;
+
+        long pts = (info.presentationTimeUs * 9 / 100 + MUX_DELAY) & 0x1ffffffffL;
+        int prefixSize;
+        if (video) {
+            prefixSize = key ? track.prefix.length : ACCESS_UNIT_DELIMITER.length;
+        } else {
+            prefixSize = track.prefix.length;
+            putAdtsHeader(track, info.size);
+        }
+        int pesHeaderSize = putPesHeader(track.streamId, pts, prefixSize + info.size);
+        data.limit(info.offset + info.size);
+        data.position(info.offset);
+        long pcr = trackIndex == mPcrTrack ? pts - MUX_DELAY : -1;
+        writePes(track, pesHeaderSize, prefixSize, data, pcr, key || !video);
+    }
+
+    /**
+     * Writes the PES packet made of the header in mPesHeader, the first {@code prefixSize}
+     * bytes of the track's prefix and the rest of {@code data}, split into transport packets.
+     *
+     * @param pcr program clock to put in the first packet, in 90 kHz units, or -1
+     */
+    private void writePes(Track track, int headerSize, int prefixSize, ByteBuffer data, long pcr,
+                          boolean randomAccess) {
+        byte[] prefix = track.prefix;
+        int headerLeft = headerSize;
+        int prefixLeft = prefixSize;
+        boolean first = true;
+        while (headerLeft + prefixLeft + data.remaining() > 0) {
+            ByteBuffer out = packet();
+            int payload = headerLeft + prefixLeft + data.remaining();
+            out.put((byte) 0x47);
+            out.put((byte) ((first ? 0x40 : 0) | (track.pid >> 8)));
+            out.put((byte) track.pid);
+            int afcPosition = out.position();
+            out.put((byte) 0);
+            int space = PACKET_SIZE - 4;
+            int adaptation = 0;
+            boolean withPcr = first && pcr >= 0;
+            if (withPcr) {
+                adaptation = 8;
+            } else if (first && randomAccess) {
+                adaptation = 2;
+            }
+            if (payload < space - adaptation) {
+                // Stuff the last packet through the adaptation field
+                adaptation = space - payload;
+            }
+            if (adaptation > 0) {
+                out.put((byte) (adaptation - 1));
+                if (adaptation > 1) {
+                    int flags = (first && randomAccess ? 0x40 : 0) | (withPcr ? 0x10 : 0);
+                    out.put((byte) flags);
+                    int used = 2;
+                    if (withPcr) {
+                        out.put((byte) (pcr >> 25));
+                        out.put((byte) (pcr >> 17));
+                        out.put((byte) (pcr >> 9));
+                        out.put((byte) (pcr >> 1));
+                        out.put((byte) (((pcr & 1) << 7) | 0x7e));
+                        out.put((byte) 0);
+                        used += 6;
+                    }
+                    for (int i = used; i < adaptation; i++) {
+                        out.put((byte) 0xff);
+                    }
+                }
+            }
+            out.put(afcPosition, (byte) ((adaptation > 0 ? 0x30 : 0x10) | track.continuity));
+            track.continuity = (track.continuity + 1) & 0x0f;
+
+            int room = space - adaptation;
+            int n = Math.min(room, headerLeft);
+            out.put(mPesHeader, headerSize - headerLeft, n);
+            headerLeft -= n;
+            room -= n;
+            n = Math.min(room, prefixLeft);
+            out.put(prefix, prefixSize - prefixLeft, n);
+            prefixLeft -= n;
+            room -= n;
+            n = Math.min(room, data.remaining());
+            if (n > 0) {
+                int limit = data.limit();
+                data.limit(data.position() + n);
+                out.put(data);
+                data.limit(limit);
+            }
+            first = false;
+        }
+    }
+
+    /**
+     * Puts a PES header with a PTS into mPesHeader.
+     *
+     * @return its size
+     */
+    private int putPesHeader(int streamId, long pts, int payloadSize) {
+        byte[] h = mPesHeader;
+        h[0] = 0;
+        h[1] = 0;
+        h[2] = 1;
+        h[3] = (byte) streamId;
+        int length = 3 + 5 + payloadSize;
+        // Zero means unbounded, allowed for video only
+        if (length > 0xffff) {
+            length = 0;
+        }
+        h[4] = (byte) (length >> 8);
+        h[5] = (byte) length;
+        h[6] = (byte) 0x80;
+        h[7] = (byte) 0x80; // PTS only
+        h[8] = 5;
+        h[9] = (byte) (0x21 | ((pts >> 29) & 0x0e));
+        h[10] = (byte) (pts >> 22);
+        h[11] = (byte) (0x01 | ((pts >> 14) & 0xfe));
+        h[12] = (byte) (pts >> 7);
+        h[13] = (byte) (0x01 | ((pts << 1) & 0xfe));
+        return 14;
+    }
+
+    private static void putAdtsHeader(Track track, int frameSize) {
+        byte[] h = track.prefix;
+        int length = frameSize + 7;
+        h[0] = (byte) 0xff;
+        h[1] = (byte) 0xf1; // MPEG-4, no CRC
+        h[2] = (byte) ((track.profile << 6) | (track.sampleRateIndex << 2)
+                | (track.channelConfig >> 2));
+        h[3] = (byte) (((track.channelConfig & 3) << 6) | (length >> 11));
+        h[4] = (byte) (length >> 3);
+        h[5] = (byte) (((length & 7) << 5) | 0x1f);
+        h[6] = (byte) 0xfc;
+    }
+
+    /**
+     * @return the access unit delimiter followed by SPS and PPS, each with a start code
+     */
+    private static byte[] keyFramePrefix(ByteBuffer sps, ByteBuffer pps) {
+        byte[] spsBytes = withStartCode(sps);
+        byte[] ppsBytes = withStartCode(pps);
+        byte[] prefix = new byte[ACCESS_UNIT_DELIMITER.length + spsBytes.length + ppsBytes.length];
+        System.arraycopy(ACCESS_UNIT_DELIMITER, 0, prefix, 0, ACCESS_UNIT_DELIMITER.length);
+        System.arraycopy(spsBytes, 0, prefix, ACCESS_UNIT_DELIMITER.length, spsBytes.length);
+        System.arraycopy(ppsBytes, 0, prefix, ACCESS_UNIT_DELIMITER.length + spsBytes.length,
+                ppsBytes.length);
+        return prefix;
+    }
+
+    private static byte[] withStartCode(ByteBuffer nal) {
+        ByteBuffer view = nal.duplicate();
+        boolean annexB = view.remaining() > 3 && view.get(view.position()) == 0
+                && view.get(view.position() + 1) == 0
+                && (view.get(view.position() + 2) == 1 || view.get(view.position() + 2) == 0);
+        byte[] bytes = new byte[view.remaining() + (annexB ? 0 : 4)];
+        if (!annexB) {
+            bytes[3] = 1;
+        }
+        view.get(bytes, annexB ? 0 : 4, view.remaining());
+        return bytes;
+    }
+
+    // ----- PSI -----
+
+    private void writePsi() {
+        mPesSincePsi = 0;
+        // PAT: program 1 has its PMT on PMT_PID
+        byte[] s = mSection;
+        int n = 0;
+        s[n++] = 0x00; // table id
+        s[n++] = (byte) 0xb0;
+        s[n++] = 13; // section length
+        s[n++] = 0x00; // transport stream id
+        s[n++] = 0x01;
+        s[n++] = (byte) 0xc1; // version 0, current
+        s[n++] = 0x00;
+        s[n++] = 0x00;
+        s[n++] = 0x00; // program number
+        s[n++] = 0x01;
+        s[n++] = (byte) (0xe0 | (PMT_PID >> 8));
+        s[n++] = (byte) PMT_PID;
+        n = putCrc(s, n);
+        writeSection(0, mPatContinuity, s, n);
+        mPatContinuity = (mPatContinuity + 1) & 0x0f;
+
+        // PMT
+        n = 0;
+        int sectionLength = 9 + 5 * mTrackCount + 4;
+        int pcrPid = mTracks[mPcrTrack].pid;
+        s[n++] = 0x02; // table id
+        s[n++] = (byte) (0xb0 | (sectionLength >> 8));
+        s[n++] = (byte) sectionLength;
+        s[n++] = 0x00; // program number
+        s[n++] = 0x01;
+        s[n++] = (byte) 0xc1;
+        s[n++] = 0x00;
+        s[n++] = 0x00;
+        s[n++] = (byte) (0xe0 | (pcrPid >> 8));
+        s[n++] = (byte) pcrPid;
+        s[n++] = (byte) 0xf0; // no program info
+        s[n++] = 0x00;
+        for (int i = 0; i < mTrackCount; i++) {
+            Track track = mTracks[i];
+            s[n++] = (byte) (track.format.isVideo() ? STREAM_TYPE_H264 : STREAM_TYPE_AAC_ADTS);
+            s[n++] = (byte) (0xe0 | (track.pid >> 8));
+            s[n++] = (byte) track.pid;
+            s[n++] = (byte) 0xf0; // no ES info
+            s[n++] = 0x00;
+        }
+        n = putCrc(s, n);
+        writeSection(PMT_PID, mPmtContinuity, s, n);
+        mPmtContinuity = (mPmtContinuity + 1) & 0x0f;
+    }
+
+    private static int putCrc(byte[] section, int size) {
+        int crc = crc32(section, 0, size);
+        section[size++] = (byte) (crc >> 24);
+        section[size++] = (byte) (crc >> 16);
+        section[size++] = (byte) (crc >> 8);
+        section[size++] = (byte) crc;
+        return size;
+    }
+
+    /**
+     * CRC-32/MPEG-2 of a PSI section.
+     */
+    static int crc32(byte[] data, int offset, int size) {
+        int crc = 0xffffffff;
+        for (int i = offset; i < offset + size; i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xff];
+        }
+        return crc;
+    }
+
+    private void writeSection(int pid, int continuity, byte[] section, int size) {
+        ByteBuffer out = packet();
+        int start = out.position();
+        out.put((byte) 0x47);
+        out.put((byte) (0x40 | (pid >> 8)));
+        out.put((byte) pid);
+        out.put((byte) (0x10 | continuity));
+        out.put((byte) 0); // pointer field
+        out.put(section, 0, size);
+        while (out.position() < start + PACKET_SIZE) {
+            out.put((byte) 0xff);
+        }
+    }
+
+    // ----- output -----
+
+    /**
+     * @return the output buffer, with room for a packet
+     */
+    private ByteBuffer packet() {
+        if (mOut.remaining() < PACKET_SIZE) {
+            flush();
+        }
+        return mOut;
+    }
+
+    private void flush() {
+        mOut.flip();
+        try {
+            while (mOut.hasRemaining()) {
+                mBytesWritten += mChannel.write(mOut);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to write", e);
+        } finally {
+            mOut.clear();
+        }
+    }
+
+    /**
+     * Writes out the packets still buffered, and forces them to storage if the channel is a
+     * file.
+     */
+    @Override
+    public void stop() {
+        if (!mStarted || mStopped) {
+            throw new IllegalStateException("muxer isn't running");
+        }
+        mStopped = true;
+        flush();
+        if (mChannel instanceof FileChannel) {
+            try {
+                ((FileChannel) mChannel).force(false);
+            } catch (IOException e) {
+                throw new IllegalStateException("failed to sync", e);
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to close", e);
+        }
+    }
+}
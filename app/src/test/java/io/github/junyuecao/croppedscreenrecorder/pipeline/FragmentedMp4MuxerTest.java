@@ -0,0 +1,279 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class FragmentedMp4MuxerTest {
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda, 0x01,
+            0x40, 0x16, (byte) 0xe8, 0x06, (byte) 0xd0, (byte) 0xa1, 0x35};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x06, (byte) 0xe2};
+    private static final byte[] ASC = {0x11, (byte) 0x90};
+    private static final int SAMPLE_RATE = 48000;
+    private static final int FRAMES = 90;
+    private static final int KEY_FRAME_INTERVAL = 30;
+
+    /** A sample as it should come out of the file */
+    private static class Sample {
+        final long dts;
+        final byte[] data;
+        final boolean sync;
+
+        Sample(long dts, byte[] data, boolean sync) {
+            this.dts = dts;
+            this.data = data;
+            this.sync = sync;
+        }
+    }
+
+    /** A box: where its header starts, its size and type */
+    private static class Box {
+        final int start;
+        final int size;
+        final String type;
+
+        Box(int start, int size, String type) {
+            this.start = start;
+            this.size = size;
+            this.type = type;
+        }
+
+        int end() {
+            return start + size;
+        }
+    }
+
+    private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+    private final List<Sample> mVideo = new ArrayList<>();
+    private final List<Sample> mAudio = new ArrayList<>();
+    private FragmentedMp4Muxer mMuxer;
+    private ByteBuffer mFile;
+
+    @Before
+    public void setUp() {
+        mMuxer = new FragmentedMp4Muxer(Channels.newChannel(mOutput), 1000000);
+        int video = mMuxer.addTrack(TrackFormat.video("video/avc", 640, 360,
+                ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS), null));
+        int audio = mMuxer.addTrack(TrackFormat.audio("audio/mp4a-latm", SAMPLE_RATE, 2,
+                ByteBuffer.wrap(ASC), null));
+        mMuxer.start();
+
+        SampleInfo info = new SampleInfo();
+        int audioFrames = 0;
+        for (int f = 0; f < FRAMES; f++) {
+            long ptsUs = f * 1000000L / 30;
+            long audioUs;
+            while ((audioUs = audioFrames * 1024L * 1000000 / SAMPLE_RATE) <= ptsUs) {
+                byte[] frame = payload(200 + audioFrames % 50, audioFrames);
+                info.set(0, frame.length, audioUs, 0);
+                mMuxer.writeSampleData(audio, ByteBuffer.wrap(frame), info);
+                mAudio.add(new Sample(audioFrames * 1024L, frame, true));
+                audioFrames++;
+            }
+
+            // MediaCodec output: an access unit delimiter with a 4 byte start code, then the
+            // slice with a 3 byte one
+            boolean key = f % KEY_FRAME_INTERVAL == 0;
+            byte[] aud = {0x09, (byte) 0xf0};
+            byte[] slice = payload(100 + f * 7 % 300, f);
+            slice[0] = (byte) (key ? 0x65 : 0x41);
+            ByteBuffer annexB = ByteBuffer.allocateDirect(64 + slice.length);
+            annexB.put(new byte[] {0, 0, 0, 1}).put(aud).put(new byte[] {0, 0, 1}).put(slice);
+            info.set(0, annexB.position(), ptsUs, key ? SampleInfo.FLAG_KEY_FRAME : 0);
+            mMuxer.writeSampleData(video, annexB, info);
+
+            ByteBuffer expected = ByteBuffer.allocate(8 + aud.length + slice.length);
+            expected.putInt(aud.length).put(aud).putInt(slice.length).put(slice);
+            mVideo.add(new Sample((ptsUs * 90000 + 500000) / 1000000, expected.array(), key));
+        }
+        mMuxer.stop();
+        mMuxer.release();
+        mFile = ByteBuffer.wrap(mOutput.toByteArray());
+    }
+
+    /**
+     * @return bytes that never form a start code and don't end in a zero
+     */
+    private static byte[] payload(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i % 3 == 0 ? 0 : (seed + i) | 0x80);
+        }
+        data[size - 1] = (byte) 0x80;
+        return data;
+    }
+
+    private String type(int at) {
+        return new String(mFile.array(), at + 4, 4);
+    }
+
+    private List<Box> children(int start, int end) {
+        List<Box> boxes = new ArrayList<>();
+        for (int at = start; at < end; ) {
+            int size = mFile.getInt(at);
+            assertTrue("box at " + at + " of " + size, size >= 8 && at + size <= end);
+            boxes.add(new Box(at, size, type(at)));
+            at += size;
+        }
+        return boxes;
+    }
+
+    private List<Box> children(Box box, int headerSize) {
+        return children(box.start + headerSize, box.end());
+    }
+
+    private static Box find(List<Box> boxes, String type) {
+        for (Box box : boxes) {
+            if (box.type.equals(type)) {
+                return box;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds a box down a path of plain container boxes.
+     */
+    private Box path(Box box, String... types) {
+        for (String type : types) {
+            box = find(children(box, 8), type);
+            assertNotNull(type, box);
+        }
+        return box;
+    }
+
+    @Test
+    public void headerDescribesTheTracks() {
+        List<Box> top = children(0, mFile.limit());
+        assertEquals("ftyp", top.get(0).type);
+        assertEquals("isom", type(top.get(0).start + 4));
+        Box moov = top.get(1);
+        assertEquals("moov", moov.type);
+
+        List<Box> traks = new ArrayList<>();
+        for (Box box : children(moov, 8)) {
+            if (box.type.equals("trak")) {
+                traks.add(box);
+            }
+        }
+        assertEquals(2, traks.size());
+        int[] timescales = {90000, SAMPLE_RATE};
+        for (int i = 0; i < 2; i++) {
+            Box tkhd = path(traks.get(i), "tkhd");
+            assertEquals(i + 1, mFile.getInt(tkhd.start + 20));
+            Box mdhd = path(traks.get(i), "mdia", "mdhd");
+            assertEquals(timescales[i], mFile.getInt(mdhd.start + 20));
+        }
+
+        // avcC carries the SPS and PPS without their start codes
+        Box stsd = path(traks.get(0), "mdia", "minf", "stbl", "stsd");
+        Box avc1 = children(stsd, 16).get(0);
+        assertEquals("avc1", avc1.type);
+        Box avcC = children(avc1, 86).get(0);
+        assertEquals("avcC", avcC.type);
+        int at = avcC.start + 8;
+        assertEquals(SPS[5], mFile.get(at + 1));
+        assertEquals(SPS.length - 4, mFile.getShort(at + 6));
+        assertArrayEquals(Arrays.copyOfRange(SPS, 4, SPS.length),
+                Arrays.copyOfRange(mFile.array(), at + 8, at + 8 + SPS.length - 4));
+
+        // esds carries the AudioSpecificConfig
+        stsd = path(traks.get(1), "mdia", "minf", "stbl", "stsd");
+        Box mp4a = children(stsd, 16).get(0);
+        assertEquals("mp4a", mp4a.type);
+        Box esds = children(mp4a, 36).get(0);
+        assertEquals("esds", esds.type);
+        assertArrayEquals(ASC, Arrays.copyOfRange(mFile.array(), esds.end() - 3 - ASC.length,
+                esds.end() - 3));
+
+        Box mvex = path(moov, "mvex");
+        assertEquals(2, children(mvex, 8).size());
+    }
+
+    @Test
+    public void fragmentsHoldEverySample() {
+        List<Box> top = children(0, mFile.limit());
+        assertEquals(mFile.limit(), mMuxer.getBytesWritten());
+        // One fragment per second of video, cut on its key frames
+        assertEquals(FRAMES / KEY_FRAME_INTERVAL, mMuxer.getFragmentCount());
+        assertEquals(2 + 2 * mMuxer.getFragmentCount(), top.size());
+
+        List<List<Sample>> expected = Arrays.asList(mVideo, mAudio);
+        int[] next = new int[2];
+        for (int fragment = 0; fragment < mMuxer.getFragmentCount(); fragment++) {
+            Box moof = top.get(2 + 2 * fragment);
+            Box mdat = top.get(3 + 2 * fragment);
+            assertEquals("moof", moof.type);
+            assertEquals("mdat", mdat.type);
+            List<Box> boxes = children(moof, 8);
+            assertEquals(fragment + 1, mFile.getInt(find(boxes, "mfhd").start + 12));
+
+            int mdatBytes = 0;
+            for (Box traf : boxes) {
+                if (!traf.type.equals("traf")) {
+                    continue;
+                }
+                List<Box> trafBoxes = children(traf, 8);
+                int track = mFile.getInt(find(trafBoxes, "tfhd").start + 12) - 1;
+                List<Sample> samples = expected.get(track);
+                Box tfdt = find(trafBoxes, "tfdt");
+                assertEquals(1, mFile.get(tfdt.start + 8));
+                long dts = mFile.getLong(tfdt.start + 12);
+                assertEquals(samples.get(next[track]).dts, dts);
+
+                Box trun = find(trafBoxes, "trun");
+                assertEquals(0x701, mFile.getInt(trun.start + 8));
+                int count = mFile.getInt(trun.start + 12);
+                int data = moof.start + mFile.getInt(trun.start + 16);
+                assertTrue(data >= mdat.start + 8 && data <= mdat.end());
+                for (int s = 0; s < count; s++) {
+                    int entry = trun.start + 20 + 12 * s;
+                    int duration = mFile.getInt(entry);
+                    int size = mFile.getInt(entry + 4);
+                    int flags = mFile.getInt(entry + 8);
+                    int n = next[track]++;
+                    Sample sample = samples.get(n);
+                    assertEquals(sample.dts, dts);
+                    if (n + 1 < samples.size()) {
+                        assertEquals(samples.get(n + 1).dts - sample.dts, duration);
+                    } else {
+                        // The last sample lasts as long as the one before
+                        assertEquals(sample.dts - samples.get(n - 1).dts, duration);
+                    }
+                    assertEquals(sample.data.length, size);
+                    assertArrayEquals(sample.data,
+                            Arrays.copyOfRange(mFile.array(), data, data + size));
+                    assertEquals(sample.sync ? 0x02000000 : 0x01010000, flags);
+                    if (track == 0 && s == 0) {
+                        assertTrue(sample.sync);
+                    }
+                    dts += duration;
+                    data += size;
+                    mdatBytes += size;
+                }
+            }
+            assertEquals(mdat.size - 8, mdatBytes);
+        }
+        assertEquals(mVideo.size(), next[0]);
+        assertEquals(mAudio.size(), next[1]);
+    }
+
+    @Test
+    public void audioSpecificConfigForFormatsWithout() {
+        assertArrayEquals(new byte[] {0x11, (byte) 0x90},
+                FragmentedMp4Muxer.audioSpecificConfig(48000, 2));
+        assertArrayEquals(new byte[] {0x12, 0x08},
+                FragmentedMp4Muxer.audioSpecificConfig(44100, 1));
+    }
+}
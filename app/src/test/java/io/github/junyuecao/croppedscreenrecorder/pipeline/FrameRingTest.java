@@ -0,0 +1,97 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assume.assumeTrue;
+
+public class FrameRingTest {
+
+    @Test
+    public void framesKeepTheirOwnTransform() {
+        FrameRing ring = new FrameRing(4);
+        for (int i = 0; i < 3; i++) {
+            FrameRing.Frame frame = ring.claim();
+            frame.transform[0] = i;
+            frame.timestampNanos = 1000 + i;
+            ring.publish();
+        }
+        // The next frame doesn't touch the ones not drawn yet
+        for (int i = 0; i < 3; i++) {
+            FrameRing.Frame frame = ring.peek();
+            assertEquals(i, frame.transform[0], 0);
+            assertEquals(1000 + i, frame.timestampNanos);
+            ring.release();
+        }
+        assertNull(ring.peek());
+    }
+
+    @Test
+    public void fullRingDropsFrames() {
+        FrameRing ring = new FrameRing(4);
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(ring.claim());
+            ring.publish();
+        }
+        assertNull(ring.claim());
+        assertEquals(1, ring.getDroppedFrames());
+        ring.release();
+        assertNotNull(ring.claim());
+    }
+
+    @Test
+    public void skipToLatestKeepsNewest() {
+        FrameRing ring = new FrameRing(8);
+        FrameRing.Frame newest = null;
+        for (int i = 0; i < 5; i++) {
+            newest = ring.claim();
+            ring.publish();
+        }
+        assertEquals(4, ring.skipToLatest());
+        assertSame(newest, ring.peek());
+        assertEquals(1, ring.size());
+        assertEquals(4, ring.getSkippedFrames());
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        FrameRing ring = new FrameRing(FrameRing.DEFAULT_CAPACITY);
+        float[] transform = new float[16];
+        // Warm up, so class loading and compilation are done with
+        runFrames(ring, transform, 100000);
+        long before = threads.getThreadAllocatedBytes(threadId);
+        runFrames(ring, transform, 100000);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertEquals("bytes allocated for 100000 frames", 0, allocated);
+    }
+
+    /**
+     * Passes frames through the ring the way the listener and encoder threads do, two at a time.
+     */
+    private static void runFrames(FrameRing ring, float[] transform, int frames) {
+        for (int i = 0; i < frames; i += 2) {
+            for (int j = 0; j < 2; j++) {
+                FrameRing.Frame frame = ring.claim();
+                System.arraycopy(transform, 0, frame.transform, 0, transform.length);
+                frame.timestampNanos = i + j;
+                frame.latched = true;
+                ring.publish();
+            }
+            while (ring.peek() != null) {
+                ring.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HlsSampleMuxerTest {
+    private static final long SEGMENT_US = 2000000;
+    private static final long KEY_FRAME_INTERVAL_US = 1000000;
+    private static final int VIDEO_PID = 0x100;
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("hls").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    /**
+     * Records 20 s of audio, with video that stops between 3 s and 15 s, the way a static
+     * screen does, and resumes without a key frame.
+     */
+    @Test
+    public void staticScreenDoesNotStallSegments() throws IOException {
+        File playlist = new File(mDir, "rec.m3u8");
+        HlsSampleMuxer muxer = new HlsSampleMuxer(playlist, SEGMENT_US, KEY_FRAME_INTERVAL_US, 0);
+        final List<Long> durations = new ArrayList<>();
+        muxer.setListener(new SegmentingSampleMuxer.Listener() {
+            @Override
+            public void onSegmentFinished(int index, long durationUs, long bytes) {
+                durations.add(durationUs);
+            }
+        });
+        int video = muxer.addTrack(TrackFormat.video("video/avc", 640, 360,
+                ByteBuffer.wrap(TsMuxerTest.SPS), ByteBuffer.wrap(TsMuxerTest.PPS), null));
+        int audio = muxer.addTrack(TrackFormat.audio("audio/mp4a-latm", 44100, 2, null, null));
+        muxer.start();
+
+        SampleInfo info = new SampleInfo();
+        long audioUs = 0;
+        for (long ptsUs = 0; ptsUs < 20000000; ptsUs += 33333) {
+            while (audioUs <= ptsUs) {
+                info.set(0, 100, audioUs, 0);
+                muxer.writeSampleData(audio, ByteBuffer.allocate(100), info);
+                audioUs += 23220;
+            }
+            if (ptsUs >= 3000000 && ptsUs < 15000000) {
+                continue;
+            }
+            // Regular key frames, none when the frames resume
+            boolean key = ptsUs % 1000000 < 33333 && ptsUs != 15000000;
+            info.set(0, 50, ptsUs, key ? SampleInfo.FLAG_KEY_FRAME : 0);
+            muxer.writeSampleData(video, ByteBuffer.allocate(50), info);
+        }
+        muxer.stop();
+        muxer.release();
+
+        assertEquals(0, muxer.getOverruns());
+        assertTrue(durations.size() >= 8);
+        for (long durationUs : durations) {
+            assertTrue("segment of " + durationUs + "us",
+                    durationUs <= muxer.getTargetDurationUs());
+        }
+        String text = new String(Files.readAllBytes(playlist.toPath()), "UTF-8");
+        assertTrue(text.contains("#EXT-X-TARGETDURATION:3\n"));
+        assertTrue(text.endsWith("#EXT-X-ENDLIST\n"));
+
+        // Every segment with video starts it at a key frame: AUD, SPS and PPS
+        for (int i = 0; i < durations.size(); i++) {
+            File segment = HlsSampleMuxer.getSegmentFile(playlist, i);
+            assertTrue(text.contains(segment.getName()));
+            TsMuxerTest.Demuxer demuxer =
+                    new TsMuxerTest.Demuxer(Files.readAllBytes(segment.toPath()));
+            List<byte[]> pes = demuxer.pes.get(VIDEO_PID);
+            if (pes == null) {
+                continue;
+            }
+            int sps = 14 + 6;
+            assertArrayEquals(TsMuxerTest.SPS,
+                    Arrays.copyOfRange(pes.get(0), sps, sps + TsMuxerTest.SPS.length));
+        }
+    }
+
+    @Test
+    public void overlongSegmentIsListedAnyway() throws IOException {
+        File file = new File(mDir, "list.m3u8");
+        HlsPlaylist playlist = new HlsPlaylist(file, 3000000, 0);
+        playlist.addSegment("a.ts", 2000000);
+        playlist.addSegment("b.ts", 9000000);
+        playlist.finish();
+        assertEquals(1, playlist.getOverruns());
+        String text = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+        assertTrue(text.contains("#EXT-X-TARGETDURATION:3\n"));
+        assertTrue(text.contains("#EXTINF:9.000,\nb.ts\n"));
+    }
+}
@@ -0,0 +1,96 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MediaClockTest {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHUNK_SAMPLES = 960;
+    private static final long FRAME_US = PcmFramer.AAC_FRAME_SAMPLES * 1000000L / SAMPLE_RATE;
+    private static final long SESSION_US = 30 * 60 * 1000000L;
+    /** Monotonic time the recording starts at */
+    private static final long START_US = 86400L * 1000000;
+
+    /**
+     * Records a simulated session whose audio device runs {@code ppm} slow against the monotonic
+     * clock, and returns the worst distance in microseconds between an audio frame's media time
+     * and the media time its first sample was really captured at.
+     */
+    private static long simulate(MediaClock clock, double ppm) {
+        double deviceRate = SAMPLE_RATE * (1 - ppm / 1e6);
+        PcmFramer framer = new PcmFramer(SAMPLE_RATE, 1, PcmFramer.AAC_FRAME_SAMPLES);
+        framer.setMediaClock(clock);
+        PcmFramerTest.Harness harness = new PcmFramerTest.Harness(framer);
+        MediaClock timeline = clock != null ? clock : new MediaClock();
+        // The first video frame comes with the first audio, it is the origin
+        timeline.setOriginUs(START_US);
+
+        Random random = new Random(16);
+        byte[] chunk = new byte[CHUNK_SAMPLES * 2];
+        long worstUs = 0;
+        long lastUs = -1;
+        int checked = 0;
+        for (long samples = 0; ; samples += CHUNK_SAMPLES) {
+            long captureUs = START_US + (long) (samples * 1e6 / deviceRate);
+            if (captureUs - START_US > SESSION_US) {
+                break;
+            }
+            // Chunks are stamped when read, a little late
+            long jitterUs = samples == 0 ? 0 : random.nextInt(3000);
+            harness.feed(chunk, captureUs + jitterUs);
+            for (; checked < harness.timestamps.size(); checked++) {
+                long mediaUs = timeline.toMediaTimeUs(harness.timestamps.get(checked));
+                long trueUs = (long) (checked * (double) PcmFramer.AAC_FRAME_SAMPLES * 1e6
+                        / deviceRate);
+                worstUs = Math.max(worstUs, Math.abs(mediaUs - trueUs));
+                assertTrue(mediaUs > lastUs);
+                lastUs = mediaUs;
+            }
+        }
+        return worstUs;
+    }
+
+    @Test
+    public void driftingAudioStaysInSyncForThirtyMinutes() {
+        MediaClock clock = new MediaClock();
+        long worstUs = simulate(clock, 100);
+        assertTrue("off by " + worstUs + "us", worstUs <= FRAME_US);
+        // 100 ppm over 30 minutes, measured within the read jitter
+        assertEquals(180000, clock.getAudioDriftUs(), 3000);
+        assertEquals(clock.getAudioDriftUs(), clock.getAudioCorrectionUs(), 1000);
+    }
+
+    @Test
+    public void fastAudioStaysInSyncForThirtyMinutes() {
+        MediaClock clock = new MediaClock();
+        long worstUs = simulate(clock, -200);
+        assertTrue("off by " + worstUs + "us", worstUs <= FRAME_US);
+        assertEquals(-360000, clock.getAudioDriftUs(), 3000);
+    }
+
+    @Test
+    public void uncorrectedAudioDrifts() {
+        long worstUs = simulate(null, 100);
+        assertTrue(worstUs > 8 * FRAME_US);
+    }
+
+    @Test
+    public void timelineStartsAtOriginAndSkipsPauses() {
+        MediaClock clock = new MediaClock();
+        clock.setOriginUs(START_US);
+        assertEquals(0, clock.toMediaTimeUs(START_US));
+        assertEquals(0, clock.toMediaTimeUs(START_US - 5000));
+        assertEquals(1000000, clock.toMediaTimeUs(START_US + 1000000));
+
+        clock.pause(START_US + 2000000);
+        assertTrue(clock.isPausedAt(START_US + 2500000));
+        clock.resume(START_US + 7000000);
+        assertEquals(5000000, clock.getPausedUs());
+        assertEquals(2000000, clock.toMediaTimeUs(START_US + 4000000));
+        assertEquals(2500000, clock.toMediaTimeUs(START_US + 7500000));
+    }
+}
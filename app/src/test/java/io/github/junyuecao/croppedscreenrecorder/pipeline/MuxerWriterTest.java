@@ -0,0 +1,135 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Samples written before the muxer starts.
+ */
+public class MuxerWriterTest {
+
+    /**
+     * Keeps the track and presentation time of each sample written.
+     */
+    private static class RecordingMuxer implements SampleMuxer {
+        final List<Integer> tracks = new ArrayList<>();
+        final List<Long> writtenPts = new ArrayList<>();
+        private int mTrackCount;
+
+        @Override
+        public int addTrack(TrackFormat format) {
+            return mTrackCount++;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public synchronized void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+            tracks.add(trackIndex);
+            writtenPts.add(info.presentationTimeUs);
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    private static TrackFormat videoFormat() {
+        return TrackFormat.video("video/avc", 320, 240, null, null, null);
+    }
+
+    private static TrackFormat audioFormat() {
+        return TrackFormat.audio("audio/mp4a-latm", 44100, 2, null, null);
+    }
+
+    private static boolean write(MuxerWriter writer, int track, long pts, int flags) {
+        SampleInfo info = new SampleInfo();
+        info.set(0, 16, pts, flags);
+        return writer.writeSampleData(track, ByteBuffer.allocate(16), info);
+    }
+
+    @Test
+    public void heldSamplesAreWrittenInTimeOrderOnStart() {
+        RecordingMuxer muxer = new RecordingMuxer();
+        MuxerWriter writer = new MuxerWriter(muxer, MuxerWriter.DEFAULT_CAPACITY,
+                MuxerWriter.OverflowPolicy.BLOCK);
+        int video = writer.addTrack(videoFormat());
+        int audio = writer.addTrack(audioFormat());
+        // Audio is ready first, video catches up before the muxer starts
+        assertTrue(write(writer, audio, 1020000, 0));
+        assertTrue(write(writer, audio, 1040000, 0));
+        assertTrue(write(writer, video, 1000000, SampleInfo.FLAG_KEY_FRAME));
+        assertTrue(write(writer, video, 1033000, 0));
+        writer.start();
+        assertTrue(write(writer, audio, 1060000, 0));
+        writer.stop();
+
+        long[] pts = {0, 20000, 33000, 40000, 60000};
+        int[] tracks = {video, audio, video, audio, audio};
+        assertEquals(pts.length, muxer.writtenPts.size());
+        long firstUs = muxer.writtenPts.get(0);
+        for (int i = 0; i < pts.length; i++) {
+            assertEquals(pts[i], muxer.writtenPts.get(i) - firstUs);
+            assertEquals(tracks[i], (int) muxer.tracks.get(i));
+        }
+    }
+
+    @Test
+    public void heldBeyondCapDropsVideoUntilKeyFrame() {
+        RecordingMuxer muxer = new RecordingMuxer();
+        MuxerWriter writer = new MuxerWriter(muxer, MuxerWriter.DEFAULT_CAPACITY,
+                MuxerWriter.OverflowPolicy.BLOCK, 32);
+        int video = writer.addTrack(videoFormat());
+        assertTrue(write(writer, video, 0, SampleInfo.FLAG_KEY_FRAME));
+        assertTrue(write(writer, video, 33000, 0));
+        assertFalse(write(writer, video, 66000, 0));
+        writer.start();
+        // Would reference the dropped frame
+        assertFalse(write(writer, video, 100000, 0));
+        assertTrue(write(writer, video, 133000, SampleInfo.FLAG_KEY_FRAME));
+        writer.stop();
+
+        assertEquals(1, writer.getPendingDroppedSamples());
+        assertEquals(3, muxer.writtenPts.size());
+        assertEquals(133000, muxer.writtenPts.get(2) - muxer.writtenPts.get(0));
+    }
+
+    @Test
+    public void writeBeforeStartToUnknownTrackIsRejected() {
+        RecordingMuxer muxer = new RecordingMuxer();
+        MuxerWriter writer = new MuxerWriter(muxer, MuxerWriter.DEFAULT_CAPACITY,
+                MuxerWriter.OverflowPolicy.BLOCK);
+        int video = writer.addTrack(videoFormat());
+        // The audio track isn't added yet
+        try {
+            write(writer, -1, 0, 0);
+            fail("track -1 accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            write(writer, video + 1, 0, 0);
+            fail("track " + (video + 1) + " accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        // Nothing was held for them
+        assertTrue(write(writer, video, 0, SampleInfo.FLAG_KEY_FRAME));
+        writer.start();
+        writer.stop();
+        assertEquals(1, muxer.writtenPts.size());
+        assertEquals(0, writer.getPendingDroppedSamples());
+    }
+}
@@ -0,0 +1,148 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PcmFramerTest {
+    private static final int SAMPLE_RATE = 48000;
+    /** 20 ms of mono 16-bit PCM, doesn't divide an AAC frame */
+    private static final int CHUNK_BYTES = 1920;
+
+    /**
+     * Runs chunks through a framer the way the audio encode stage does, keeping every frame.
+     */
+    static class Harness {
+        final PcmFramer framer;
+        final List<Long> timestamps = new ArrayList<>();
+        final List<byte[]> frames = new ArrayList<>();
+        private final ByteBuffer mTarget;
+
+        Harness(PcmFramer framer) {
+            this.framer = framer;
+            mTarget = ByteBuffer.allocate(framer.getFrameBytes());
+        }
+
+        void feed(byte[] chunk, long startUs) {
+            framer.startChunk(startUs);
+            ByteBuffer src = ByteBuffer.wrap(chunk);
+            int offset = 0;
+            while (offset < chunk.length || framer.hasPendingSilence()) {
+                if (!framer.hasTarget()) {
+                    framer.attach(mTarget);
+                }
+                offset += framer.append(src, offset, chunk.length - offset);
+                if (framer.isFrameFull()) {
+                    byte[] frame = new byte[framer.getFilled()];
+                    mTarget.clear();
+                    mTarget.get(frame);
+                    timestamps.add(framer.takeFrame());
+                    frames.add(frame);
+                }
+            }
+        }
+    }
+
+    private static byte[] chunk(int index) {
+        byte[] data = new byte[CHUNK_BYTES];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (index * CHUNK_BYTES + i);
+        }
+        return data;
+    }
+
+    private static long chunkDurationUs() {
+        return CHUNK_BYTES / 2 * 1000000L / SAMPLE_RATE;
+    }
+
+    @Test
+    public void framesAreWholeAacFramesStampedFromSampleCount() {
+        Harness harness = new Harness(new PcmFramer(SAMPLE_RATE, 1, PcmFramer.AAC_FRAME_SAMPLES));
+        assertEquals(2048, harness.framer.getFrameBytes());
+        Random random = new Random(15);
+        long anchorUs = 123456789;
+        int chunks = 500;
+        for (int i = 0; i < chunks; i++) {
+            // Capture times carry scheduler jitter, up to 8 ms late
+            long jitterUs = i == 0 ? 0 : random.nextInt(8000);
+            harness.feed(chunk(i), anchorUs + i * chunkDurationUs() + jitterUs);
+        }
+
+        assertEquals(chunks * CHUNK_BYTES / 2048, harness.frames.size());
+        for (int n = 0; n < harness.frames.size(); n++) {
+            assertEquals(2048, harness.frames.get(n).length);
+            // No jitter: the anchor plus the samples before
+            long expectedUs = anchorUs + n * 1024L * 1000000 / SAMPLE_RATE;
+            assertEquals(expectedUs, (long) harness.timestamps.get(n));
+            // The data is passed on in order, unchanged
+            for (int i = 0; i < 2048; i += 511) {
+                assertEquals((byte) (n * 2048 + i), harness.frames.get(n)[i]);
+            }
+        }
+        assertEquals(0, harness.framer.getGaps());
+    }
+
+    @Test
+    public void underrunIsFilledWithSilence() {
+        Harness harness = new Harness(new PcmFramer(SAMPLE_RATE, 1, PcmFramer.AAC_FRAME_SAMPLES));
+        long anchorUs = 1000000;
+        for (int i = 0; i < 50; i++) {
+            harness.feed(chunk(i), anchorUs + i * chunkDurationUs());
+        }
+        // The source under-ran: five chunks, 100 ms, never came
+        for (int i = 55; i < 100; i++) {
+            harness.feed(chunk(i), anchorUs + i * chunkDurationUs());
+        }
+
+        assertEquals(1, harness.framer.getGaps());
+        assertEquals(5 * CHUNK_BYTES / 2, harness.framer.getGapSamples());
+        // The timeline kept up with the capture times
+        assertEquals(anchorUs + 100 * chunkDurationUs(), harness.framer.getPositionUs());
+        int silentFrames = 0;
+        for (byte[] frame : harness.frames) {
+            boolean silent = true;
+            for (byte b : frame) {
+                silent &= b == 0;
+            }
+            if (silent) {
+                silentFrames++;
+            }
+        }
+        assertTrue(silentFrames >= 3);
+        for (int n = 1; n < harness.timestamps.size(); n++) {
+            assertEquals(1024L * 1000000 / SAMPLE_RATE,
+                    harness.timestamps.get(n) - harness.timestamps.get(n - 1), 1);
+        }
+    }
+
+    @Test
+    public void lateChunkUnderThresholdIsNotAGap() {
+        Harness harness = new Harness(new PcmFramer(SAMPLE_RATE, 1, PcmFramer.AAC_FRAME_SAMPLES));
+        harness.feed(chunk(0), 0);
+        harness.feed(chunk(1), chunkDurationUs() + PcmFramer.DEFAULT_GAP_THRESHOLD_US - 1000);
+        assertEquals(0, harness.framer.getGaps());
+        assertEquals(2 * chunkDurationUs(), harness.framer.getPositionUs());
+    }
+
+    @Test
+    public void restartJumpsWithoutSilence() {
+        Harness harness = new Harness(new PcmFramer(SAMPLE_RATE, 1, PcmFramer.AAC_FRAME_SAMPLES));
+        for (int i = 0; i < 16; i++) {
+            harness.feed(chunk(i), i * chunkDurationUs());
+        }
+        // After a pause: whatever is assembled belongs before it
+        if (harness.framer.hasTarget()) {
+            harness.framer.takeFrame();
+        }
+        long resumeUs = 10000000;
+        harness.framer.restartChunk(resumeUs);
+        assertEquals(resumeUs, harness.framer.getPositionUs());
+        assertEquals(0, harness.framer.getGaps());
+    }
+}
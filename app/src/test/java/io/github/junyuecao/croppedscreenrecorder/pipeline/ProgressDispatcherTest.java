@@ -0,0 +1,133 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProgressDispatcherTest {
+    private static final long INTERVAL_MS = 100;
+    private static final long VIDEO_FRAME_US = 33333;
+    private static final long AUDIO_FRAME_US = 21333;
+
+    /**
+     * Stands in for the main Looper: queues tasks and counts them, runs them when told.
+     */
+    private static class CountingExecutor implements Executor {
+        final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        int executed;
+
+        @Override
+        public void execute(Runnable command) {
+            executed++;
+            queue.add(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = queue.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private static class Durations implements ProgressDispatcher.Listener {
+        final List<Long> reported = new ArrayList<>();
+
+        @Override
+        public void onRecordedDurationChanged(long durationMs) {
+            reported.add(durationMs);
+        }
+    }
+
+    /**
+     * Writes interleaved video and audio samples up to {@code endUs}, running the executor after
+     * every sample when {@code responsive}.
+     *
+     * @return number of samples written
+     */
+    private static int record(ProgressDispatcher dispatcher, CountingExecutor executor,
+                              long startUs, long endUs, boolean responsive) {
+        int samples = 0;
+        long videoUs = startUs;
+        long audioUs = startUs;
+        while (videoUs <= endUs || audioUs <= endUs) {
+            if (videoUs <= audioUs) {
+                dispatcher.onSampleWritten(videoUs);
+                videoUs += VIDEO_FRAME_US;
+            } else {
+                dispatcher.onSampleWritten(audioUs);
+                audioUs += AUDIO_FRAME_US;
+            }
+            samples++;
+            if (responsive) {
+                executor.runAll();
+            }
+        }
+        return samples;
+    }
+
+    @Test
+    public void postsOncePerInterval() {
+        CountingExecutor executor = new CountingExecutor();
+        Durations listener = new Durations();
+        ProgressDispatcher dispatcher = new ProgressDispatcher(executor, listener, INTERVAL_MS);
+
+        long startUs = 5000000;
+        int samples = record(dispatcher, executor, startUs, startUs + 10000000, true);
+
+        // Two posts per video frame before; now one per interval of media time
+        long mostPosts = 10000 / INTERVAL_MS + 1;
+        assertTrue(executor.executed + " posts for 10s", executor.executed <= mostPosts);
+        // Each post waits for the first sample at least an interval on, a little later
+        assertTrue(executor.executed + " posts for 10s", executor.executed >= mostPosts * 8 / 10);
+        assertTrue(executor.executed * 5 < samples);
+        assertEquals(executor.executed, dispatcher.getPostedCount());
+        assertEquals(executor.executed, listener.reported.size());
+        // Durations are media time from the first sample, increasing
+        assertEquals(0, (long) listener.reported.get(0));
+        for (int i = 1; i < listener.reported.size(); i++) {
+            assertTrue(listener.reported.get(i) >= listener.reported.get(i - 1) + INTERVAL_MS);
+        }
+        assertEquals(10000, dispatcher.getDurationMs(), 34);
+    }
+
+    @Test
+    public void busyExecutorGetsOneTaskAtATime() {
+        CountingExecutor executor = new CountingExecutor();
+        Durations listener = new Durations();
+        ProgressDispatcher dispatcher = new ProgressDispatcher(executor, listener, INTERVAL_MS);
+
+        // The main thread is stuck for 2s of media
+        record(dispatcher, executor, 0, 2000000, false);
+        assertEquals(1, executor.queue.size());
+        executor.runAll();
+        // The update that finally runs reports the latest duration, not the one it was posted for
+        assertEquals(1, listener.reported.size());
+        assertEquals(dispatcher.getDurationMs(), (long) listener.reported.get(0));
+
+        dispatcher.onSampleWritten(2000000 + INTERVAL_MS * 1000);
+        assertEquals(2, executor.executed);
+    }
+
+    @Test
+    public void pausesDontCount() {
+        CountingExecutor executor = new CountingExecutor();
+        Durations listener = new Durations();
+        ProgressDispatcher dispatcher = new ProgressDispatcher(executor, listener, INTERVAL_MS);
+        MediaClock clock = new MediaClock();
+        dispatcher.setMediaClock(clock);
+
+        record(dispatcher, executor, 0, 1000000, true);
+        clock.pause(1000000);
+        clock.resume(4000000);
+        record(dispatcher, executor, 4000000, 5000000, true);
+
+        assertEquals(2000, dispatcher.getDurationMs(), 34);
+    }
+}
@@ -0,0 +1,132 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PtsSanitizerTest {
+    private static final int TRACKS = 3;
+    private static final int SAMPLES = 200000;
+
+    /**
+     * Next timestamp of an adversarial source: mostly in order, with duplicates, small and large
+     * steps back, jumps and garbage mixed in.
+     */
+    private static long next(Random random, long previousUs) {
+        int kind = random.nextInt(100);
+        if (kind < 60) {
+            return previousUs + 1 + random.nextInt(40000);
+        } else if (kind < 75) {
+            return previousUs;
+        } else if (kind < 85) {
+            return previousUs - 1 - random.nextInt(1000);
+        } else if (kind < 92) {
+            return previousUs - random.nextInt(10000000);
+        } else if (kind < 96) {
+            return previousUs + random.nextInt(100000000);
+        } else if (kind < 98) {
+            return -1 - random.nextInt(1000);
+        } else {
+            return random.nextLong() >>> 20;
+        }
+    }
+
+    private static void fuzz(PtsSanitizer.Policy policy, long seed) {
+        PtsSanitizer sanitizer = new PtsSanitizer(policy);
+        Random random = new Random(seed);
+        long[] input = new long[TRACKS];
+        long[] written = new long[TRACKS];
+        for (int i = 0; i < TRACKS; i++) {
+            written[i] = -1;
+        }
+        long passed = 0;
+        long changed = 0;
+        long dropped = 0;
+        for (int n = 0; n < SAMPLES; n++) {
+            int track = random.nextInt(TRACKS);
+            long ptsUs = next(random, input[track]);
+            input[track] = ptsUs;
+            long outUs = sanitizer.sanitize(track, ptsUs);
+            boolean valid = ptsUs > written[track];
+            if (outUs == PtsSanitizer.DROP) {
+                assertFalse(valid);
+                dropped++;
+                continue;
+            }
+            // Whatever is written is in order, and good timestamps are left alone
+            assertTrue(outUs > written[track]);
+            if (valid) {
+                assertEquals(ptsUs, outUs);
+                passed++;
+            } else {
+                assertEquals(PtsSanitizer.Policy.CLAMP, policy);
+                assertEquals(written[track] + PtsSanitizer.MIN_STEP_US, outUs);
+                changed++;
+            }
+            written[track] = outUs;
+        }
+
+        assertEquals(SAMPLES, passed + changed + dropped);
+        assertEquals(changed, sanitizer.getClamped());
+        assertEquals(dropped, sanitizer.getDropped());
+        assertEquals(changed + dropped, sanitizer.getCorrections());
+        assertEquals(sanitizer.getCorrections(),
+                sanitizer.getDuplicates() + sanitizer.getBackwards());
+        assertTrue(sanitizer.getDuplicates() > 0);
+        assertTrue(sanitizer.getBackwards() > 0);
+    }
+
+    @Test
+    public void clampKeepsEveryTrackIncreasing() {
+        for (long seed = 0; seed < 5; seed++) {
+            fuzz(PtsSanitizer.Policy.CLAMP, seed);
+        }
+    }
+
+    @Test
+    public void dropKeepsEveryTrackIncreasing() {
+        for (long seed = 0; seed < 5; seed++) {
+            fuzz(PtsSanitizer.Policy.DROP, seed);
+        }
+    }
+
+    @Test
+    public void tracksAreIndependent() {
+        PtsSanitizer sanitizer = new PtsSanitizer(PtsSanitizer.Policy.CLAMP);
+        assertEquals(1000, sanitizer.sanitize(0, 1000));
+        // Another track may well be behind the first one
+        assertEquals(10, sanitizer.sanitize(5, 10));
+        assertEquals(11, sanitizer.sanitize(5, 10));
+        assertEquals(1001, sanitizer.sanitize(0, 500));
+        assertEquals(1, sanitizer.getDuplicates());
+        assertEquals(1, sanitizer.getBackwards());
+    }
+
+    @Test
+    public void negativeFirstTimestampIsClamped() {
+        PtsSanitizer sanitizer = new PtsSanitizer(PtsSanitizer.Policy.CLAMP);
+        assertEquals(0, sanitizer.sanitize(0, -40));
+        assertEquals(1, sanitizer.getBackwards());
+    }
+
+    @Test
+    public void nothingFollowsTheLastTimestamp() {
+        PtsSanitizer sanitizer = new PtsSanitizer(PtsSanitizer.Policy.CLAMP);
+        assertEquals(Long.MAX_VALUE, sanitizer.sanitize(0, Long.MAX_VALUE));
+        assertEquals(PtsSanitizer.DROP, sanitizer.sanitize(0, Long.MAX_VALUE));
+        assertEquals(1, sanitizer.getDropped());
+    }
+
+    @Test
+    public void resetForgetsTimestamps() {
+        PtsSanitizer sanitizer = new PtsSanitizer(PtsSanitizer.Policy.DROP);
+        sanitizer.sanitize(0, 5000000);
+        sanitizer.reset();
+        assertEquals(0, sanitizer.sanitize(0, 0));
+        assertEquals(0, sanitizer.getCorrections());
+    }
+}
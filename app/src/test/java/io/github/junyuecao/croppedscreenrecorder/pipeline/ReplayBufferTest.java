@@ -0,0 +1,141 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReplayBufferTest {
+    private static final long FRAME_US = 33000;
+    private static final int FRAME_SIZE = 1000;
+    private static final int KEY_FRAME_INTERVAL = 10;
+
+    /**
+     * Keeps the presentation time of each sample written, and lets the encoder "run" while the
+     * replay is being saved.
+     */
+    private static class RecordingMuxer implements SampleMuxer {
+        final List<Long> writtenPts = new ArrayList<>();
+        Runnable onWrite;
+        boolean stopped;
+        boolean released;
+
+        @Override
+        public int addTrack(TrackFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+            assertEquals(FRAME_SIZE, info.size);
+            writtenPts.add(info.presentationTimeUs);
+            Runnable hook = onWrite;
+            onWrite = null;
+            if (hook != null) {
+                hook.run();
+            }
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    private static void appendFrames(ReplayBuffer replay, int track, int from, int count) {
+        SampleInfo info = new SampleInfo();
+        ByteBuffer data = ByteBuffer.allocate(FRAME_SIZE);
+        for (int i = from; i < from + count; i++) {
+            info.set(0, FRAME_SIZE, i * FRAME_US,
+                    i % KEY_FRAME_INTERVAL == 0 ? SampleInfo.FLAG_KEY_FRAME : 0);
+            data.clear();
+            assertTrue(replay.append(track, data, info));
+        }
+    }
+
+    private static TrackFormat videoFormat() {
+        return TrackFormat.video("video/avc", 320, 240, null, null, null);
+    }
+
+    @Test
+    public void appendsDuringSaveAreLeftOut() {
+        final ReplayBuffer replay = new ReplayBuffer(10000000, 1024 * 1024);
+        final int video = replay.addTrack(videoFormat());
+        appendFrames(replay, video, 0, 40);
+        RecordingMuxer muxer = new RecordingMuxer();
+        muxer.onWrite = new Runnable() {
+            @Override
+            public void run() {
+                appendFrames(replay, video, 40, 20);
+            }
+        };
+
+        long durationUs = replay.save(muxer, 10000000);
+        assertEquals(39 * FRAME_US, durationUs);
+        assertEquals(40, muxer.writtenPts.size());
+        assertTrue(muxer.stopped);
+        assertTrue(muxer.released);
+        assertEquals(0, replay.getEvictedSamples());
+    }
+
+    @Test
+    public void saveStartsAtKeyFrameCoveringDuration() {
+        ReplayBuffer replay = new ReplayBuffer(10000000, 1024 * 1024);
+        int video = replay.addTrack(videoFormat());
+        appendFrames(replay, video, 0, 40);
+        RecordingMuxer muxer = new RecordingMuxer();
+
+        // The last 0.5s starts in the group of frame 20
+        replay.save(muxer, 500000);
+        assertEquals(20, muxer.writtenPts.size());
+        assertEquals(0, (long) muxer.writtenPts.get(0));
+        assertEquals(19 * FRAME_US, (long) muxer.writtenPts.get(19));
+    }
+
+    @Test
+    public void evictionUnderSaveFailsIt() {
+        // Holds 64 frames, the save starts at the oldest
+        final ReplayBuffer replay = new ReplayBuffer(10000000, 64 * FRAME_SIZE);
+        final int video = replay.addTrack(videoFormat());
+        appendFrames(replay, video, 0, 60);
+        RecordingMuxer muxer = new RecordingMuxer();
+        muxer.onWrite = new Runnable() {
+            @Override
+            public void run() {
+                // Needs the room of the two oldest groups
+                appendFrames(replay, video, 60, 20);
+            }
+        };
+
+        try {
+            replay.save(muxer, 10000000);
+            fail("saved samples that were evicted");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(1, muxer.writtenPts.size());
+        assertFalse(muxer.stopped);
+        assertTrue(muxer.released);
+        assertEquals(2 * KEY_FRAME_INTERVAL, replay.getEvictedSamples());
+
+        // What is left is still whole and can be saved
+        RecordingMuxer next = new RecordingMuxer();
+        replay.save(next, 10000000);
+        assertEquals(60, next.writtenPts.size());
+        assertEquals(59 * FRAME_US, (long) next.writtenPts.get(59));
+    }
+}
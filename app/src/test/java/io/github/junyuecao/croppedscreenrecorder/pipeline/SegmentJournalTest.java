@@ -0,0 +1,162 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentJournalTest {
+    private File mDir;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("journal").toFile();
+        mFile = new File(mDir, "segments.journal");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private static SegmentJournal.Entry closed(long id, long bytes, long durationUs) {
+        SegmentJournal.Entry entry = new SegmentJournal.Entry(id, "segment_" + id + ".mp4",
+                1000 + id);
+        entry.bytes = bytes;
+        entry.durationUs = durationUs;
+        return entry;
+    }
+
+    /**
+     * Writes two closed segments and a third still recording.
+     *
+     * @return the journal's length before the third segment was opened
+     */
+    private long writeThreeSegments() throws IOException {
+        SegmentJournal journal = new SegmentJournal(mFile);
+        assertTrue(journal.open().isEmpty());
+        for (long id = 0; id < 2; id++) {
+            SegmentJournal.Entry entry = closed(id, 100 + id, 2000000);
+            journal.appendOpen(entry);
+            journal.appendClose(entry);
+        }
+        long length = mFile.length();
+        journal.appendOpen(new SegmentJournal.Entry(2, "segment_2.mp4", 1002));
+        journal.close();
+        return length;
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void reopenRecoversSegments() throws IOException {
+        writeThreeSegments();
+        SegmentJournal journal = new SegmentJournal(mFile);
+        List<SegmentJournal.Entry> entries = journal.open();
+        journal.close();
+
+        assertEquals(3, entries.size());
+        assertEquals(5, journal.getRecordCount());
+        assertTrue(entries.get(0).isClosed());
+        assertEquals(101, entries.get(1).bytes);
+        assertEquals(2000000, entries.get(1).durationUs);
+        assertEquals("segment_2.mp4", entries.get(2).name);
+        assertEquals(1002, entries.get(2).createdMs);
+        assertFalse(entries.get(2).isClosed());
+    }
+
+    @Test
+    public void truncatedTrailingRecordIsCutOff() throws IOException {
+        long valid = writeThreeSegments();
+        // The crash tore the last record in the middle of the name
+        truncate(mFile.length() - 4);
+
+        SegmentJournal journal = new SegmentJournal(mFile);
+        List<SegmentJournal.Entry> entries = journal.open();
+        assertEquals(2, entries.size());
+        assertEquals(4, journal.getRecordCount());
+        assertEquals(valid, mFile.length());
+
+        // Appends go after the last whole record
+        SegmentJournal.Entry entry = new SegmentJournal.Entry(3, "segment_3.mp4", 1003);
+        journal.appendOpen(entry);
+        journal.appendDelete(entries.get(0));
+        journal.close();
+
+        journal = new SegmentJournal(mFile);
+        entries = journal.open();
+        journal.close();
+        assertEquals(2, entries.size());
+        assertEquals(1, entries.get(0).id);
+        assertEquals(3, entries.get(1).id);
+    }
+
+    @Test
+    public void corruptRecordAndEverythingAfterAreDropped() throws IOException {
+        long valid = writeThreeSegments();
+        // Flip a bit in the close record of segment 1, the one before the last open
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(valid - 10);
+            int b = file.read();
+            file.seek(valid - 10);
+            file.write(b ^ 1);
+        } finally {
+            file.close();
+        }
+
+        SegmentJournal journal = new SegmentJournal(mFile);
+        List<SegmentJournal.Entry> entries = journal.open();
+        journal.close();
+        assertEquals(2, entries.size());
+        assertTrue(entries.get(0).isClosed());
+        assertFalse(entries.get(1).isClosed());
+        assertEquals(3, journal.getRecordCount());
+    }
+
+    @Test
+    public void compactKeepsLiveSegments() throws IOException {
+        writeThreeSegments();
+        SegmentJournal journal = new SegmentJournal(mFile);
+        List<SegmentJournal.Entry> entries = journal.open();
+        journal.appendDelete(entries.get(0));
+        List<SegmentJournal.Entry> live = new ArrayList<>(entries.subList(1, 3));
+        journal.compact(live);
+        assertEquals(3, journal.getRecordCount());
+        journal.appendClose(closed(2, 102, 1500000));
+        journal.close();
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+
+        journal = new SegmentJournal(mFile);
+        entries = journal.open();
+        journal.close();
+        assertEquals(2, entries.size());
+        assertEquals(1, entries.get(0).id);
+        assertEquals(102, entries.get(1).bytes);
+        assertEquals(4, journal.getRecordCount());
+    }
+}
@@ -0,0 +1,138 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentingSampleMuxerTest {
+    private static final long SEGMENT_US = 1000000;
+    private static final long FRAME_US = 33000;
+
+    /**
+     * Keeps the track and presentation time of each sample written to one segment.
+     */
+    private static class RecordingMuxer implements SampleMuxer {
+        final List<Integer> tracks = new ArrayList<>();
+        final List<Long> writtenPts = new ArrayList<>();
+        private int mTrackCount;
+        boolean stopped;
+
+        @Override
+        public int addTrack(TrackFormat format) {
+            return mTrackCount++;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+            assertFalse("written after stop", stopped);
+            tracks.add(trackIndex);
+            writtenPts.add(info.presentationTimeUs);
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    private final List<RecordingMuxer> mSegments = new ArrayList<>();
+    private final List<Long> mFinishedDurations = new ArrayList<>();
+
+    private SegmentingSampleMuxer newMuxer() {
+        SegmentingSampleMuxer muxer = new SegmentingSampleMuxer(new SegmentingSampleMuxer.Output() {
+            @Override
+            public SampleMuxer openSegment(int index) throws IOException {
+                assertEquals(mSegments.size(), index);
+                RecordingMuxer segment = new RecordingMuxer();
+                mSegments.add(segment);
+                return segment;
+            }
+        }, SEGMENT_US, 0);
+        muxer.setListener(new SegmentingSampleMuxer.Listener() {
+            @Override
+            public void onSegmentFinished(int index, long durationUs, long bytes) {
+                assertEquals(mFinishedDurations.size(), index);
+                assertTrue(mSegments.get(index).stopped);
+                mFinishedDurations.add(durationUs);
+            }
+        });
+        return muxer;
+    }
+
+    private static void write(SampleMuxer muxer, int track, long pts, int flags) {
+        SampleInfo info = new SampleInfo();
+        info.set(0, 16, pts, flags);
+        muxer.writeSampleData(track, ByteBuffer.allocate(16), info);
+    }
+
+    @Test
+    public void cutWaitsForKeyFrameAndLateAudioFinishesOldSegment() {
+        SegmentingSampleMuxer muxer = newMuxer();
+        int video = muxer.addTrack(TrackFormat.video("video/avc", 320, 240, null, null, null));
+        int audio = muxer.addTrack(TrackFormat.audio("audio/mp4a-latm", 44100, 2, null, null));
+        muxer.start();
+
+        write(muxer, video, 0, SampleInfo.FLAG_KEY_FRAME);
+        write(muxer, audio, 0, 0);
+        // Due at 1s, but that frame isn't a key frame
+        long pts = FRAME_US;
+        for (; pts < SEGMENT_US + FRAME_US; pts += FRAME_US) {
+            write(muxer, video, pts, 0);
+        }
+        assertEquals(1, mSegments.size());
+        long cutUs = pts;
+        write(muxer, video, cutUs, SampleInfo.FLAG_KEY_FRAME);
+        assertEquals(2, mSegments.size());
+
+        // Audio from before the cut arrives after it
+        write(muxer, audio, cutUs - 10000, 0);
+        assertEquals(0, mFinishedDurations.size());
+        write(muxer, audio, cutUs + 5000, 0);
+        assertEquals(1, mFinishedDurations.size());
+        assertEquals(cutUs, (long) mFinishedDurations.get(0));
+        muxer.stop();
+
+        RecordingMuxer first = mSegments.get(0);
+        assertEquals(audio, (int) first.tracks.get(first.tracks.size() - 1));
+        assertEquals(cutUs - 10000, (long) first.writtenPts.get(first.writtenPts.size() - 1));
+        // Every segment starts at a key frame, with its timestamps from the cut
+        RecordingMuxer second = mSegments.get(1);
+        assertEquals(video, (int) second.tracks.get(0));
+        assertEquals(0, (long) second.writtenPts.get(0));
+        assertEquals(audio, (int) second.tracks.get(1));
+        assertEquals(5000, (long) second.writtenPts.get(1));
+        assertEquals(2, mFinishedDurations.size());
+        assertEquals(5000, (long) mFinishedDurations.get(1));
+    }
+
+    @Test
+    public void audioOnlyCutsOnTime() {
+        SegmentingSampleMuxer muxer = newMuxer();
+        int audio = muxer.addTrack(TrackFormat.audio("audio/mp4a-latm", 44100, 2, null, null));
+        muxer.start();
+        for (long pts = 0; pts <= 2 * SEGMENT_US; pts += 20000) {
+            write(muxer, audio, pts, 0);
+        }
+        muxer.stop();
+
+        assertEquals(3, mSegments.size());
+        assertEquals(SEGMENT_US, (long) mFinishedDurations.get(0));
+        assertEquals(SEGMENT_US, (long) mFinishedDurations.get(1));
+        assertEquals(0, (long) mFinishedDurations.get(2));
+    }
+}
@@ -0,0 +1,152 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A video track drained from its encoder's callbacks reaches the muxer writer on its own, while
+ * the old way of polling the encoder before rendering each frame holds every frame until the
+ * next one is rendered.
+ */
+public class TrackDrainerTest {
+    private static final int FRAMES = 12;
+    private static final long FRAME_INTERVAL_US = 33333;
+    private static final long ENCODE_LATENCY_US = 1000;
+    /** Only reached if the pipeline is stuck */
+    private static final long TIMEOUT_MS = 5000;
+
+    /**
+     * Keeps the presentation time of each sample written.
+     */
+    private static class RecordingMuxer implements SampleMuxer {
+        final List<Long> writtenPts = new ArrayList<>();
+
+        @Override
+        public int addTrack(TrackFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public synchronized void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+            writtenPts.add(info.presentationTimeUs);
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    private static final TrackDrainer.Listener IGNORE_FORMAT = new TrackDrainer.Listener() {
+        @Override
+        public void onOutputFormatChanged(TrackDrainer drainer, TrackFormat format) {
+        }
+    };
+
+    private static TrackFormat videoFormat() {
+        return TrackFormat.video("video/avc", 320, 240, null, null, null);
+    }
+
+    private static void awaitEncoded(FakeMediaEncoder encoder, long frames) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (encoder.getEncodedFrames() < frames) {
+            assertTrue("encoder stuck", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void assertWrittenInOrder(RecordingMuxer muxer) {
+        assertEquals(FRAMES, muxer.writtenPts.size());
+        long firstUs = muxer.writtenPts.get(0);
+        for (int i = 0; i < FRAMES; i++) {
+            assertEquals(i * FRAME_INTERVAL_US, muxer.writtenPts.get(i) - firstUs);
+        }
+    }
+
+    @Test
+    public void asyncOutputReachesMuxerWithoutWaitingForRender() throws Exception {
+        FakeMediaEncoder encoder = new FakeMediaEncoder(videoFormat())
+                .setLatency(ENCODE_LATENCY_US, 0);
+        RecordingMuxer muxer = new RecordingMuxer();
+        MuxerWriter writer = new MuxerWriter(muxer, MuxerWriter.DEFAULT_CAPACITY,
+                MuxerWriter.OverflowPolicy.BLOCK);
+        final TrackDrainer drainer = new TrackDrainer(encoder, writer, IGNORE_FORMAT);
+        drainer.setTrackIndex(writer.addTrack(videoFormat()));
+        writer.start();
+        assertTrue(encoder.setCallback(new MediaEncoder.Callback() {
+            @Override
+            public void onOutputBufferAvailable(MediaEncoder encoder, int index, SampleInfo info) {
+                drainer.onOutputBufferAvailable(index, info);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaEncoder encoder, TrackFormat format) {
+            }
+
+            @Override
+            public void onError(MediaEncoder encoder, Exception e) {
+            }
+        }));
+        encoder.start();
+
+        for (int i = 0; i < FRAMES; i++) {
+            encoder.submitFrame((i + 1) * FRAME_INTERVAL_US);
+            // The render thread does nothing else until the next frame, yet each frame is
+            // handed to the writer before the next one is rendered
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (drainer.getWrittenSamples() < i + 1) {
+                assertTrue("frame " + i + " never left the encoder",
+                        System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        }
+        writer.stop();
+        encoder.release();
+
+        assertWrittenInOrder(muxer);
+    }
+
+    @Test
+    public void polledOutputWaitsForNextRender() throws Exception {
+        FakeMediaEncoder encoder = new FakeMediaEncoder(videoFormat())
+                .setLatency(ENCODE_LATENCY_US, 0);
+        RecordingMuxer muxer = new RecordingMuxer();
+        MuxerWriter writer = new MuxerWriter(muxer, MuxerWriter.DEFAULT_CAPACITY,
+                MuxerWriter.OverflowPolicy.BLOCK);
+        TrackDrainer drainer = new TrackDrainer(encoder, writer, IGNORE_FORMAT);
+        drainer.setTrackIndex(writer.addTrack(videoFormat()));
+        writer.start();
+        encoder.start();
+
+        for (int i = 0; i < FRAMES; i++) {
+            encoder.submitFrame((i + 1) * FRAME_INTERVAL_US);
+            awaitEncoded(encoder, i + 1);
+            // Encoded, but it sits in the encoder until it is polled
+            assertEquals(i, drainer.getWrittenSamples());
+            // Sync mode: output is only polled right before the next frame is rendered
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (drainer.getWrittenSamples() < i + 1) {
+                assertTrue("frame " + i + " never left the encoder",
+                        System.currentTimeMillis() < deadline);
+                drainer.drain(1000, false);
+            }
+        }
+        writer.stop();
+        encoder.release();
+
+        assertWrittenInOrder(muxer);
+    }
+}
@@ -0,0 +1,272 @@
+package io.github.junyuecao.croppedscreenrecorder.pipeline;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TsMuxerTest {
+    static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, 0, 0x1f, 1, 2, 3};
+    static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte[] AUD = {0, 0, 0, 1, 0x09, (byte) 0xf0};
+    /** AAC-LC, 44.1 kHz, stereo */
+    private static final byte[] ASC = {0x12, 0x10};
+    private static final int VIDEO_PID = 0x100;
+    private static final int AUDIO_PID = 0x101;
+    private static final int PES_HEADER_SIZE = 14;
+
+    /**
+     * Splits a transport stream back into PES packets, checking every packet on the way.
+     */
+    static class Demuxer {
+        final Map<Integer, Integer> streamTypes = new HashMap<>();
+        final Map<Integer, List<byte[]>> pes = new HashMap<>();
+        final List<Long> pcrs = new ArrayList<>();
+        int pmtPid = -1;
+        int pcrPid = -1;
+        int pats;
+        private final Map<Integer, Integer> mContinuity = new HashMap<>();
+        private final Map<Integer, ByteArrayOutputStream> mAssembling = new HashMap<>();
+
+        Demuxer(byte[] ts) {
+            assertEquals(0, ts.length % TsMuxer.PACKET_SIZE);
+            for (int p = 0; p < ts.length; p += TsMuxer.PACKET_SIZE) {
+                packet(ts, p);
+            }
+            for (Integer pid : new ArrayList<>(mAssembling.keySet())) {
+                finish(pid);
+            }
+        }
+
+        private void packet(byte[] ts, int p) {
+            int end = p + TsMuxer.PACKET_SIZE;
+            assertEquals(0x47, ts[p]);
+            boolean unitStart = (ts[p + 1] & 0x40) != 0;
+            int pid = ((ts[p + 1] & 0x1f) << 8) | (ts[p + 2] & 0xff);
+            int control = (ts[p + 3] >> 4) & 3;
+            int continuity = ts[p + 3] & 0x0f;
+            Integer previous = mContinuity.get(pid);
+            if (previous != null) {
+                assertEquals("continuity of pid " + pid, (previous + 1) & 0x0f, continuity);
+            }
+            mContinuity.put(pid, continuity);
+
+            int i = p + 4;
+            if ((control & 2) != 0) {
+                int length = ts[i] & 0xff;
+                if (length > 0 && (ts[i + 1] & 0x10) != 0) {
+                    assertEquals(pcrPid, pid);
+                    pcrs.add(((ts[i + 2] & 0xffL) << 25) | ((ts[i + 3] & 0xffL) << 17)
+                            | ((ts[i + 4] & 0xffL) << 9) | ((ts[i + 5] & 0xffL) << 1)
+                            | ((ts[i + 6] & 0xff) >> 7));
+                }
+                i += 1 + length;
+            }
+            assertTrue("payload", (control & 1) != 0);
+            assertTrue("adaptation field fits", i < end);
+
+            if (pid == 0 || pid == pmtPid) {
+                assertTrue(unitStart);
+                int s = i + 1 + (ts[i] & 0xff);
+                int sectionLength = ((ts[s + 1] & 0x0f) << 8) | (ts[s + 2] & 0xff);
+                // The CRC over a section including its own CRC is zero
+                assertEquals(0, TsMuxer.crc32(ts, s, 3 + sectionLength));
+                if (pid == 0) {
+                    assertEquals(0x00, ts[s]);
+                    pmtPid = ((ts[s + 10] & 0x1f) << 8) | (ts[s + 11] & 0xff);
+                    pats++;
+                } else {
+                    assertEquals(0x02, ts[s]);
+                    pcrPid = ((ts[s + 8] & 0x1f) << 8) | (ts[s + 9] & 0xff);
+                    for (int e = s + 12; e < s + 3 + sectionLength - 4; e += 5) {
+                        streamTypes.put(((ts[e + 1] & 0x1f) << 8) | (ts[e + 2] & 0xff),
+                                ts[e] & 0xff);
+                    }
+                }
+                return;
+            }
+            if (unitStart) {
+                finish(pid);
+            }
+            ByteArrayOutputStream unit = mAssembling.get(pid);
+            assertTrue("PES starts with a unit start", unit != null || unitStart);
+            if (unit == null) {
+                unit = new ByteArrayOutputStream();
+                mAssembling.put(pid, unit);
+            }
+            unit.write(ts, i, end - i);
+        }
+
+        private void finish(int pid) {
+            ByteArrayOutputStream unit = mAssembling.remove(pid);
+            if (unit == null) {
+                return;
+            }
+            List<byte[]> units = pes.get(pid);
+            if (units == null) {
+                units = new ArrayList<>();
+                pes.put(pid, units);
+            }
+            units.add(unit.toByteArray());
+        }
+    }
+
+    static long pts(byte[] pes) {
+        assertArrayEquals(new byte[] {0, 0, 1}, Arrays.copyOf(pes, 3));
+        assertEquals(0x80, pes[7] & 0xff);
+        return (((pes[9] >> 1) & 7L) << 30) | ((pes[10] & 0xffL) << 22)
+                | (((pes[11] & 0xff) >> 1) << 15) | ((pes[12] & 0xffL) << 7)
+                | ((pes[13] & 0xff) >> 1);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void crc32() {
+        // The CRC-32/MPEG-2 check value
+        byte[] data = "123456789".getBytes();
+        assertEquals(0x0376e6e7, TsMuxer.crc32(data, 0, data.length));
+    }
+
+    @Test
+    public void samplesComeBackOutOfTheStream() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        TsMuxer muxer = new TsMuxer(Channels.newChannel(output));
+        int video = muxer.addTrack(TrackFormat.video("video/avc", 640, 360, ByteBuffer.wrap(SPS),
+                ByteBuffer.wrap(PPS), null));
+        int audio = muxer.addTrack(TrackFormat.audio("audio/mp4a-latm", 44100, 2,
+                ByteBuffer.wrap(ASC), null));
+        muxer.start();
+
+        Random random = new Random(25);
+        SampleInfo info = new SampleInfo();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(100000);
+        List<byte[]> videoIn = new ArrayList<>();
+        List<Long> videoPts = new ArrayList<>();
+        List<Boolean> keys = new ArrayList<>();
+        List<byte[]> audioIn = new ArrayList<>();
+        List<Long> audioPts = new ArrayList<>();
+        long audioUs = 0;
+        for (int f = 0; f < 400; f++) {
+            long ptsUs = f * 33333L;
+            boolean key = f % 60 == 0;
+            // Every size around the ends of the first and second packet: the first carries a
+            // PCR, 176 bytes of payload, the ones after 184
+            int size = key ? 70000 + random.nextInt(1000) : 140 + f % 240;
+            byte[] sample = new byte[size];
+            random.nextBytes(sample);
+            buffer.clear();
+            buffer.position(10);
+            buffer.put(sample);
+            info.set(10, size, ptsUs, key ? SampleInfo.FLAG_KEY_FRAME : 0);
+            muxer.writeSampleData(video, buffer, info);
+            videoIn.add(sample);
+            videoPts.add(ptsUs);
+            keys.add(key);
+
+            while (audioUs <= ptsUs) {
+                // No PCR: 182 bytes in the first packet
+                byte[] frame = new byte[150 + audioIn.size() % 220];
+                random.nextBytes(frame);
+                buffer.clear();
+                buffer.put(frame);
+                info.set(0, frame.length, audioUs, 0);
+                muxer.writeSampleData(audio, buffer, info);
+                audioIn.add(frame);
+                audioPts.add(audioUs);
+                audioUs += 23220;
+            }
+        }
+        muxer.stop();
+        muxer.release();
+        byte[] ts = output.toByteArray();
+        assertEquals(ts.length, muxer.getBytesWritten());
+
+        Demuxer demuxer = new Demuxer(ts);
+        assertEquals(0x1000, demuxer.pmtPid);
+        assertEquals(VIDEO_PID, demuxer.pcrPid);
+        assertEquals(0x1b, (int) demuxer.streamTypes.get(VIDEO_PID));
+        assertEquals(0x0f, (int) demuxer.streamTypes.get(AUDIO_PID));
+        // At the start and before each key frame
+        assertEquals(1 + 400 / 60 + 1, demuxer.pats);
+
+        List<byte[]> videoOut = demuxer.pes.get(VIDEO_PID);
+        assertEquals(videoIn.size(), videoOut.size());
+        assertEquals(videoIn.size(), demuxer.pcrs.size());
+        for (int i = 0; i < videoIn.size(); i++) {
+            byte[] pes = videoOut.get(i);
+            assertEquals(0xe0, pes[3] & 0xff);
+            long pts = videoPts.get(i) * 9 / 100 + 63000;
+            assertEquals(pts, pts(pes));
+            assertEquals(pts - 63000, (long) demuxer.pcrs.get(i));
+            int length = ((pes[4] & 0xff) << 8) | (pes[5] & 0xff);
+            assertTrue(length == 0 ? pes.length - 6 > 0xffff : length == pes.length - 6);
+            byte[] expected = keys.get(i) ? concat(AUD, SPS, PPS, videoIn.get(i))
+                    : concat(AUD, videoIn.get(i));
+            assertArrayEquals(expected, Arrays.copyOfRange(pes, PES_HEADER_SIZE, pes.length));
+        }
+
+        List<byte[]> audioOut = demuxer.pes.get(AUDIO_PID);
+        assertEquals(audioIn.size(), audioOut.size());
+        for (int i = 0; i < audioIn.size(); i++) {
+            byte[] pes = audioOut.get(i);
+            assertEquals(0xc0, pes[3] & 0xff);
+            assertEquals(audioPts.get(i) * 9 / 100 + 63000, pts(pes));
+            assertEquals(((pes[4] & 0xff) << 8) | (pes[5] & 0xff), pes.length - 6);
+            int h = PES_HEADER_SIZE;
+            // ADTS: sync word, MPEG-4, no CRC, then the fields from the AudioSpecificConfig
+            assertEquals(0xff, pes[h] & 0xff);
+            assertEquals(0xf1, pes[h + 1] & 0xff);
+            assertEquals(1, (pes[h + 2] & 0xff) >> 6); // AAC-LC
+            assertEquals(4, ((pes[h + 2] & 0xff) >> 2) & 0x0f); // 44.1 kHz
+            assertEquals(2, ((pes[h + 2] & 1) << 2) | ((pes[h + 3] & 0xff) >> 6));
+            int frameLength = ((pes[h + 3] & 3) << 11) | ((pes[h + 4] & 0xff) << 3)
+                    | ((pes[h + 5] & 0xff) >> 5);
+            assertEquals(audioIn.get(i).length + 7, frameLength);
+            assertArrayEquals(audioIn.get(i), Arrays.copyOfRange(pes, h + 7, pes.length));
+        }
+    }
+
+    @Test
+    public void audioOnlyRepeatsTablesAndCarriesTheClock() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        TsMuxer muxer = new TsMuxer(Channels.newChannel(output));
+        int audio = muxer.addTrack(TrackFormat.audio("audio/mp4a-latm", 48000, 1, null, null));
+        muxer.start();
+        SampleInfo info = new SampleInfo();
+        for (int i = 0; i < 100; i++) {
+            info.set(0, 200, i * 21333L, 0);
+            muxer.writeSampleData(audio, ByteBuffer.allocate(200), info);
+        }
+        muxer.stop();
+        muxer.release();
+
+        Demuxer demuxer = new Demuxer(output.toByteArray());
+        assertEquals(VIDEO_PID, demuxer.pcrPid);
+        assertEquals(0x0f, (int) demuxer.streamTypes.get(VIDEO_PID));
+        assertEquals(100, demuxer.pcrs.size());
+        // Every 40 PES packets
+        assertEquals(3, demuxer.pats);
+        byte[] pes = demuxer.pes.get(VIDEO_PID).get(0);
+        // Built from the sample rate and channels: 48 kHz, mono
+        assertEquals(3, ((pes[PES_HEADER_SIZE + 2] & 0xff) >> 2) & 0x0f);
+        assertEquals(1, (pes[PES_HEADER_SIZE + 3] & 0xff) >> 6);
+    }
+}
@@ -0,0 +1,53 @@
+package io.github.junyuecao.croppedscreenrecorder.benchmarks;
+
+import io.github.junyuecao.croppedscreenrecorder.CropTexCoords;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Texture coordinate generation done by CroppedDrawable2d.getTexCoordArray() when the crop changes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CropTexCoordsBenchmark {
+    private static final float[] FULL_RECTANGLE_TEX_COORDS = {
+        0.0f, 0.0f,     // 0 bottom left
+        1.0f, 0.0f,     // 1 bottom right
+        0.0f, 1.0f,     // 2 top left
+        1.0f, 1.0f      // 3 top right
+    };
+
+    private FloatBuffer mSrc;
+    private FloatBuffer mDst;
+
+    @Setup
+    public void setUp() {
+        mSrc = createFloatBuffer(FULL_RECTANGLE_TEX_COORDS.length);
+        mSrc.put(FULL_RECTANGLE_TEX_COORDS);
+        mSrc.position(0);
+        mDst = createFloatBuffer(FULL_RECTANGLE_TEX_COORDS.length);
+    }
+
+    @Benchmark
+    public FloatBuffer crop() {
+        CropTexCoords.crop(mSrc, 0.04f, 0.07f, mDst);
+        return mDst;
+    }
+
+    private static FloatBuffer createFloatBuffer(int count) {
+        ByteBuffer bb = ByteBuffer.allocateDirect(count * 4);
+        bb.order(ByteOrder.nativeOrder());
+        return bb.asFloatBuffer();
+    }
+}
@@ -0,0 +1,33 @@
+package io.github.junyuecao.croppedscreenrecorder.benchmarks;
+
+import io.github.junyuecao.croppedscreenrecorder.pipeline.FrameLatencyTracker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reporting one video frame at every pipeline stage.  gc.alloc.rate.norm should stay at
+ * 0 B/op.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameLatencyBenchmark {
+    private final FrameLatencyTracker mTracker = new FrameLatencyTracker();
+    private long mPresentationTimeUs;
+
+    @Benchmark
+    public void trackFrame() {
+        long pts = mPresentationTimeUs += 16666;
+        long now = System.nanoTime();
+        mTracker.frameDrawn(pts, now - 2000000, now, now + 100000, now + 300000);
+        mTracker.frameSwapped(now + 500000);
+        mTracker.frameDequeued(pts, now + 8000000);
+        mTracker.frameWritten(pts, now + 9000000);
+    }
+}
@@ -0,0 +1,84 @@
+package io.github.junyuecao.croppedscreenrecorder.benchmarks;
+
+import io.github.junyuecao.croppedscreenrecorder.pipeline.FrameRing;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-frame hand-off in TextureMovieEncoder: the SurfaceTexture listener thread fills a
+ * frame slot, the encoder thread takes it.  gc.alloc.rate.norm should stay at 0 B/op.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameRingBenchmark {
+    private static final float[] IDENTITY = {
+        1, 0, 0, 0,
+        0, 1, 0, 0,
+        0, 0, 1, 0,
+        0, 0, 0, 1
+    };
+
+    @State(Scope.Group)
+    public static class Ring {
+        final FrameRing mRing = new FrameRing(FrameRing.DEFAULT_CAPACITY);
+        long mTimestamp;
+    }
+
+    @State(Scope.Thread)
+    public static class SingleThreadRing {
+        final FrameRing mRing = new FrameRing(FrameRing.DEFAULT_CAPACITY);
+        long mTimestamp;
+    }
+
+    /**
+     * Publish and consume one frame on the same thread.
+     */
+    @Benchmark
+    public long publishAndTake(SingleThreadRing state) {
+        FrameRing ring = state.mRing;
+        FrameRing.Frame frame = ring.claim();
+        System.arraycopy(IDENTITY, 0, frame.transform, 0, 16);
+        frame.timestampNanos = state.mTimestamp += 16666666;
+        ring.publish();
+
+        frame = ring.peek();
+        long timestamp = frame.timestampNanos;
+        ring.release();
+        return timestamp;
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public boolean producer(Ring state) {
+        FrameRing.Frame frame = state.mRing.claim();
+        if (frame == null) {
+            return false;
+        }
+        System.arraycopy(IDENTITY, 0, frame.transform, 0, 16);
+        frame.timestampNanos = state.mTimestamp += 16666666;
+        state.mRing.publish();
+        return true;
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public long consumer(Ring state) {
+        FrameRing.Frame frame = state.mRing.peek();
+        if (frame == null) {
+            return 0;
+        }
+        long timestamp = frame.timestampNanos;
+        state.mRing.release();
+        return timestamp;
+    }
+}
@@ -0,0 +1,59 @@
+package io.github.junyuecao.croppedscreenrecorder.benchmarks;
+
+import io.github.junyuecao.croppedscreenrecorder.pipeline.FakeSampleMuxer;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.MuxerWriter;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.SampleInfo;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.TrackFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handing encoded samples to the MuxerWriter, which copies them and writes them to a fake muxer
+ * on its own thread.  Measures the producer side, including waiting when the queue is full.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MuxerWriterBenchmark {
+
+    @Param({"1024", "32768"})
+    public int mSampleSize;
+
+    private FakeSampleMuxer mMuxer;
+    private MuxerWriter mWriter;
+    private int mTrack;
+    private ByteBuffer mData;
+    private SampleInfo mInfo;
+
+    @Setup
+    public void setUp() {
+        mMuxer = new FakeSampleMuxer();
+        mWriter = new MuxerWriter(mMuxer, MuxerWriter.DEFAULT_CAPACITY, MuxerWriter.OverflowPolicy.BLOCK);
+        mTrack = mWriter.addTrack(TrackFormat.video("video/avc", 360, 640, null, null, null));
+        mWriter.start();
+        mData = ByteBuffer.allocateDirect(mSampleSize);
+        mInfo = new SampleInfo();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mWriter.stop();
+        mWriter.release();
+    }
+
+    @Benchmark
+    public boolean writeSample() {
+        mInfo.set(0, mSampleSize, mInfo.presentationTimeUs + 41666, SampleInfo.FLAG_KEY_FRAME);
+        return mWriter.writeSampleData(mTrack, mData, mInfo);
+    }
+}
@@ -0,0 +1,77 @@
+package io.github.junyuecao.croppedscreenrecorder.benchmarks;
+
+import io.github.junyuecao.croppedscreenrecorder.pipeline.MediaEncoder;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.SampleInfo;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.TrackFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An encoder that always has an input buffer free and throws the input away, so input-side
+ * benchmarks measure the hand-off and not a codec.
+ */
+class NullAudioEncoder implements MediaEncoder {
+    private final ByteBuffer mInput = ByteBuffer.allocateDirect(64 * 1024);
+    long mQueuedBytes;
+    long mLastPresentationTimeUs;
+
+    @Override
+    public boolean setCallback(Callback callback) {
+        return false;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return 0;
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mInput;
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mQueuedBytes += size;
+        mLastPresentationTimeUs = presentationTimeUs;
+    }
+
+    @Override
+    public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+        return INFO_TRY_AGAIN_LATER;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        throw new IllegalStateException("no output");
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+    }
+
+    @Override
+    public TrackFormat getOutputFormat() {
+        return TrackFormat.audio("audio/mp4a-latm", 48000, 1, null, null);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+    }
+
+    @Override
+    public void requestSyncFrame() {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+    }
+}
@@ -0,0 +1,66 @@
+package io.github.junyuecao.croppedscreenrecorder.benchmarks;
+
+import io.github.junyuecao.croppedscreenrecorder.pipeline.AudioEncodeStage;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.FakePcmSource;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.PcmRing;
+import io.github.junyuecao.croppedscreenrecorder.pipeline.TrackDrainer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One iteration of ScreenCapture.AudioRunnable: read a PCM chunk and hand it to the audio
+ * encode stage, either through an array and AudioEncodeStage.write(), as
+ * VideoEncoderCore.enqueueAudioFrame() does, or straight into a ring slot through
+ * AudioEncodeStage.read(), as VideoEncoderCore.captureAudioFrame() does.  The encode thread
+ * isn't started; each iteration frees the slot it filled, so only the capture side is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PcmHandoffBenchmark {
+    private static final int CHUNK_SIZE = 1024 * 2;
+
+    private FakePcmSource mSource;
+    private AudioEncodeStage mStage;
+    private PcmRing mRing;
+    private byte[] mBuffer;
+    private long mPresentationTimeUs;
+
+    @Setup
+    public void setUp() {
+        mSource = new FakePcmSource(48000, 1);
+        mSource.start();
+        TrackDrainer drainer = new TrackDrainer(new NullAudioEncoder(), null, null);
+        mStage = new AudioEncodeStage(drainer, 48000, 1, 16, CHUNK_SIZE);
+        mRing = mStage.getRing();
+        mBuffer = new byte[CHUNK_SIZE];
+    }
+
+    @Benchmark
+    public boolean readAndWrite() {
+        int read = mSource.read(mBuffer, 0, mBuffer.length);
+        // Same as AudioRunnable: wrap the array for every chunk
+        ByteBuffer buf = ByteBuffer.wrap(mBuffer);
+        mPresentationTimeUs += 21333;
+        boolean written = mStage.write(buf, read, mPresentationTimeUs, false);
+        mRing.peek();
+        mRing.release();
+        return written;
+    }
+
+    @Benchmark
+    public int readDirect() {
+        int read = mStage.read(mSource, CHUNK_SIZE, false);
+        mRing.peek();
+        mRing.release();
+        return read;
+    }
+}
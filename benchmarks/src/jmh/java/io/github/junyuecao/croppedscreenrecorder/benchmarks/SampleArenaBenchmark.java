@@ -0,0 +1,36 @@
+package io.github.junyuecao.croppedscreenrecorder.benchmarks;
+
+import io.github.junyuecao.croppedscreenrecorder.pipeline.SampleArena;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leasing and releasing arena memory for an encoded sample.  After warm-up this is served from
+ * the free lists: gc.alloc.rate.norm should stay at 0 B/op and no direct memory is allocated.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SampleArenaBenchmark {
+
+    /** An AAC frame, a P-frame and an I-frame */
+    @Param({"371", "6000", "120000"})
+    public int mSampleSize;
+
+    private final SampleArena mArena = new SampleArena(SampleArena.DEFAULT_BUDGET);
+
+    @Benchmark
+    public int leaseAndRelease() {
+        SampleArena.Lease lease = mArena.acquire(mSampleSize);
+        int capacity = lease.capacity();
+        lease.release();
+        return capacity;
+    }
+}